@@ -0,0 +1,145 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Patch application speed of each applicator, for patches made by each
+ * creator.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class ApplyBenchmark {
+
+    @Param({"65536", "1048576", "16777216"})
+    public int size;
+    @Param({"RANDOM_EDITS", "BLOCK_MOVES", "INSERTIONS", "APPENDED", "RLE_RUNS", "DIFFERENT"})
+    public Corpus.Edit edit;
+    @Param({"linear", "block"})
+    public String creator;
+    private ByteBuffer source;
+    private ByteBuffer patch;
+    private ByteBuffer target;
+    private PatchProgram program;
+    private File directory;
+    private File sourceFile;
+    private File patchFile;
+    private File targetFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Corpus corpus = Corpus.generate(edit, size);
+        source = ByteBuffer.wrap(corpus.source);
+        ByteBufferOutputStream out = new ByteBufferOutputStream(size);
+        if (creator.equals("linear")) {
+            new LinearCreator(source, ByteBuffer.wrap(corpus.target), out).create();
+        } else {
+            new BlockCreator(source, ByteBuffer.wrap(corpus.target), out).create();
+        }
+        patch = out.written();
+        target = ByteBuffer.allocateDirect(corpus.target.length);
+        program = PatchProgram.compile(patch);
+
+        directory = File.createTempFile("jbeat", "bench");
+        directory.delete();
+        directory.mkdir();
+        sourceFile = write(new File(directory, "source"), source);
+        patchFile = write(new File(directory, "patch"), patch);
+        targetFile = new File(directory, "target");
+    }
+
+    private static File write(File file, ByteBuffer data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.getChannel().write(data.duplicate());
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() {
+        sourceFile.delete();
+        patchFile.delete();
+        targetFile.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public void patcher(Throughput throughput) throws IOException {
+        new Patcher(patchFile, sourceFile, targetFile).patch();
+        throughput.add(target.capacity(), patch.remaining());
+    }
+
+    @Benchmark
+    public void parallel(Throughput throughput) throws IOException {
+        new Patcher(patchFile, sourceFile, targetFile).patch(ForkJoinPool.commonPool());
+        throughput.add(target.capacity(), patch.remaining());
+    }
+
+    @Benchmark
+    public ByteBuffer memory(Throughput throughput) throws IOException {
+        target.clear();
+        ByteBuffer out = Beat.apply(patch, source, target);
+        throughput.add(target.capacity(), patch.remaining());
+        return out;
+    }
+
+    @Benchmark
+    public ByteBuffer program(Throughput throughput) throws IOException {
+        target.clear();
+        ByteBuffer out = program.apply(source, target);
+        throughput.add(target.capacity(), patch.remaining());
+        return out;
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Patch creation speed of each creator, with the resulting patch size reported
+ * as a percentage of the target.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class CreateBenchmark {
+
+    @Param({"65536", "1048576", "16777216"})
+    public int size;
+    @Param({"RANDOM_EDITS", "BLOCK_MOVES", "INSERTIONS", "APPENDED", "RLE_RUNS", "DIFFERENT"})
+    public Corpus.Edit edit;
+    @Param({"linear", "delta", "block"})
+    public String creator;
+    private ByteBuffer source;
+    private ByteBuffer target;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Corpus corpus = Corpus.generate(edit, size);
+        source = ByteBuffer.wrap(corpus.source);
+        target = ByteBuffer.wrap(corpus.target);
+    }
+
+    @Benchmark
+    public long create(Throughput throughput, PatchRatio ratio) throws IOException {
+        Sink sink = new Sink();
+        PatchCreator patchCreator;
+        if (creator.equals("linear")) {
+            patchCreator = new LinearCreator(source, target, sink);
+        } else if (creator.equals("delta")) {
+            patchCreator = new DeltaCreator(source, target, sink);
+        } else {
+            patchCreator = new BlockCreator(source, target, sink);
+        }
+        patchCreator.create();
+        throughput.add(target.remaining(), sink.count);
+        ratio.set(target.remaining(), sink.count);
+        return sink.count;
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Speed of encoding and decoding the variable length numbers which make up
+ * every patch command, over a mixture of small lengths and large offsets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VarintBenchmark {
+
+    private static final int COUNT = 4096;
+    private final long[] values = new long[COUNT];
+    private PatchWriter writer;
+    private ByteBuffer encoded;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Random random = new Random(COUNT);
+        for (int i = 0; i < COUNT; i++) {
+            // mostly short commands, with the occasional long copy offset
+            values[i] = (random.nextInt(4) == 0) ? random.nextLong() >>> (1 + random.nextInt(63)) : random.nextInt(256);
+        }
+        writer = new PatchWriter(Channels.newChannel(new Sink()));
+        // a patch header followed by every value, as the reader expects
+        ByteBufferOutputStream out = new ByteBufferOutputStream(COUNT * 10);
+        PatchWriter encoder = new PatchWriter(Channels.newChannel(out));
+        encoder.header(0, 0, null);
+        for (long value : values) {
+            encoder.encode(value);
+        }
+        encoder.footer(0, 0);
+        encoded = out.written();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void encode() throws IOException {
+        for (long value : values) {
+            writer.encode(value);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public long decode() throws IOException {
+        PatchReader reader = new PatchReader(LargeBuffer.wrap(encoded));
+        long sum = 0;
+        for (int i = 0; i < COUNT; i++) {
+            sum += reader.decode();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Creation and application of beat patches held entirely in memory. These
+ * methods keep no state between calls, never modify the position or limit of
+ * their input buffers, and may be called from any number of threads at once,
+ * including on the same inputs. <p> Output buffers may be supplied by the
+ * caller, for example from a pool, in which case no memory proportional to the
+ * size of the data is allocated.
+ */
+public final class Beat {
+
+    private Beat() {
+    }
+
+    /**
+     * Read the size of the target a patch will produce, for sizing a buffer to
+     * pass to {@link #apply(ByteBuffer, ByteBuffer, ByteBuffer)}.
+     *
+     * @param patch the remaining bytes of which are a beat patch
+     * @return size of the target in bytes
+     * @throws IOException if the patch header is invalid
+     */
+    public static long targetSize(ByteBuffer patch) throws IOException {
+        return new PatchReader(LargeBuffer.wrap(patch)).targetSize;
+    }
+
+    /**
+     * Apply a patch to a source, returning the target in a newly allocated
+     * buffer.
+     *
+     * @param patch the remaining bytes of which are a beat patch
+     * @param source the remaining bytes of which are the patch source
+     * @return the patched target
+     * @throws IOException if the patch is invalid, or any checksum does not
+     * match
+     */
+    public static ByteBuffer apply(ByteBuffer patch, ByteBuffer source) throws IOException {
+        PatchReader reader = new PatchReader(LargeBuffer.wrap(patch));
+        if (reader.targetSize > Integer.MAX_VALUE) {
+            throw new IOException("Target is too large to be held in a single buffer!");
+        }
+        ByteBuffer target = ByteBuffer.allocate((int) reader.targetSize);
+        Patcher.apply(reader, LargeBuffer.wrap(source), LargeBuffer.wrap(target));
+        return target;
+    }
+
+    /**
+     * Apply a patch to a source, writing the target into a buffer supplied by
+     * the caller. The target is written starting at the position of the
+     * buffer, which is advanced past it.
+     *
+     * @param patch the remaining bytes of which are a beat patch
+     * @param source the remaining bytes of which are the patch source
+     * @param target buffer to receive the patched target
+     * @return a view of exactly the bytes of the target
+     * @throws BufferOverflowException if the target does not fit in the space
+     * remaining in the buffer
+     * @throws IOException if the patch is invalid, or any checksum does not
+     * match
+     */
+    public static ByteBuffer apply(ByteBuffer patch, ByteBuffer source, ByteBuffer target) throws IOException {
+        PatchReader reader = new PatchReader(LargeBuffer.wrap(patch));
+        if (reader.targetSize > target.remaining()) {
+            throw new BufferOverflowException();
+        }
+        ByteBuffer out = target.duplicate();
+        out.limit(out.position() + (int) reader.targetSize);
+        out = out.slice();
+        Patcher.apply(reader, LargeBuffer.wrap(source), LargeBuffer.wrap(out));
+        target.position(target.position() + out.limit());
+        return out;
+    }
+
+    /**
+     * Create a patch from a source to a target using {@link DeltaCreator}.
+     *
+     * @param source the remaining bytes of which are the original data
+     * @param target the remaining bytes of which are the modified data
+     * @return a buffer containing the patch
+     * @throws IOException if the patch cannot be created
+     */
+    public static ByteBuffer create(ByteBuffer source, ByteBuffer target) throws IOException {
+        return create(source, target, null);
+    }
+
+    /**
+     * Create a patch from a source to a target using {@link DeltaCreator}.
+     *
+     * @param source the remaining bytes of which are the original data
+     * @param target the remaining bytes of which are the modified data
+     * @param metadata to be stored in the patch, may be null
+     * @return a buffer containing the patch
+     * @throws IOException if the patch cannot be created
+     */
+    public static ByteBuffer create(ByteBuffer source, ByteBuffer target, String metadata) throws IOException {
+        ByteBufferOutputStream out = new ByteBufferOutputStream(target.remaining() / 4);
+        new DeltaCreator(source, target, out, metadata).create();
+        return out.written();
+    }
+
+    /**
+     * Create a patch from a source to a target using {@link DeltaCreator},
+     * writing it into a buffer supplied by the caller. The patch is written
+     * starting at the position of the buffer, which is advanced past it.
+     *
+     * @param source the remaining bytes of which are the original data
+     * @param target the remaining bytes of which are the modified data
+     * @param metadata to be stored in the patch, may be null
+     * @param patch buffer to receive the patch
+     * @return a view of exactly the bytes of the patch
+     * @throws BufferOverflowException if the patch does not fit in the space
+     * remaining in the buffer
+     * @throws IOException if the patch cannot be created
+     */
+    public static ByteBuffer create(ByteBuffer source, ByteBuffer target, String metadata, ByteBuffer patch) throws IOException {
+        ByteBufferOutputStream out = new ByteBufferOutputStream(patch);
+        new DeltaCreator(source, target, out, metadata).create();
+        return out.written();
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Creates delta patches by indexing fixed size blocks of the source and target
+ * with a rolling hash, in the style of rsync and xdelta. Every position of the
+ * target is looked up in the index, and candidate matches are extended byte by
+ * byte in both directions before being emitted as copies. <p> Creation runs in
+ * near linear time, and the indexes require at most {@code 8 / blockSize}
+ * bytes of memory per source and target byte, making this creator suitable
+ * for inputs too large for {@link DeltaCreator}, including those over 2GB.
+ * <p> Without target copies in its {@link CreatorOptions}, or once over the
+ * time budget, the target is no longer indexed and only the source is
+ * searched.
+ */
+public final class BlockCreator extends PatchCreator {
+
+    /**
+     * Default size of indexed blocks, requiring at most half a byte of memory
+     * per indexed byte.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 16;
+    /**
+     * Smallest block size, matches shorter than this are rarely worth the
+     * cost of a command.
+     */
+    private static final int MINIMUM_BLOCK_SIZE = 4;
+    /**
+     * Kind of persisted source index.
+     */
+    private static final int INDEX_KIND = 1;
+    /**
+     * Size of indexed blocks, and the window of the rolling hash.
+     */
+    private final int blockSize;
+    /**
+     * Index of the blocks of the source.
+     */
+    private BlockIndex sourceIndex;
+
+    public BlockCreator(File original, File modified, File output) throws FileNotFoundException {
+        this(original, modified, output, null);
+    }
+
+    public BlockCreator(File original, File modified, File output, String header) throws FileNotFoundException {
+        this(original, modified, output, header, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a new block matching patch creator.
+     *
+     * @param original file, which the patch applicator will have access to
+     * @param modified file which has been changed from the original
+     * @param output location to which the patch will be output
+     * @param header to be used as beat metadata
+     * @param blockSize size of the blocks indexed by the rolling hash, larger
+     * blocks use less memory at the cost of missing shorter matches
+     * @throws FileNotFoundException when one of the files cannot be opened for
+     * read or write access
+     */
+    public BlockCreator(File original, File modified, File output, String header, int blockSize) throws FileNotFoundException {
+        super(original, modified, output, header);
+        this.blockSize = checkBlockSize(blockSize);
+    }
+
+    public BlockCreator(File original, File modified, WritableByteChannel output, String header, int blockSize) throws FileNotFoundException {
+        super(original, modified, output, header);
+        this.blockSize = checkBlockSize(blockSize);
+    }
+
+    public BlockCreator(ByteBuffer original, ByteBuffer modified, OutputStream output) {
+        this(original, modified, output, null);
+    }
+
+    public BlockCreator(ByteBuffer original, ByteBuffer modified, OutputStream output, String header) {
+        this(original, modified, output, header, DEFAULT_BLOCK_SIZE);
+    }
+
+    public BlockCreator(ByteBuffer original, ByteBuffer modified, OutputStream output, String header, int blockSize) {
+        super(original, modified, output, header);
+        this.blockSize = checkBlockSize(blockSize);
+    }
+
+    public BlockCreator(ByteBuffer original, ByteBuffer modified, WritableByteChannel output, String header, int blockSize) {
+        super(original, modified, output, header);
+        this.blockSize = checkBlockSize(blockSize);
+    }
+
+    static int checkBlockSize(int blockSize) {
+        if (blockSize < MINIMUM_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be at least " + MINIMUM_BLOCK_SIZE);
+        }
+        return blockSize;
+    }
+
+    @Override
+    protected void index() throws IOException {
+        if (sourceLength / blockSize > Integer.MAX_VALUE || targetLength / blockSize > Integer.MAX_VALUE) {
+            throw new IOException("Too many blocks to index, increase the block size!");
+        }
+        LargeBuffer mapped = mapSourceIndex(INDEX_KIND, blockSize);
+        if (mapped != null) {
+            sourceIndex = new BlockIndex(mapped);
+            return;
+        }
+        sourceIndex = BlockMatcher.indexSource(source, sourceLength, blockSize);
+        writeSourceIndex(INDEX_KIND, blockSize, sourceIndex.slots());
+    }
+
+    @Override
+    protected void doPatch(long start, long end) throws IOException {
+        // target blocks are indexed from the start of the range, so that each
+        // range only needs an index of its own blocks
+        BlockIndex targetIndex = getOptions().isTargetCopies() ? new BlockIndex((int) ((end - start) / blockSize)) : null;
+        int firstBlock = (int) ((start + blockSize - 1) / blockSize);
+        BlockMatcher matcher = new BlockMatcher(source, sourceLength, target, targetLength, sourceIndex, targetIndex,
+                firstBlock, blockSize, getOptions().getMinimumMatch());
+        matcher.match(start, end, new BlockMatcher.Output() {
+            @Override
+            public void targetRead(long from, long to) {
+                BlockCreator.this.targetRead(to - from);
+            }
+
+            @Override
+            public void sourceRead(long offset, long length) throws IOException {
+                BlockCreator.this.sourceRead(length);
+            }
+
+            @Override
+            public void sourceCopy(long offset, long length) throws IOException {
+                BlockCreator.this.sourceCopy(offset, length);
+            }
+
+            @Override
+            public void targetCopy(long offset, long length) throws IOException {
+                BlockCreator.this.targetCopy(offset, length);
+            }
+
+            @Override
+            public boolean overBudget() {
+                return BlockCreator.this.overBudget();
+            }
+        });
+    }
+}
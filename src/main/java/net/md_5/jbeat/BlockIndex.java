@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.IOException;
+
+/**
+ * Fixed size hash table mapping block hashes to block numbers. Each slot holds
+ * a single block, with newer blocks replacing older ones on collision, so the
+ * table never grows beyond its initial size.
+ */
+final class BlockIndex {
+
+    /**
+     * Block number plus one for each slot, zero when empty.
+     */
+    private final int[] slots;
+    /**
+     * Slots of an index mapped from a file, when there is no array.
+     */
+    private final LargeBuffer mapped;
+    /**
+     * Right shift which reduces a mixed hash to a slot.
+     */
+    private final int shift;
+
+    /**
+     * Create an index large enough to hold the specified number of blocks.
+     * The table is sized to the next power of two, so it will never be larger
+     * than twice that number of slots.
+     */
+    BlockIndex(int blocks) {
+        int bits = 1;
+        while (bits < 31 && (1 << bits) < blocks) {
+            bits++;
+        }
+        this.slots = new int[1 << bits];
+        this.mapped = null;
+        this.shift = 32 - bits;
+    }
+
+    /**
+     * Use the slots of an index previously written to a file.
+     */
+    BlockIndex(LargeBuffer mapped) throws IOException {
+        long count = (mapped.length() - IndexFile.DATA) / 4;
+        if (Long.bitCount(count) != 1) {
+            throw new IOException("Block index is not a power of two in size!");
+        }
+        this.slots = null;
+        this.mapped = mapped;
+        this.shift = 32 - Long.numberOfTrailingZeros(count);
+    }
+
+    /**
+     * Get the slots of an index built in memory, so they may be written to a
+     * file.
+     */
+    int[] slots() {
+        return slots;
+    }
+
+    void put(int hash, int block) {
+        slots[slot(hash)] = block + 1;
+    }
+
+    /**
+     * Get the block most recently stored with the specified hash, or -1 if
+     * none exists. The block is only a candidate and must be verified.
+     */
+    int get(int hash) {
+        int slot = slot(hash);
+        return ((slots != null) ? slots[slot] : mapped.getInt(IndexFile.DATA + 4L * slot)) - 1;
+    }
+
+    private int slot(int hash) {
+        return (hash * 0x9E3779B1) >>> shift;
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.IOException;
+
+/**
+ * Describes ranges of a target with the copies found by looking up every
+ * position in rolling hash indexes of source and target blocks, extending
+ * each candidate byte by byte in both directions. Target blocks are indexed
+ * once the output has passed their start, so a matcher which describes
+ * ranges in order may copy from anywhere earlier in the target. Shared by
+ * {@link BlockCreator} and {@link PatchOptimizer}.
+ */
+final class BlockMatcher {
+
+    /**
+     * Multiplier of the polynomial rolling hash.
+     */
+    static final int PRIME = 0x01000193;
+
+    /**
+     * Receives the commands describing a range, in order.
+     */
+    interface Output {
+
+        /**
+         * Describe bytes {@code [start, end)} of the target as literal data.
+         * The range may be empty.
+         */
+        void targetRead(long start, long end) throws IOException;
+
+        /**
+         * Describe {@code length} bytes of the target starting at the offset
+         * as the bytes at the same offset of the source.
+         */
+        void sourceRead(long offset, long length) throws IOException;
+
+        void sourceCopy(long offset, long length) throws IOException;
+
+        void targetCopy(long offset, long length) throws IOException;
+
+        /**
+         * Whether the search for target copies should stop.
+         */
+        boolean overBudget();
+    }
+
+    private final LargeBuffer source, target;
+    private final long sourceLength, targetLength;
+    private final BlockIndex sourceIndex;
+    /**
+     * Index of the target blocks, or null when target copies are not wanted.
+     */
+    private final BlockIndex targetIndex;
+    /**
+     * Size of indexed blocks, and the window of the rolling hash.
+     */
+    private final int blockSize;
+    /**
+     * PRIME raised to the power of blockSize, for removing the byte which
+     * leaves the window.
+     */
+    private final int outFactor;
+    /**
+     * Matches shorter than this are described as literal data.
+     */
+    private final int minimumMatch;
+    /**
+     * Number of the next target block to be indexed.
+     */
+    private int targetBlocks;
+    private boolean targetCopies;
+
+    /**
+     * Create a matcher over a source and target. Target blocks are indexed
+     * starting with {@code firstBlock}, blocks before it cannot be copied.
+     */
+    BlockMatcher(LargeBuffer source, long sourceLength, LargeBuffer target, long targetLength, BlockIndex sourceIndex, BlockIndex targetIndex, int firstBlock, int blockSize, int minimumMatch) {
+        this.source = source;
+        this.sourceLength = sourceLength;
+        this.target = target;
+        this.targetLength = targetLength;
+        this.sourceIndex = sourceIndex;
+        this.targetIndex = targetIndex;
+        this.targetBlocks = firstBlock;
+        this.blockSize = blockSize;
+        this.outFactor = outFactor(blockSize);
+        this.minimumMatch = minimumMatch;
+        this.targetCopies = targetIndex != null;
+    }
+
+    /**
+     * Index every whole block of the first {@code length} bytes of a source.
+     */
+    static BlockIndex indexSource(LargeBuffer source, long length, int blockSize) {
+        int blocks = (int) (length / blockSize);
+        BlockIndex index = new BlockIndex(blocks);
+        for (int block = 0; block < blocks; block++) {
+            index.put(hash(source, (long) block * blockSize, blockSize), block);
+        }
+        return index;
+    }
+
+    /**
+     * Describe bytes {@code [start, end)} of the target.
+     */
+    void match(long start, long end, Output out) throws IOException {
+        // start of the bytes not yet described by a command
+        long pending = start;
+        long outputOffset = start;
+        int hash = 0;
+        boolean rolling = false;
+        while (outputOffset < end) {
+            // same position reads are the cheapest command available
+            long length = LargeBuffer.common(source, outputOffset, sourceLength, target, outputOffset, end);
+            if (length >= minimumMatch) {
+                out.targetRead(pending, outputOffset);
+                out.sourceRead(outputOffset, length);
+                outputOffset += length;
+                pending = outputOffset;
+                rolling = false;
+                continue;
+            }
+            if (targetCopies && out.overBudget()) {
+                targetCopies = false;
+            }
+            // runs of a single byte repeat the previous one
+            if (targetCopies && outputOffset > 0) {
+                length = LargeBuffer.common(target, outputOffset - 1, end, target, outputOffset, end);
+                if (length >= minimumMatch) {
+                    out.targetRead(pending, outputOffset);
+                    out.targetCopy(outputOffset - 1, length);
+                    outputOffset += length;
+                    pending = outputOffset;
+                    rolling = false;
+                    continue;
+                }
+            }
+            if (outputOffset + blockSize > end) {
+                outputOffset++;
+                continue;
+            }
+            if (rolling) {
+                hash = hash * PRIME + (target.get(outputOffset + blockSize - 1) & 0xFF)
+                        - outFactor * (target.get(outputOffset - 1) & 0xFF);
+            } else {
+                hash = hash(target, outputOffset, blockSize);
+                rolling = true;
+            }
+            // target blocks may be copied once output has passed their start
+            while (targetCopies && (long) targetBlocks * blockSize < outputOffset && (long) (targetBlocks + 1) * blockSize <= targetLength) {
+                targetIndex.put(hash(target, (long) targetBlocks * blockSize, blockSize), targetBlocks);
+                targetBlocks++;
+            }
+
+            int sourceBlock = sourceIndex.get(hash);
+            long sourceStart = (long) sourceBlock * blockSize;
+            long sourceMatch = (sourceBlock < 0) ? 0 : LargeBuffer.common(source, sourceStart, sourceLength, target, outputOffset, end);
+            int targetBlock = targetCopies ? targetIndex.get(hash) : -1;
+            long targetStart = (long) targetBlock * blockSize;
+            long targetMatch = (targetBlock < 0) ? 0 : LargeBuffer.common(target, targetStart, targetLength, target, outputOffset, end);
+            if (targetMatch >= minimumMatch && targetMatch > sourceMatch) {
+                long back = extendBack(target, targetStart, outputOffset, pending);
+                out.targetRead(pending, outputOffset - back);
+                out.targetCopy(targetStart - back, targetMatch + back);
+                outputOffset += targetMatch;
+                pending = outputOffset;
+                rolling = false;
+            } else if (sourceMatch >= minimumMatch) {
+                long back = extendBack(source, sourceStart, outputOffset, pending);
+                out.targetRead(pending, outputOffset - back);
+                out.sourceCopy(sourceStart - back, sourceMatch + back);
+                outputOffset += sourceMatch;
+                pending = outputOffset;
+                rolling = false;
+            } else {
+                outputOffset++;
+            }
+        }
+        out.targetRead(pending, outputOffset);
+    }
+
+    /**
+     * Count how many bytes of pending literal data before the output offset
+     * also match the bytes before the start of a copy.
+     */
+    private long extendBack(LargeBuffer data, long start, long outputOffset, long pending) {
+        long back = 0;
+        while (back < start && outputOffset - back > pending
+                && data.get(start - back - 1) == target.get(outputOffset - back - 1)) {
+            back++;
+        }
+        return back;
+    }
+
+    static int outFactor(int blockSize) {
+        int factor = 1;
+        for (int i = 0; i < blockSize; i++) {
+            factor *= PRIME;
+        }
+        return factor;
+    }
+
+    /**
+     * Hash a single block of the specified size, for the first window of the
+     * rolling hash.
+     */
+    static int hash(LargeBuffer data, long offset, int blockSize) {
+        int hash = 0;
+        for (int i = 0; i < blockSize; i++) {
+            hash = hash * PRIME + (data.get(offset + i) & 0xFF);
+        }
+        return hash;
+    }
+}
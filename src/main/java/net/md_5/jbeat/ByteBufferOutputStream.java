@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Output stream which writes into a ByteBuffer. If the stream was given a
+ * buffer by the caller it will never grow, and overflowing it will throw a
+ * {@link BufferOverflowException}, otherwise it grows as required.
+ */
+final class ByteBufferOutputStream extends OutputStream {
+
+    private ByteBuffer buffer;
+    /**
+     * Position in the buffer at which output began.
+     */
+    private final int start;
+    private final boolean growable;
+
+    /**
+     * Write into a buffer provided by the caller, starting at its position.
+     */
+    ByteBufferOutputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.start = buffer.position();
+        this.growable = false;
+    }
+
+    /**
+     * Write into a growable buffer of the specified initial capacity.
+     */
+    ByteBufferOutputStream(int capacity) {
+        this.buffer = ByteBuffer.allocate(Math.max(capacity, 16));
+        this.start = 0;
+        this.growable = true;
+    }
+
+    @Override
+    public void write(int b) {
+        ensure(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensure(len);
+        buffer.put(b, off, len);
+    }
+
+    private void ensure(int length) {
+        if (buffer.remaining() < length) {
+            if (!growable) {
+                throw new BufferOverflowException();
+            }
+            long capacity = Math.max((long) buffer.capacity() * 2, (long) buffer.position() + length);
+            if (capacity > Integer.MAX_VALUE) {
+                throw new BufferOverflowException();
+            }
+            ByteBuffer grown = ByteBuffer.allocate((int) capacity);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+
+    /**
+     * Get a view of everything written so far.
+     */
+    ByteBuffer written() {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(view.position());
+        view.position(start);
+        return view.slice();
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Size bounded, least recently used cache of the checksums of local files, so
+ * that checking many patches against the same source only reads it once. An
+ * entry is keyed by the canonical path of the file and the number of leading
+ * bytes checksummed, and is only used whilst the size and modification time of
+ * the file are unchanged. This class is safe for use by multiple threads.
+ */
+public final class ChecksumCache {
+
+    /**
+     * Maximum number of checksums to hold.
+     */
+    private final int capacity;
+    /**
+     * Checksums by file and checked length, in order of least recent use.
+     */
+    private final LinkedHashMap<String, Checked> checksums;
+
+    /**
+     * Create a new cache.
+     *
+     * @param capacity maximum number of checksums to keep
+     */
+    public ChecksumCache(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        this.checksums = new LinkedHashMap<String, Checked>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Checked> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the CRC32 of the first {@code length} bytes of a file, reading them
+     * only if the file has changed since they were last checksummed.
+     *
+     * @param file the file to checksum
+     * @param length number of leading bytes to checksum, which must not exceed
+     * the size of the file
+     * @return the checksum
+     * @throws IOException if the file cannot be read, or is too short
+     */
+    public long checksum(File file, long length) throws IOException {
+        String key = file.getCanonicalPath() + '\0' + length;
+        long size = file.length();
+        long modified = file.lastModified();
+        Checked entry = lookup(key);
+        if (entry != null && entry.size == size && entry.modified == modified) {
+            return entry.checksum;
+        }
+        long checksum = checksum(file, length, new CRC32());
+        store(key, new Checked(size, modified, checksum));
+        return checksum;
+    }
+
+    /**
+     * Read and checksum the first {@code length} bytes of a file.
+     */
+    static long checksum(File file, long length, CRC32 crc) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() < length) {
+                throw new IOException("File is smaller than the length to checksum!");
+            }
+            LargeBuffer data = LargeBuffer.map(in.getChannel(), FileChannel.MapMode.READ_ONLY, length);
+            data.update(crc, 0, length);
+            return crc.getValue();
+        } finally {
+            in.close();
+        }
+    }
+
+    private synchronized Checked lookup(String key) {
+        return checksums.get(key);
+    }
+
+    private synchronized void store(String key, Checked entry) {
+        checksums.put(key, entry);
+    }
+
+    public synchronized int size() {
+        return checksums.size();
+    }
+
+    public synchronized void clear() {
+        checksums.clear();
+    }
+
+    private static final class Checked {
+
+        /**
+         * Size and modification time of the file when it was checksummed.
+         */
+        final long size, modified;
+        final long checksum;
+
+        Checked(long size, long modified, long checksum) {
+            this.size = size;
+            this.modified = modified;
+            this.checksum = checksum;
+        }
+    }
+}
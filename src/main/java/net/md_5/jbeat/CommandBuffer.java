@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.util.Arrays;
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * Commands describing one segment of a target, recorded with absolute offsets
+ * so that they may be created independently of the segments before them and
+ * encoded once those are complete.
+ */
+final class CommandBuffer {
+
+    /**
+     * Number of commands recorded.
+     */
+    int count;
+    /**
+     * Mode of each command.
+     */
+    byte[] modes = new byte[256];
+    /**
+     * Number of bytes written by each command.
+     */
+    long[] lengths = new long[256];
+    /**
+     * Absolute offset of the first byte copied by each copy command.
+     */
+    long[] offsets = new long[256];
+
+    /**
+     * Record a command. Consecutive target reads are merged into one.
+     */
+    void add(long mode, long offset, long length) {
+        if (length == 0) {
+            return;
+        }
+        if (mode == TARGET_READ && count > 0 && modes[count - 1] == TARGET_READ) {
+            lengths[count - 1] += length;
+            return;
+        }
+        if (count == modes.length) {
+            modes = Arrays.copyOf(modes, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+            offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        modes[count] = (byte) mode;
+        lengths[count] = length;
+        offsets[count] = offset;
+        count++;
+    }
+}
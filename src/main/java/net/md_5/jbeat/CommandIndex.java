@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.IOException;
+import java.util.Arrays;
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * Every command of a patch decoded into primitive arrays, with all relative
+ * offsets resolved to absolute ones. Building the index is a single pass over
+ * the varints of the patch which skips all target read payloads, after which
+ * the commands may be executed in any order which respects the dependencies of
+ * target copies.
+ */
+final class CommandIndex {
+
+    /**
+     * Number of commands in the patch.
+     */
+    int count;
+    /**
+     * Mode of each command.
+     */
+    byte[] modes = new byte[1024];
+    /**
+     * Offset in the target of the first byte written by each command.
+     */
+    long[] targetOffsets = new long[1024];
+    /**
+     * Number of bytes written by each command.
+     */
+    long[] lengths = new long[1024];
+    /**
+     * Absolute offset of the first byte read by each command. For source reads
+     * and copies this is within the source, for target reads it is within the
+     * patch, and for target copies it is within the target.
+     */
+    long[] offsets = new long[1024];
+
+    /**
+     * Index all commands of a patch whose header has been read, validating
+     * that every command reads and writes within the bounds of its data.
+     */
+    CommandIndex(PatchReader patch) throws IOException {
+        long sourceOffset = 0, targetOffset = 0, outputOffset = 0;
+        while (patch.offset() < patch.commandsEnd()) {
+            long data = patch.decode();
+            int mode = (int) (data & 3);
+            long length = (data >> 2) + 1;
+            long offset;
+            if (mode == SOURCE_READ) {
+                offset = outputOffset;
+            } else if (mode == TARGET_READ) {
+                offset = patch.offset();
+                patch.skip(length);
+            } else {
+                data = patch.decode();
+                long relative = (((data & 1) != 0) ? -1 : 1) * (data >> 1);
+                if (mode == SOURCE_COPY) {
+                    sourceOffset += relative;
+                    offset = sourceOffset;
+                    sourceOffset += length;
+                } else {
+                    targetOffset += relative;
+                    offset = targetOffset;
+                    targetOffset += length;
+                    if (offset < 0 || offset >= outputOffset) {
+                        throw new IOException("Target copy does not read from already written target!");
+                    }
+                }
+            }
+            if (outputOffset + length > patch.targetSize) {
+                throw new IOException("Patch writes past the end of the target!");
+            }
+            if ((mode == SOURCE_READ || mode == SOURCE_COPY) && (offset < 0 || offset + length > patch.sourceSize)) {
+                throw new IOException("Patch reads past the end of the source!");
+            }
+            if (mode == TARGET_READ && patch.offset() > patch.commandsEnd()) {
+                throw new IOException("Target read runs past the end of the patch!");
+            }
+            add(mode, outputOffset, length, offset);
+            outputOffset += length;
+        }
+        // the last command may not run into the checksums
+        if (patch.offset() > patch.commandsEnd()) {
+            throw new IOException("Patch commands run past the checksums!");
+        }
+        // release the unused capacity
+        modes = Arrays.copyOf(modes, count);
+        targetOffsets = Arrays.copyOf(targetOffsets, count);
+        lengths = Arrays.copyOf(lengths, count);
+        offsets = Arrays.copyOf(offsets, count);
+    }
+
+    private void add(int mode, long targetOffset, long length, long offset) {
+        if (count == modes.length) {
+            int capacity = Math.max(count * 2, 1024);
+            modes = Arrays.copyOf(modes, capacity);
+            targetOffsets = Arrays.copyOf(targetOffsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+        }
+        modes[count] = (byte) mode;
+        targetOffsets[count] = targetOffset;
+        lengths[count] = length;
+        offsets[count] = offset;
+        count++;
+    }
+
+    /**
+     * Find the command which writes the specified offset of the target.
+     */
+    int find(long targetOffset) {
+        int lo = 0, hi = count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (targetOffsets[mid] <= targetOffset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * Writes commands described in absolute terms to a patch, merging them where
+ * possible. Contiguous copies become one copy, source copies from the same
+ * offset as their output become source reads, and neighbouring pieces of
+ * literal data, even from different buffers, become one target read.
+ */
+final class CommandMerger {
+
+    /**
+     * No copy is pending.
+     */
+    private static final int NONE = -1;
+    private final PatchWriter writer;
+    /**
+     * Number of bytes of the target which have been described, including
+     * everything pending.
+     */
+    private long outputOffset;
+    /**
+     * Copy waiting to be written, so that contiguous copies can be merged.
+     * Source reads are held as source copies until written.
+     */
+    private long pendingMode = NONE, pendingStart, pendingOffset, pendingLength;
+    /**
+     * Literal data waiting to be written as a single target read, as the
+     * buffer, offset and length of each piece.
+     */
+    private final List<LargeBuffer> literalData = new ArrayList<LargeBuffer>();
+    private final List<long[]> literalRanges = new ArrayList<long[]>();
+    private long literalLength;
+
+    CommandMerger(PatchWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Get the number of bytes of the target described so far.
+     */
+    long outputOffset() {
+        return outputOffset;
+    }
+
+    /**
+     * Describe the next {@code length} bytes of the target as literal data.
+     */
+    void literal(LargeBuffer data, long offset, long length) throws IOException {
+        flushCopy();
+        literalData.add(data);
+        literalRanges.add(new long[]{offset, length});
+        literalLength += length;
+        outputOffset += length;
+    }
+
+    /**
+     * Describe the next {@code length} bytes of the target as a copy from the
+     * source or target, merging it with the pending copy if they are
+     * contiguous. Source reads are given as source copies.
+     */
+    void copy(long mode, long offset, long length) throws IOException {
+        flushLiterals();
+        if (pendingMode == mode && pendingOffset + pendingLength == offset) {
+            pendingLength += length;
+        } else {
+            flushCopy();
+            pendingMode = mode;
+            pendingStart = outputOffset;
+            pendingOffset = offset;
+            pendingLength = length;
+        }
+        outputOffset += length;
+    }
+
+    /**
+     * Write everything which is pending.
+     */
+    void flush() throws IOException {
+        flushCopy();
+        flushLiterals();
+    }
+
+    private void flushCopy() throws IOException {
+        if (pendingMode == SOURCE_COPY) {
+            if (pendingOffset == pendingStart) {
+                writer.sourceRead(pendingLength);
+            } else {
+                writer.sourceCopy(pendingOffset, pendingLength);
+            }
+        } else if (pendingMode == TARGET_COPY) {
+            writer.targetCopy(pendingOffset, pendingLength);
+        }
+        pendingMode = NONE;
+    }
+
+    private void flushLiterals() throws IOException {
+        if (literalLength != 0) {
+            writer.targetRead(literalLength);
+            for (int i = 0; i < literalData.size(); i++) {
+                long[] range = literalRanges.get(i);
+                writer.write(literalData.get(i), range[0], range[1]);
+            }
+            literalData.clear();
+            literalRanges.clear();
+            literalLength = 0;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+/**
+ * Settings trading the speed of patch creation against the size of the
+ * patches created, in the manner of compression levels. A level sets every
+ * setting at once, after which each may be adjusted on its own. Creators
+ * which have no use for a setting ignore it. <p> An optional time budget may
+ * also be set. Once creation has run for longer than the budget, creators fall
+ * back to their cheapest matching for the rest of the target, so a patch is
+ * always produced, if a larger one.
+ */
+public final class CreatorOptions {
+
+    /**
+     * Level creating patches as quickly as possible.
+     */
+    public static final int FASTEST = 1;
+    /**
+     * Level used when none is specified.
+     */
+    public static final int DEFAULT_LEVEL = 5;
+    /**
+     * Level creating the smallest patches.
+     */
+    public static final int SMALLEST = 9;
+    /**
+     * Settings of each level, as columns of minimum match, search depth,
+     * candidates and whether to search for target copies, the last being 1
+     * for true. The default level matches the behaviour of the creators before
+     * they had options. Each level is at least as thorough as the one below
+     * it in every column, so that a higher level never searches less: the
+     * minimum match never rises, and the higher levels only add search depth
+     * and candidates, which the {@link DeltaCreator} uses to find longer and
+     * closer matches. The other creators ignore those columns, and produce the
+     * same patches at every level from the default up.
+     */
+    private static final int[][] LEVELS = {
+        {8, 0, 1, 0},
+        {6, 0, 1, 0},
+        {6, 0, 1, 1},
+        {5, 0, 1, 1},
+        {4, 0, 1, 1},
+        {4, 1, 2, 1},
+        {4, 1, 4, 1},
+        {4, 2, 8, 1},
+        {4, 4, 16, 1}
+    };
+    private int minimumMatch;
+    private int searchDepth;
+    private int candidates;
+    private boolean targetCopies;
+    /**
+     * Wall clock budget in milliseconds, or zero for none.
+     */
+    private long timeBudget;
+
+    /**
+     * Create options for the default level.
+     */
+    public CreatorOptions() {
+        this(DEFAULT_LEVEL);
+    }
+
+    /**
+     * Create options for the specified level.
+     *
+     * @param level from {@link #FASTEST} to {@link #SMALLEST}
+     */
+    public CreatorOptions(int level) {
+        if (level < FASTEST || level > SMALLEST) {
+            throw new IllegalArgumentException("Level must be between " + FASTEST + " and " + SMALLEST);
+        }
+        int[] settings = LEVELS[level - 1];
+        this.minimumMatch = settings[0];
+        this.searchDepth = settings[1];
+        this.candidates = settings[2];
+        this.targetCopies = settings[3] != 0;
+    }
+
+    public int getMinimumMatch() {
+        return minimumMatch;
+    }
+
+    /**
+     * Set the length below which matches are not worth the cost of a command
+     * and the bytes are instead included in the patch.
+     *
+     * @param minimumMatch the shortest match to use, at least 1
+     */
+    public void setMinimumMatch(int minimumMatch) {
+        if (minimumMatch < 1) {
+            throw new IllegalArgumentException("Minimum match must be at least 1");
+        }
+        this.minimumMatch = minimumMatch;
+    }
+
+    public int getSearchDepth() {
+        return searchDepth;
+    }
+
+    /**
+     * Set how many of the following positions are searched for a longer match
+     * before a match is taken. Where one is found, the bytes before it are
+     * included in the patch and the longer match is taken instead.
+     *
+     * @param searchDepth number of positions to search ahead, zero to take
+     * every match as soon as it is found
+     */
+    public void setSearchDepth(int searchDepth) {
+        if (searchDepth < 0) {
+            throw new IllegalArgumentException("Search depth must not be negative");
+        }
+        this.searchDepth = searchDepth;
+    }
+
+    public int getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * Set how many matches of the longest length found are compared, in each
+     * direction of the index, to choose the one closest to the previous copy,
+     * whose relative offset is cheapest to encode.
+     *
+     * @param candidates number of matches to compare, at least 1
+     */
+    public void setCandidates(int candidates) {
+        if (candidates < 1) {
+            throw new IllegalArgumentException("Candidates must be at least 1");
+        }
+        this.candidates = candidates;
+    }
+
+    public boolean isTargetCopies() {
+        return targetCopies;
+    }
+
+    /**
+     * Set whether earlier parts of the target are searched for copies, in
+     * addition to the source. Without them repeated runs and data are
+     * included in the patch as is, but less indexing is required.
+     *
+     * @param targetCopies whether to search for target copies
+     */
+    public void setTargetCopies(boolean targetCopies) {
+        this.targetCopies = targetCopies;
+    }
+
+    public long getTimeBudget() {
+        return timeBudget;
+    }
+
+    /**
+     * Set the wall clock time after which the cheapest matching is used for
+     * the remainder of the target.
+     *
+     * @param timeBudget the budget in milliseconds, or zero for none
+     */
+    public void setTimeBudget(long timeBudget) {
+        if (timeBudget < 0) {
+            throw new IllegalArgumentException("Time budget must not be negative");
+        }
+        this.timeBudget = timeBudget;
+    }
+}
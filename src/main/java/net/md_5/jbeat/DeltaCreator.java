@@ -0,0 +1,218 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * Creates delta patches using suffix arrays over the source and target. At
+ * each position of the target the longest match available from any of
+ * SOURCE_READ, SOURCE_COPY or TARGET_COPY is taken, falling back to
+ * TARGET_READ where none are long enough to be worthwhile. <p> Patches are
+ * considerably smaller than those of {@link LinearCreator}, however roughly
+ * 4 bytes of memory per source byte and 8 bytes per target byte are required
+ * for the indexes, and neither file may exceed 2GB. <p> Without target copies
+ * in its {@link CreatorOptions} the target is not indexed, saving most of the
+ * time and memory. Once over the time budget only the longest match at each
+ * position is looked for.
+ */
+public final class DeltaCreator extends PatchCreator {
+
+    /**
+     * Kind of persisted source index.
+     */
+    private static final int INDEX_KIND = 2;
+    /**
+     * Index of the source for copies.
+     */
+    private SuffixArray sourceIndex;
+    /**
+     * For each position of the target, the earlier positions whose suffixes
+     * are the closest smaller and larger in sorted order, or -1 for none.
+     */
+    private int[] smaller, larger;
+
+    public DeltaCreator(File original, File modified, File output) throws FileNotFoundException {
+        super(original, modified, output);
+    }
+
+    public DeltaCreator(File original, File modified, File output, String header) throws FileNotFoundException {
+        super(original, modified, output, header);
+    }
+
+    public DeltaCreator(File original, File modified, WritableByteChannel output, String header) throws FileNotFoundException {
+        super(original, modified, output, header);
+    }
+
+    public DeltaCreator(ByteBuffer original, ByteBuffer modified, OutputStream output) {
+        super(original, modified, output, null);
+    }
+
+    public DeltaCreator(ByteBuffer original, ByteBuffer modified, OutputStream output, String header) {
+        super(original, modified, output, header);
+    }
+
+    public DeltaCreator(ByteBuffer original, ByteBuffer modified, WritableByteChannel output, String header) {
+        super(original, modified, output, header);
+    }
+
+    @Override
+    protected void index() throws IOException {
+        if (sourceLength > Integer.MAX_VALUE || targetLength > Integer.MAX_VALUE) {
+            throw new IOException("DeltaCreator cannot index files larger than 2GB, use BlockCreator instead!");
+        }
+        int targetSize = (int) targetLength;
+        // index the source for copies
+        LargeBuffer mapped = mapSourceIndex(INDEX_KIND, 0);
+        if (mapped != null) {
+            sourceIndex = new SuffixArray(source, (int) sourceLength, mapped);
+        } else {
+            sourceIndex = new SuffixArray(source, (int) sourceLength);
+            writeSourceIndex(INDEX_KIND, 0, sourceIndex.suffixes());
+        }
+        if (!getOptions().isTargetCopies()) {
+            return;
+        }
+        // index the target for back references
+        smaller = new int[targetSize];
+        larger = new int[targetSize];
+        SuffixArray.previous(SuffixArray.sort(target, targetSize), smaller, larger);
+    }
+
+    @Override
+    protected void doPatch(long start, long end) throws IOException {
+        CreatorOptions options = getOptions();
+        int minimumMatch = options.getMinimumMatch();
+        int segmentEnd = (int) end;
+        int outputOffset = (int) start;
+        // where the previous copies of each kind ended, which their next
+        // offsets are encoded relative to
+        int sourceNear = 0, targetNear = 0;
+        Match match = new Match(), next = new Match();
+        while (outputOffset < segmentEnd) {
+            boolean cheap = overBudget();
+            int candidates = cheap ? 1 : options.getCandidates();
+            int depth = cheap ? 0 : options.getSearchDepth();
+            find(outputOffset, segmentEnd, candidates, sourceNear, targetNear, match);
+            // a longer match shortly after is worth the bytes before it
+            int skip = 0;
+            for (int ahead = 1; ahead <= depth && match.length >= minimumMatch && outputOffset + ahead < segmentEnd; ahead++) {
+                find(outputOffset + ahead, segmentEnd, candidates, sourceNear, targetNear, next);
+                if (next.length > match.length) {
+                    Match swap = match;
+                    match = next;
+                    next = swap;
+                    skip = ahead;
+                }
+            }
+
+            if (match.length < minimumMatch) {
+                targetRead(1);
+                outputOffset++;
+                continue;
+            }
+            if (skip > 0) {
+                targetRead(skip);
+                outputOffset += skip;
+            }
+            if (match.mode == SOURCE_READ) {
+                sourceRead(match.length);
+            } else if (match.mode == SOURCE_COPY) {
+                sourceCopy(match.offset, match.length);
+                sourceNear = match.offset + match.length;
+            } else {
+                targetCopy(match.offset, match.length);
+                targetNear = match.offset + match.length;
+            }
+            outputOffset += match.length;
+        }
+    }
+
+    /**
+     * Find the longest match available at a position of the target. Of
+     * matches of the same length and kind, the one closest to where the
+     * previous copy of that kind ended is preferred.
+     */
+    private void find(int outputOffset, int segmentEnd, int candidates, int sourceNear, int targetNear, Match match) {
+        int sourceSize = (int) sourceLength;
+        int targetSize = (int) targetLength;
+        match.mode = SOURCE_READ;
+        match.length = (int) LargeBuffer.common(source, outputOffset, sourceSize, target, outputOffset, segmentEnd);
+        match.offset = 0;
+
+        long found = sourceIndex.find(target, outputOffset, segmentEnd, candidates, sourceNear);
+        int length = (int) found;
+        if (length > match.length) {
+            match.mode = SOURCE_COPY;
+            match.length = length;
+            match.offset = (int) (found >>> 32);
+        }
+
+        if (smaller != null) {
+            findTarget(smaller, outputOffset, segmentEnd, targetSize, candidates, targetNear, match);
+            findTarget(larger, outputOffset, segmentEnd, targetSize, candidates, targetNear, match);
+        }
+    }
+
+    /**
+     * Follow one chain of earlier lexicographical neighbours looking for a
+     * target copy. The first neighbour always has the longest match of the
+     * chain, the rest can only be closer.
+     */
+    private void findTarget(int[] chain, int outputOffset, int segmentEnd, int targetSize, int candidates, int targetNear, Match match) {
+        int candidate = chain[outputOffset];
+        for (int i = 0; i < candidates && candidate >= 0; i++, candidate = chain[candidate]) {
+            int length = (int) LargeBuffer.common(target, candidate, targetSize, target, outputOffset, segmentEnd);
+            if (length > match.length || (candidates > 1 && length == match.length && match.mode == TARGET_COPY
+                    && Math.abs(candidate - targetNear) < Math.abs(match.offset - targetNear))) {
+                match.mode = TARGET_COPY;
+                match.length = length;
+                match.offset = candidate;
+            } else if (length < match.length) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * The best match found at a position.
+     */
+    private static final class Match {
+
+        private long mode;
+        private int length;
+        private int offset;
+    }
+}
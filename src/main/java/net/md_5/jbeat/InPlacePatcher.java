@@ -0,0 +1,419 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * Applies a beat patch directly to the source file, so that it becomes the
+ * target without a second copy of the file ever existing. Source reads are
+ * already in place and cost nothing, and only target reads and copies are
+ * written. <p> As the target is written from front to back, a source copy
+ * which reads from before its own output would read bytes an earlier command
+ * has already overwritten. Before anything is written every such range is
+ * found and saved to a scratch buffer in memory. If the ranges do not fit
+ * within the scratch budget the patch is instead applied in copy mode, to a
+ * temporary file which then replaces the source. <p> The checksums of the
+ * patch and source are verified before the file is modified, however should
+ * the target checksum not match once it has been written the file is left in
+ * an unknown state.
+ */
+public final class InPlacePatcher {
+
+    /**
+     * Default number of bytes which may be held in memory to patch in place.
+     */
+    public static final int DEFAULT_SCRATCH_BUDGET = 64 * 1024 * 1024;
+    /**
+     * Number of bytes processed between updates of the running checksum.
+     */
+    private static final int CHECKSUM_CHUNK = 64 * 1024;
+    /**
+     * Size of the buffer through which overlapping source copies are moved.
+     */
+    private static final int MOVE_CHUNK = 1024 * 1024;
+    /**
+     * The patch which we will get our instructions from.
+     */
+    private final File patchFile;
+    /**
+     * The source file, which will be replaced by the target.
+     */
+    private final File file;
+    /**
+     * Most bytes of the source which may be saved in memory.
+     */
+    private final int scratchBudget;
+    /**
+     * Statistics of the most recent application.
+     */
+    private final PatchStatistics statistics = new PatchStatistics();
+    /**
+     * Listener to notify of progress, or null.
+     */
+    private PatchListener listener;
+
+    /**
+     * Create a new in place patcher with the default scratch budget.
+     *
+     * @param patchFile the beat format patch file
+     * @param file the file from which the patch was created, which will be
+     * patched
+     */
+    public InPlacePatcher(File patchFile, File file) {
+        this(patchFile, file, DEFAULT_SCRATCH_BUDGET);
+    }
+
+    /**
+     * Create a new in place patcher. In order to complete the patch process
+     * {@link #patch()} method must be called.
+     *
+     * @param patchFile the beat format patch file
+     * @param file the file from which the patch was created, which will be
+     * patched
+     * @param scratchBudget most bytes of the source which may be held in
+     * memory to patch in place, or zero to only patch in place when no bytes
+     * need saving
+     */
+    public InPlacePatcher(File patchFile, File file, int scratchBudget) {
+        if (scratchBudget < 0) {
+            throw new IllegalArgumentException("Scratch budget must not be negative");
+        }
+        this.patchFile = patchFile;
+        this.file = file;
+        this.scratchBudget = scratchBudget;
+    }
+
+    /**
+     * Set the listener to be notified as the patch is applied.
+     *
+     * @param listener the listener, or null for none
+     */
+    public void setListener(PatchListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Get the statistics gathered whilst applying the patch, including its
+     * metadata. They are complete once {@link #patch()} has returned.
+     */
+    public PatchStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Patch the file, in place if the scratch budget allows and otherwise in
+     * copy mode.
+     *
+     * @return true if the file was patched in place, false if copy mode was
+     * required
+     * @throws IOException if the patch is invalid, it was not created from the
+     * file, or the patched file does not match the target checksum
+     */
+    public boolean patch() throws IOException {
+        long start = System.nanoTime();
+        PatchProgram program = PatchProgram.compile(patchFile);
+        statistics.patchChecksumNanos = System.nanoTime() - start;
+        Scratch scratch = new Scratch(program.commands());
+        if (scratch.size > scratchBudget) {
+            copy(program);
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = raf.length();
+            if (length < program.getSourceSize()) {
+                throw new IOException("Source is smaller than the patch expects!");
+            }
+            start = System.nanoTime();
+            LargeBuffer source = LargeBuffer.map(raf.getChannel(), FileChannel.MapMode.READ_ONLY, program.getSourceSize());
+            statistics.mapNanos = System.nanoTime() - start;
+            statistics.header(program.getSourceSize(), program.getTargetSize(), program.getMetadata());
+            if (listener != null) {
+                listener.started(program.getSourceSize(), program.getTargetSize(), program.getMetadata());
+            }
+            // nothing may be written until we know this is the right file
+            start = System.nanoTime();
+            CRC32 crc = new CRC32();
+            source.update(crc, 0, program.getSourceSize());
+            statistics.sourceChecksumNanos = System.nanoTime() - start;
+            if (crc.getValue() != program.getSourceChecksum()) {
+                throw new IOException("Source checksum does not match!");
+            }
+            scratch.save(source);
+            // grow the file to hold the target, then write it over the source
+            start = System.nanoTime();
+            raf.setLength(Math.max(length, program.getTargetSize()));
+            // the source remains readable past the end of a smaller target
+            LargeBuffer target = LargeBuffer.map(raf.getChannel(), FileChannel.MapMode.READ_WRITE, Math.max(program.getSourceSize(), program.getTargetSize()));
+            statistics.mapNanos += System.nanoTime() - start;
+            if (execute(program, target, scratch) != program.getTargetChecksum()) {
+                throw new IOException("Target checksum does not match!");
+            }
+            raf.setLength(program.getTargetSize());
+        } finally {
+            raf.close();
+        }
+        if (listener != null) {
+            listener.finished(statistics);
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of bytes of its source which must be held in memory to
+     * apply a patch in place.
+     *
+     * @param program the compiled patch
+     * @return the scratch budget required to apply the patch in place
+     */
+    public static long scratchRequired(PatchProgram program) {
+        return new Scratch(program.commands()).size;
+    }
+
+    /**
+     * Apply the patch to a temporary file alongside the source, which then
+     * replaces it.
+     */
+    private void copy(PatchProgram program) throws IOException {
+        File temp = tempFile(file);
+        try {
+            RandomAccessFile sourceFile = new RandomAccessFile(file, "r");
+            RandomAccessFile targetFile = new RandomAccessFile(temp, "rw");
+            try {
+                long start = System.nanoTime();
+                LargeBuffer source = LargeBuffer.map(sourceFile.getChannel(), FileChannel.MapMode.READ_ONLY, Math.min(program.getSourceSize(), sourceFile.length()));
+                statistics.mapNanos = System.nanoTime() - start;
+                program.apply(source, targetFile, null, statistics, listener);
+            } finally {
+                sourceFile.close();
+                targetFile.close();
+            }
+            replace(temp, file);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Execute every command in order over the source, returning the checksum
+     * of the target which was computed as it was written.
+     */
+    private long execute(PatchProgram program, LargeBuffer target, Scratch scratch) {
+        CommandIndex commands = program.commands();
+        LargeBuffer patch = program.patch();
+        LargeBuffer bounce = LargeBuffer.wrap(ByteBuffer.allocateDirect(MOVE_CHUNK));
+        long targetSize = program.getTargetSize();
+        CRC32 crc = new CRC32();
+        long checked = 0, reported = 0, checksumNanos = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < commands.count; i++) {
+            int mode = commands.modes[i];
+            long outputOffset = commands.targetOffsets[i];
+            long offset = commands.offsets[i];
+            long length = commands.lengths[i];
+            statistics.command(mode, length);
+            // source reads are already where they belong
+            if (mode == TARGET_READ) {
+                patch.copy(offset, target, outputOffset, length);
+            } else if (mode == SOURCE_COPY) {
+                if (offset < outputOffset) {
+                    // the bytes before the output have been overwritten, so
+                    // come from the scratch buffer, but the rest are intact
+                    long saved = Math.min(length, outputOffset - offset);
+                    move(target, outputOffset, outputOffset + saved, length - saved, bounce);
+                    scratch.buffer.copy(scratch.find(offset), target, outputOffset, saved);
+                } else {
+                    move(target, offset, outputOffset, length, bounce);
+                }
+            } else if (mode == TARGET_COPY) {
+                Patcher.targetCopy(target, offset, outputOffset, length);
+            }
+            if (outputOffset + length - checked >= CHECKSUM_CHUNK) {
+                long time = System.nanoTime();
+                target.update(crc, checked, outputOffset + length);
+                checked = outputOffset + length;
+                checksumNanos += System.nanoTime() - time;
+                if (listener != null && checked - reported >= Patcher.PROGRESS_INTERVAL) {
+                    listener.progress(checked, targetSize);
+                    reported = checked;
+                }
+            }
+        }
+        long time = System.nanoTime();
+        statistics.commandNanos = time - start - checksumNanos;
+        target.update(crc, checked, targetSize);
+        statistics.targetChecksumNanos = checksumNanos + System.nanoTime() - time;
+        if (listener != null) {
+            listener.progress(targetSize, targetSize);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Copy {@code length} bytes from {@code offset} of a buffer to
+     * {@code targetOffset} of the same buffer. When the two ranges overlap the
+     * bytes pass through a bounce buffer, in an order which reads each before
+     * it is overwritten.
+     */
+    private static void move(LargeBuffer buffer, long offset, long targetOffset, long length, LargeBuffer bounce) {
+        if (offset == targetOffset || length == 0) {
+            return;
+        }
+        if (Math.abs(targetOffset - offset) >= length) {
+            buffer.copy(offset, buffer, targetOffset, length);
+        } else if (targetOffset < offset) {
+            for (long done = 0; done < length; done += MOVE_CHUNK) {
+                long count = Math.min(MOVE_CHUNK, length - done);
+                buffer.copy(offset + done, bounce, 0, count);
+                bounce.copy(0, buffer, targetOffset + done, count);
+            }
+        } else {
+            for (long left = length; left > 0; left -= MOVE_CHUNK) {
+                long count = Math.min(MOVE_CHUNK, left);
+                buffer.copy(offset + left - count, bounce, 0, count);
+                bounce.copy(0, buffer, targetOffset + left - count, count);
+            }
+        }
+    }
+
+    /**
+     * The ranges of the source which are read by a source copy after an
+     * earlier command has overwritten them. Overlapping ranges are merged, and
+     * each is stored in turn in a single buffer.
+     */
+    private static final class Scratch {
+
+        /**
+         * Number of merged ranges.
+         */
+        private int count;
+        /**
+         * Offset of the source at which each range starts, in order.
+         */
+        private long[] starts;
+        /**
+         * Offset of the source at which each range ends.
+         */
+        private long[] ends;
+        /**
+         * Offset of the buffer at which each range is stored.
+         */
+        private long[] positions;
+        /**
+         * Total bytes of all ranges.
+         */
+        private long size;
+        /**
+         * The saved bytes of every range.
+         */
+        private LargeBuffer buffer;
+
+        private Scratch(CommandIndex commands) {
+            // the ranges may be merged from their starts and ends sorted
+            // separately, as the union does not depend on which end belongs
+            // to which start
+            long[] hazardStarts = new long[16];
+            long[] hazardEnds = new long[16];
+            int hazards = 0;
+            for (int i = 0; i < commands.count; i++) {
+                long outputOffset = commands.targetOffsets[i];
+                long offset = commands.offsets[i];
+                if (commands.modes[i] == SOURCE_COPY && offset < outputOffset) {
+                    if (hazards == hazardStarts.length) {
+                        hazardStarts = Arrays.copyOf(hazardStarts, hazards * 2);
+                        hazardEnds = Arrays.copyOf(hazardEnds, hazards * 2);
+                    }
+                    hazardStarts[hazards] = offset;
+                    hazardEnds[hazards] = Math.min(offset + commands.lengths[i], outputOffset);
+                    hazards++;
+                }
+            }
+            Arrays.sort(hazardStarts, 0, hazards);
+            Arrays.sort(hazardEnds, 0, hazards);
+            starts = new long[hazards];
+            ends = new long[hazards];
+            int open = 0, j = 0;
+            for (int i = 0; i < hazards; i++) {
+                // close every range which ends before this one starts
+                while (hazardEnds[j] < hazardStarts[i]) {
+                    if (--open == 0) {
+                        ends[count - 1] = hazardEnds[j];
+                    }
+                    j++;
+                }
+                if (open++ == 0) {
+                    starts[count++] = hazardStarts[i];
+                }
+            }
+            if (hazards > 0) {
+                ends[count - 1] = hazardEnds[hazards - 1];
+            }
+            positions = new long[count];
+            for (int i = 0; i < count; i++) {
+                positions[i] = size;
+                size += ends[i] - starts[i];
+            }
+        }
+
+        /**
+         * Copy every range out of the source, which must happen before any of
+         * it is overwritten.
+         */
+        private void save(LargeBuffer source) {
+            buffer = LargeBuffer.wrap(ByteBuffer.allocate((int) size));
+            for (int i = 0; i < count; i++) {
+                source.copy(starts[i], buffer, positions[i], ends[i] - starts[i]);
+            }
+        }
+
+        /**
+         * Find the offset within the buffer of a saved byte of the source.
+         */
+        private long find(long offset) {
+            int lo = 0, hi = count - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (starts[mid] <= offset) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return positions[lo] + offset - starts[lo];
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A source index persisted to disk, so that it may be mapped by later patch
+ * creators rather than being built again. The file consists of a 32 byte
+ * header followed by the entries of the index as big endian integers. The
+ * header holds the magic, the kind of index and its parameter, and the length
+ * and checksum of the source it was built from, so that an index is never
+ * used with the wrong source.
+ */
+final class IndexFile {
+
+    /**
+     * Magic identifying an index file, "JBIX".
+     */
+    private static final int MAGIC = 0x4A424958;
+    /**
+     * Offset of the first entry in the file, chosen so that no entry crosses a
+     * window of a {@link LargeBuffer}.
+     */
+    static final long DATA = 32;
+    /**
+     * Number of entries written at a time.
+     */
+    private static final int CHUNK = 64 * 1024;
+
+    private IndexFile() {
+    }
+
+    /**
+     * Map an index file, returning null if it does not exist or was built
+     * for a different kind of index or source.
+     */
+    static LargeBuffer map(File file, int kind, int parameter, long sourceLength, long sourceChecksum) throws IOException {
+        if (!file.isFile() || file.length() < DATA) {
+            return null;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != kind || in.readInt() != parameter
+                    || in.readLong() != sourceLength || (in.readInt() & 0xFFFFFFFFL) != sourceChecksum) {
+                return null;
+            }
+            long count = in.readLong();
+            if (file.length() != DATA + count * 4) {
+                return null;
+            }
+            // mappings remain valid once the file has been closed
+            return LargeBuffer.map(in.getChannel(), FileChannel.MapMode.READ_ONLY, file.length());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the entries of an index. The file is written alongside its final
+     * location and then moved into place, so concurrent creators never see a
+     * partial index.
+     */
+    static void write(File file, int kind, int parameter, long sourceLength, long sourceChecksum, int[] entries) throws IOException {
+        File temp = Shared.tempFile(file);
+        try {
+            RandomAccessFile out = new RandomAccessFile(temp, "rw");
+            try {
+                FileChannel channel = out.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK * 4);
+                buffer.putInt(MAGIC).putInt(kind).putInt(parameter).putLong(sourceLength).putInt((int) sourceChecksum).putLong(entries.length);
+                buffer.flip();
+                write(channel, buffer);
+                buffer.clear();
+                IntBuffer ints = buffer.asIntBuffer();
+                for (int offset = 0; offset < entries.length; offset += CHUNK) {
+                    int count = Math.min(CHUNK, entries.length - offset);
+                    ints.clear();
+                    ints.put(entries, offset, count);
+                    buffer.clear();
+                    buffer.limit(count * 4);
+                    write(channel, buffer);
+                }
+            } finally {
+                out.close();
+            }
+            Shared.replace(temp, file);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+
+/**
+ * A ByteBuffer addressed by long offsets, so that files larger than 2GB may be
+ * mapped into memory. The data is held as a series of fixed size windows, each
+ * of which is a regular buffer.
+ */
+final class LargeBuffer {
+
+    /**
+     * log2 of the size of each window, 1GB.
+     */
+    private static final int WINDOW_SHIFT = 30;
+    /**
+     * log2 of the size of each window of this buffer.
+     */
+    private final int shift;
+    /**
+     * Size of each window.
+     */
+    private final long size;
+    /**
+     * Mask giving the offset of a byte within its window.
+     */
+    private final long mask;
+    /**
+     * The windows, all but the last of which are exactly {@link #size} bytes.
+     */
+    private final ByteBuffer[] windows;
+    /**
+     * Total number of bytes addressable by this buffer.
+     */
+    private final long length;
+
+    private LargeBuffer(int shift, ByteBuffer[] windows, long length) {
+        this.shift = shift;
+        this.size = 1L << shift;
+        this.mask = size - 1;
+        this.windows = windows;
+        this.length = length;
+    }
+
+    /**
+     * Map the first {@code length} bytes of a file into memory.
+     */
+    static LargeBuffer map(FileChannel channel, FileChannel.MapMode mode, long length) throws IOException {
+        return map(channel, mode, 0, length);
+    }
+
+    /**
+     * Map {@code length} bytes of a file starting at {@code position} into
+     * memory.
+     */
+    static LargeBuffer map(FileChannel channel, FileChannel.MapMode mode, long position, long length) throws IOException {
+        long size = 1L << WINDOW_SHIFT;
+        ByteBuffer[] windows = new ByteBuffer[count(length, WINDOW_SHIFT)];
+        for (int i = 0; i < windows.length; i++) {
+            long offset = i * size;
+            windows[i] = channel.map(mode, position + offset, Math.min(size, length - offset));
+        }
+        return new LargeBuffer(WINDOW_SHIFT, windows, length);
+    }
+
+    /**
+     * Wrap the remaining bytes of an existing buffer. Changes to either buffer
+     * will be visible in the other.
+     */
+    static LargeBuffer wrap(ByteBuffer buffer) {
+        return wrap(buffer, WINDOW_SHIFT);
+    }
+
+    /**
+     * Wrap the remaining bytes of an existing buffer in windows of
+     * {@code 1 << shift} bytes, so that data crossing windows may be tested
+     * without gigabytes of it.
+     */
+    static LargeBuffer wrap(ByteBuffer buffer, int shift) {
+        long length = buffer.remaining();
+        long size = 1L << shift;
+        ByteBuffer[] windows = new ByteBuffer[count(length, shift)];
+        for (int i = 0; i < windows.length; i++) {
+            ByteBuffer window = buffer.duplicate();
+            int offset = buffer.position() + (int) (i * size);
+            window.limit(offset + (int) Math.min(size, length - i * size));
+            window.position(offset);
+            windows[i] = window.slice();
+        }
+        return new LargeBuffer(shift, windows, length);
+    }
+
+    private static int count(long length, int shift) {
+        return (int) ((length + (1L << shift) - 1) >>> shift);
+    }
+
+    long length() {
+        return length;
+    }
+
+    byte get(long index) {
+        return windows[(int) (index >>> shift)].get((int) (index & mask));
+    }
+
+    /**
+     * Get the big endian integer starting at the specified index, which must
+     * be a multiple of four.
+     */
+    int getInt(long index) {
+        return windows[(int) (index >>> shift)].getInt((int) (index & mask));
+    }
+
+    /**
+     * Copy {@code length} bytes from {@code offset} of this buffer to
+     * {@code targetOffset} of another. The two ranges must not overlap.
+     */
+    void copy(long offset, LargeBuffer target, long targetOffset, long length) {
+        while (length > 0) {
+            // largest piece which does not cross a window in either buffer
+            int count = (int) Math.min(length, Math.min(size - (offset & mask), target.size - (targetOffset & target.mask)));
+            ByteBuffer to = target.windows[(int) (targetOffset >>> target.shift)].duplicate();
+            to.position((int) (targetOffset & target.mask));
+            to.put(slice(offset, count));
+            offset += count;
+            targetOffset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Copy {@code length} bytes from {@code offset} of this buffer into an
+     * array.
+     */
+    void get(long offset, byte[] dst, int dstOffset, int length) {
+        while (length > 0) {
+            int count = (int) Math.min(length, size - (offset & mask));
+            slice(offset, count).get(dst, dstOffset, count);
+            offset += count;
+            dstOffset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Copy {@code length} bytes from {@code offset} of this buffer into another
+     * buffer, starting at its position.
+     */
+    void get(long offset, ByteBuffer dst, int length) {
+        while (length > 0) {
+            int count = (int) Math.min(length, size - (offset & mask));
+            dst.put(slice(offset, count));
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Update a running crc32 checksum with the bytes between {@code start} and
+     * {@code end}, without copying them.
+     */
+    void update(CRC32 crc, long start, long end) {
+        while (start < end) {
+            int count = (int) Math.min(end - start, size - (start & mask));
+            crc.update(slice(start, count));
+            start += count;
+        }
+    }
+
+    /**
+     * Update a running message digest with the bytes between {@code start}
+     * and {@code end}, without copying them.
+     */
+    void update(MessageDigest digest, long start, long end) {
+        while (start < end) {
+            int count = (int) Math.min(end - start, size - (start & mask));
+            digest.update(slice(start, count));
+            start += count;
+        }
+    }
+
+    /**
+     * Get a view of {@code count} bytes starting at {@code offset}, which must
+     * not cross a window boundary.
+     */
+    private ByteBuffer slice(long offset, int count) {
+        ByteBuffer slice = windows[(int) (offset >>> shift)].duplicate();
+        int start = (int) (offset & mask);
+        slice.limit(start + count);
+        slice.position(start);
+        return slice;
+    }
+
+    /**
+     * Count the number of equal bytes at the start of {@code a[aStart, aEnd)}
+     * and {@code b[bStart, bEnd)}. The ranges may overlap.
+     */
+    static long common(LargeBuffer a, long aStart, long aEnd, LargeBuffer b, long bStart, long bEnd) {
+        long max = Math.min(aEnd - aStart, bEnd - bStart);
+        long n = 0;
+        while (n < max) {
+            // compare a word at a time within the current pair of windows
+            ByteBuffer aWindow = a.windows[(int) ((aStart + n) >>> a.shift)];
+            ByteBuffer bWindow = b.windows[(int) ((bStart + n) >>> b.shift)];
+            int aIndex = (int) ((aStart + n) & a.mask);
+            int bIndex = (int) ((bStart + n) & b.mask);
+            int count = (int) Math.min(max - n, Math.min(aWindow.limit() - aIndex, bWindow.limit() - bIndex));
+            int i = 0;
+            while (i + 8 <= count && aWindow.getLong(aIndex + i) == bWindow.getLong(bIndex + i)) {
+                i += 8;
+            }
+            // then find the exact mismatch, if any, a byte at a time
+            while (i < count && aWindow.get(aIndex + i) == bWindow.get(bIndex + i)) {
+                i++;
+            }
+            n += i;
+            if (i < count) {
+                break;
+            }
+        }
+        return n;
+    }
+}
@@ -31,16 +31,18 @@ package net.md_5.jbeat;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import static net.md_5.jbeat.Shared.*;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Creates straight binary patches in a linear fashion. No effort is expended
- * applying delta compression.
+ * applying delta compression. Of the {@link CreatorOptions} only the minimum
+ * match and whether to find runs with target copies are used, as there is no
+ * cheaper matching to fall back to once over the time budget.
  */
 public final class LinearCreator extends PatchCreator {
 
-    private int targetReadLength, targetRelativeOffset, outputOffset;
-
     public LinearCreator(File original, File modified, File output) throws FileNotFoundException {
         super(original, modified, output);
     }
@@ -49,60 +51,57 @@ public final class LinearCreator extends PatchCreator {
         super(original, modified, output, header);
     }
 
+    public LinearCreator(File original, File modified, WritableByteChannel output, String header) throws FileNotFoundException {
+        super(original, modified, output, header);
+    }
+
+    public LinearCreator(ByteBuffer original, ByteBuffer modified, OutputStream output) {
+        super(original, modified, output, null);
+    }
+
+    public LinearCreator(ByteBuffer original, ByteBuffer modified, OutputStream output, String header) {
+        super(original, modified, output, header);
+    }
+
+    public LinearCreator(ByteBuffer original, ByteBuffer modified, WritableByteChannel output, String header) {
+        super(original, modified, output, header);
+    }
+
     @Override
-    protected void doPatch() throws IOException {
-        while (outputOffset < target.limit()) {
-            int sourcePos = 0;
-            for (int n = 0; outputOffset + n < Math.min(sourceLength, targetLength); n++) {
-                if (source.get(outputOffset + n) != target.get(outputOffset + n)) {
-                    break;
-                }
-                sourcePos++;
+    protected void doPatch(long start, long end) throws IOException {
+        int minimumMatch = getOptions().getMinimumMatch();
+        boolean runs = getOptions().isTargetCopies();
+        long outputOffset = start;
+        // the source match and the run found at one position remain valid,
+        // shortened, at every later position they cover, so each is only
+        // rescanned once the output has moved past its end
+        long sourceEnd = -1, runEnd = -1;
+        while (outputOffset < end) {
+            if (outputOffset > sourceEnd) {
+                sourceEnd = outputOffset + LargeBuffer.common(source, outputOffset, sourceLength, target, outputOffset, end);
             }
+            long sourcePos = sourceEnd - outputOffset;
 
-            int rleLength = 0;
-            for (int n = 1; outputOffset + n < target.limit(); n++) {
-                if (target.get(outputOffset) != target.get(outputOffset + n)) {
-                    break;
-                }
-                rleLength++;
+            if (runs && outputOffset > runEnd) {
+                runEnd = outputOffset + LargeBuffer.common(target, outputOffset + 1, end, target, outputOffset, end);
             }
+            long rleLength = runEnd - outputOffset;
 
-            if (rleLength >= 4) {
+            if (runs && rleLength >= minimumMatch) {
                 //write byte to repeat
-                targetReadLength++;
+                targetRead(1);
                 outputOffset++;
-                targetReadFlush();
 
                 //copy starting from repetition byte
-                encode(out, TARGET_COPY | ((rleLength - 1) << 2));
-                int relativeOffset = (outputOffset - 1) - targetRelativeOffset;
-                encode(out, relativeOffset << 1);
+                targetCopy(outputOffset - 1, rleLength);
                 outputOffset += rleLength;
-                targetRelativeOffset = outputOffset - 1;
-            } else if (sourcePos >= 4) {
-                targetReadFlush();
-                encode(out, SOURCE_READ | ((sourcePos - 1) << 2));
+            } else if (sourcePos >= minimumMatch) {
+                sourceRead(sourcePos);
                 outputOffset += sourcePos;
             } else {
-                targetReadLength++;
+                targetRead(1);
                 outputOffset++;
             }
         }
-        targetReadFlush();
-    }
-
-    /**
-     * Write a complete target read statement.
-     */
-    private void targetReadFlush() throws IOException {
-        if (targetReadLength != 0) {
-            encode(out, TARGET_READ | ((targetReadLength - 1) << 2));
-            int offset = outputOffset - targetReadLength;
-            while (targetReadLength != 0) {
-                out.write(target.get(offset++));
-                targetReadLength--;
-            }
-        }
     }
 }
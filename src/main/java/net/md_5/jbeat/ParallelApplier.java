@@ -0,0 +1,264 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * Applies an indexed patch using a fork join pool. Every command other than a
+ * target copy writes a disjoint range of the target from data which is already
+ * available, so they are all executed at once. Target copies are then executed
+ * in waves, each wave containing only copies which read from ranges completed
+ * by earlier waves. Checksums are also computed in parallel, by combining the
+ * checksums of each part.
+ */
+final class ParallelApplier {
+
+    /**
+     * Approximate number of bytes handled by each task.
+     */
+    private static final long GRAIN = 4 * 1024 * 1024;
+    private final CommandIndex index;
+    private final LargeBuffer patch;
+    private final LargeBuffer source;
+    private final LargeBuffer target;
+
+    private ParallelApplier(CommandIndex index, LargeBuffer patch, LargeBuffer source, LargeBuffer target) {
+        this.index = index;
+        this.patch = patch;
+        this.source = source;
+        this.target = target;
+    }
+
+    /**
+     * Execute every command of an index, writing the entire target. The
+     * commands must have been validated against the sizes of each buffer.
+     */
+    static void execute(CommandIndex index, LargeBuffer patch, LargeBuffer source, LargeBuffer target, ForkJoinPool pool) {
+        ParallelApplier applier = new ParallelApplier(index, patch, source, target);
+        for (int[] wave : applier.schedule()) {
+            long[] prefix = new long[wave.length + 1];
+            for (int i = 0; i < wave.length; i++) {
+                prefix[i + 1] = prefix[i] + index.lengths[wave[i]];
+            }
+            pool.invoke(applier.new Execute(wave, prefix, 0, wave.length));
+        }
+    }
+
+    /**
+     * Compute the crc32 checksum of bytes {@code [from, to)} of a buffer.
+     */
+    static long checksum(LargeBuffer buffer, long from, long to, ForkJoinPool pool) {
+        return pool.invoke(new Checksum(buffer, from, to));
+    }
+
+    /**
+     * Group the commands into waves which may each be executed in parallel.
+     * A target copy belongs to the wave after the latest of the waves which
+     * write the range it reads from, all other commands are in the first.
+     */
+    private int[][] schedule() {
+        int count = index.count;
+        // range maximum tree over the wave of each command
+        int size = 1;
+        while (size < count) {
+            size <<= 1;
+        }
+        int[] tree = new int[size * 2];
+        int[] waveOf = new int[count];
+        int waves = 1;
+        for (int i = 0; i < count; i++) {
+            if (index.modes[i] == TARGET_COPY) {
+                int first = index.find(index.offsets[i]);
+                int last = Math.min(index.find(index.offsets[i] + index.lengths[i] - 1), i - 1);
+                int wave = 1 + max(tree, size, first, last);
+                waveOf[i] = wave;
+                waves = Math.max(waves, wave + 1);
+                for (int n = i + size; n > 0; n >>>= 1) {
+                    tree[n] = Math.max(tree[n], wave);
+                }
+            }
+        }
+        // bucket the commands by wave, keeping them in target order
+        int[] sizes = new int[waves];
+        for (int i = 0; i < count; i++) {
+            sizes[waveOf[i]]++;
+        }
+        int[][] schedule = new int[waves][];
+        for (int w = 0; w < waves; w++) {
+            schedule[w] = new int[sizes[w]];
+            sizes[w] = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            int w = waveOf[i];
+            schedule[w][sizes[w]++] = i;
+        }
+        return schedule;
+    }
+
+    /**
+     * Maximum value of the leaves {@code [from, to]} of a tree.
+     */
+    private static int max(int[] tree, int size, int from, int to) {
+        int result = 0;
+        for (int l = from + size, r = to + size + 1; l < r; l >>>= 1, r >>>= 1) {
+            if ((l & 1) != 0) {
+                result = Math.max(result, tree[l++]);
+            }
+            if ((r & 1) != 0) {
+                result = Math.max(result, tree[--r]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Execute bytes {@code [from, to)} of the output of a single command.
+     */
+    private void execute(int command, long from, long to) {
+        long targetOffset = index.targetOffsets[command] + from;
+        long offset = index.offsets[command] + from;
+        long length = to - from;
+        int mode = index.modes[command];
+        if (mode == SOURCE_READ || mode == SOURCE_COPY) {
+            source.copy(offset, target, targetOffset, length);
+        } else if (mode == TARGET_READ) {
+            patch.copy(offset, target, targetOffset, length);
+        } else {
+            Patcher.targetCopy(target, offset, targetOffset, length);
+        }
+    }
+
+    /**
+     * Whether part of a command may be executed independently of the rest.
+     */
+    private boolean divisible(int command) {
+        return index.modes[command] != TARGET_COPY
+                || index.targetOffsets[command] - index.offsets[command] >= index.lengths[command];
+    }
+
+    /**
+     * Executes a range of the commands in a wave, dividing it until each task
+     * handles roughly GRAIN bytes.
+     */
+    private final class Execute extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int[] wave;
+        /**
+         * Total length of the commands before each index of the wave.
+         */
+        private final long[] prefix;
+        private final int from, to;
+
+        Execute(int[] wave, long[] prefix, int from, int to) {
+            this.wave = wave;
+            this.prefix = prefix;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            long bytes = prefix[to] - prefix[from];
+            if (to - from > 1 && bytes > GRAIN) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Execute(wave, prefix, from, mid), new Execute(wave, prefix, mid, to));
+            } else if (to - from == 1 && bytes > GRAIN && divisible(wave[from])) {
+                new Part(wave[from], 0, bytes).compute();
+            } else {
+                for (int i = from; i < to; i++) {
+                    execute(wave[i], 0, index.lengths[wave[i]]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Executes part of a single large command, dividing it until each task
+     * handles roughly GRAIN bytes.
+     */
+    private final class Part extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int command;
+        private final long from, to;
+
+        Part(int command, long from, long to) {
+            this.command = command;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > GRAIN) {
+                long mid = from + (to - from) / 2;
+                invokeAll(new Part(command, from, mid), new Part(command, mid, to));
+            } else {
+                execute(command, from, to);
+            }
+        }
+    }
+
+    /**
+     * Computes the crc32 checksum of a range of a buffer by dividing it and
+     * combining the checksums of each half.
+     */
+    private static final class Checksum extends RecursiveTask<Long> {
+
+        private static final long serialVersionUID = 1L;
+        private final LargeBuffer buffer;
+        private final long from, to;
+
+        Checksum(LargeBuffer buffer, long from, long to) {
+            this.buffer = buffer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from > GRAIN) {
+                long mid = from + (to - from) / 2;
+                Checksum left = new Checksum(buffer, from, mid);
+                left.fork();
+                long right = new Checksum(buffer, mid, to).compute();
+                return combine(left.join(), right, to - mid);
+            }
+            CRC32 crc = new CRC32();
+            buffer.update(crc, from, to);
+            return crc.getValue();
+        }
+    }
+}
@@ -0,0 +1,581 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32;
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * Creates and applies patches for many files at once. A source tree and a
+ * target tree are diffed into a single container holding a patch for every
+ * file which was added or changed, and a note of every file which was
+ * deleted, followed by an index of them all. Files whose size and checksum
+ * are the same in both trees are skipped. A container may then be applied to
+ * a copy of the source tree, either in place or writing a new tree, and a
+ * manifest listing separate patch files may be applied in the same way. <p>
+ * Files are processed concurrently, with at most a fixed number of files
+ * being processed and open at once. Virtual threads are used where the
+ * runtime has them, and a fixed pool of threads otherwise. Each file is
+ * written to a temporary file alongside it which replaces it once the patch
+ * has been verified, so an interrupted batch leaves every file either as it
+ * was or fully patched.
+ */
+public final class PatchBatch {
+
+    /**
+     * Magic number at the start and end of every container, "JBPK".
+     */
+    private static final int MAGIC = 0x4A42504B;
+    /**
+     * Entry holding the patch for an added or changed file.
+     */
+    private static final byte PATCH = 0;
+    /**
+     * Entry noting a file which is not in the target tree.
+     */
+    private static final byte DELETED = 1;
+    /**
+     * Most files held open by a single task at once.
+     */
+    private static final int HANDLES_PER_TASK = 3;
+    /**
+     * An empty source, for files which were added.
+     */
+    private static final LargeBuffer EMPTY = LargeBuffer.wrap(ByteBuffer.allocate(0));
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int maxOpenFiles = 64;
+    private int blockSize = BlockCreator.DEFAULT_BLOCK_SIZE;
+
+    /**
+     * Set the maximum number of files processed at once, which defaults to
+     * the number of processors.
+     *
+     * @param parallelism the maximum number of concurrent tasks
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Set the maximum number of files held open at once, which defaults to
+     * 64. At least three are needed to process any file.
+     *
+     * @param maxOpenFiles the maximum number of open files
+     */
+    public void setMaxOpenFiles(int maxOpenFiles) {
+        if (maxOpenFiles < HANDLES_PER_TASK) {
+            throw new IllegalArgumentException("At least " + HANDLES_PER_TASK + " open files are required");
+        }
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    /**
+     * Set the size of the blocks matched by the {@link BlockCreator} which
+     * creates the patch for each file.
+     *
+     * @param blockSize size of the blocks indexed when searching for copies
+     */
+    public void setBlockSize(int blockSize) {
+        this.blockSize = BlockCreator.checkBlockSize(blockSize);
+    }
+
+    /**
+     * Diff two trees into a single container.
+     *
+     * @param sourceDir the original tree
+     * @param targetDir the modified tree
+     * @param container location to which the container will be written
+     * @throws IOException if either tree cannot be read, or the container
+     * cannot be written
+     */
+    public void create(File sourceDir, File targetDir, File container) throws IOException {
+        final Map<String, File> sources = list(sourceDir);
+        Map<String, File> targets = list(targetDir);
+        List<Entry> entries = new ArrayList<Entry>();
+        for (String path : sources.keySet()) {
+            if (!targets.containsKey(path)) {
+                inside(sourceDir, path);
+                entries.add(new Entry(path, DELETED, 0, 0));
+            }
+        }
+        final File empty = tempFile(container);
+        final File[] patches = new File[targets.size()];
+        FileChannel out = new FileOutputStream(container).getChannel();
+        try {
+            ByteBuffer magic = ByteBuffer.allocate(4).putInt(MAGIC);
+            magic.flip();
+            while (magic.hasRemaining()) {
+                out.write(magic);
+            }
+            List<String> names = new ArrayList<String>();
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (Map.Entry<String, File> file : targets.entrySet()) {
+                final String path = file.getKey();
+                inside(targetDir, path);
+                final File target = file.getValue();
+                final File source = sources.get(path);
+                final int index = names.size();
+                names.add(path);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        if (source != null && unchanged(source, target)) {
+                            return null;
+                        }
+                        patches[index] = tempFile(container);
+                        new BlockCreator(source != null ? source : empty, target, patches[index], null, blockSize).create();
+                        return null;
+                    }
+                });
+            }
+            run(names, tasks);
+            // appended in path order rather than as each is finished, so the
+            // same trees always give the same container
+            for (int i = 0; i < patches.length; i++) {
+                if (patches[i] != null) {
+                    append(out, patches[i], names.get(i), entries);
+                }
+            }
+            writeIndex(out, entries);
+        } finally {
+            out.close();
+            empty.delete();
+            for (File patch : patches) {
+                if (patch != null) {
+                    patch.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply a container to a source tree. Files which the container does not
+     * mention are copied unchanged, unless the output is the source tree
+     * itself, in which case they are left alone and deleted files are removed.
+     *
+     * @param container the container of patches
+     * @param sourceDir the original tree
+     * @param outputDir the location of the patched tree, which may be the same
+     * as the source tree
+     * @throws IOException if the container is invalid, or any file could not
+     * be patched
+     */
+    public void apply(final File container, final File sourceDir, final File outputDir) throws IOException {
+        List<Entry> entries = readIndex(container);
+        final boolean inPlace = sourceDir.getCanonicalFile().equals(outputDir.getCanonicalFile());
+        Map<String, File> unmentioned = inPlace ? new TreeMap<String, File>() : list(sourceDir);
+        List<String> names = new ArrayList<String>();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final Entry entry : entries) {
+            unmentioned.remove(entry.path);
+            // every path is checked before anything is written
+            final File source = inside(sourceDir, entry.path);
+            final File output = inside(outputDir, entry.path);
+            if (entry.kind == DELETED) {
+                if (inPlace) {
+                    names.add(entry.path);
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            Files.deleteIfExists(source.toPath());
+                            return null;
+                        }
+                    });
+                }
+                continue;
+            }
+            names.add(entry.path);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    RandomAccessFile file = new RandomAccessFile(container, "r");
+                    PatchProgram program;
+                    try {
+                        program = PatchProgram.compile(LargeBuffer.map(file.getChannel(), FileChannel.MapMode.READ_ONLY, entry.offset, entry.length), null);
+                    } finally {
+                        file.close();
+                    }
+                    apply(program, source, output);
+                    return null;
+                }
+            });
+        }
+        for (Map.Entry<String, File> file : unmentioned.entrySet()) {
+            final File source = file.getValue();
+            final File output = new File(outputDir, file.getKey());
+            names.add(file.getKey());
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    output.getAbsoluteFile().getParentFile().mkdirs();
+                    Files.copy(source.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    return null;
+                }
+            });
+        }
+        run(names, tasks);
+    }
+
+    /**
+     * Apply every patch listed in a manifest. Each line of the manifest holds
+     * the patch, source and target file, separated by tabs, and relative paths
+     * are resolved against the directory holding the manifest. Blank lines
+     * are ignored. A target may be the same file as its source.
+     *
+     * @param manifest the list of patches to apply
+     * @throws IOException if the manifest cannot be read, or any file could
+     * not be patched
+     */
+    public void apply(File manifest) throws IOException {
+        File directory = manifest.getAbsoluteFile().getParentFile();
+        List<String> names = new ArrayList<String>();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), charset));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] files = line.split("\t");
+                if (files.length != 3) {
+                    throw new IOException("Manifest line does not list a patch, source and target: " + line + "!");
+                }
+                final File patch = resolve(directory, files[0]);
+                final File source = resolve(directory, files[1]);
+                final File target = resolve(directory, files[2]);
+                names.add(files[2]);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        apply(PatchProgram.compile(patch), source, target);
+                        return null;
+                    }
+                });
+            }
+        } finally {
+            reader.close();
+        }
+        run(names, tasks);
+    }
+
+    /**
+     * Resolve a path from a container against the root of a tree, refusing any
+     * path which is absolute or otherwise leads outside of it.
+     */
+    private static File inside(File directory, String path) throws IOException {
+        Path root = directory.getAbsoluteFile().toPath().normalize();
+        Path file;
+        try {
+            file = root.resolve(path).normalize();
+        } catch (InvalidPathException ex) {
+            throw new IOException("Path " + path + " is not valid!");
+        }
+        if (file.equals(root) || !file.startsWith(root)) {
+            throw new IOException("Path " + path + " is outside of the tree!");
+        }
+        return file.toFile();
+    }
+
+    private static File resolve(File directory, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(directory, path);
+    }
+
+    /**
+     * Apply a program to a source file, which need not exist if the program
+     * was created from nothing, replacing the output once it is verified.
+     */
+    private static void apply(PatchProgram program, File source, File output) throws IOException {
+        output.getAbsoluteFile().getParentFile().mkdirs();
+        File temp = tempFile(output);
+        try {
+            RandomAccessFile sourceFile = source.exists() ? new RandomAccessFile(source, "r") : null;
+            try {
+                RandomAccessFile targetFile = new RandomAccessFile(temp, "rw");
+                try {
+                    LargeBuffer in = (sourceFile == null) ? EMPTY : LargeBuffer.map(sourceFile.getChannel(), FileChannel.MapMode.READ_ONLY, Math.min(program.getSourceSize(), sourceFile.length()));
+                    program.apply(in, targetFile, null, new PatchStatistics(), null);
+                } finally {
+                    targetFile.close();
+                }
+            } finally {
+                if (sourceFile != null) {
+                    sourceFile.close();
+                }
+            }
+            replace(temp, output);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Check whether two files have the same size and checksum.
+     */
+    private static boolean unchanged(File source, File target) throws IOException {
+        return source.length() == target.length() && checksum(source) == checksum(target);
+    }
+
+    private static long checksum(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            CRC32 crc = new CRC32();
+            LargeBuffer.map(raf.getChannel(), FileChannel.MapMode.READ_ONLY, raf.length()).update(crc, 0, raf.length());
+            return crc.getValue();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Append a patch to the container and record its entry.
+     */
+    private static void append(FileChannel out, File patch, String path, List<Entry> entries) throws IOException {
+        FileChannel in = new FileInputStream(patch).getChannel();
+        try {
+            long offset = out.position();
+            long length = in.size();
+            for (long done = 0; done < length;) {
+                done += out.transferFrom(in, offset + done, length - done);
+            }
+            out.position(offset + length);
+            entries.add(new Entry(path, PATCH, offset, length));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the index, sorted by path, followed by its offset and the magic.
+     */
+    private static void writeIndex(FileChannel out, List<Entry> entries) throws IOException {
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.path.compareTo(b.path);
+            }
+        });
+        long offset = out.position();
+        DataOutputStream index = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out)));
+        index.writeInt(entries.size());
+        for (Entry entry : entries) {
+            byte[] path = entry.path.getBytes(charset);
+            index.writeInt(path.length);
+            index.write(path);
+            index.writeByte(entry.kind);
+            index.writeLong(entry.offset);
+            index.writeLong(entry.length);
+        }
+        index.writeLong(offset);
+        index.writeInt(MAGIC);
+        index.flush();
+    }
+
+    private static List<Entry> readIndex(File container) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(container, "r");
+        try {
+            long length = file.length();
+            if (length < 16 || file.readInt() != MAGIC) {
+                throw new IOException("File is not a patch container!");
+            }
+            file.seek(length - 12);
+            long offset = file.readLong();
+            if (file.readInt() != MAGIC || offset < 4 || offset > length - 16) {
+                throw new IOException("Patch container index is corrupt!");
+            }
+            byte[] bytes = new byte[(int) (length - 12 - offset)];
+            file.seek(offset);
+            file.readFully(bytes);
+            DataInputStream index = new DataInputStream(new ByteArrayInputStream(bytes));
+            int count = index.readInt();
+            List<Entry> entries = new ArrayList<Entry>();
+            for (int i = 0; i < count; i++) {
+                int size = index.readInt();
+                if (size < 0 || size > index.available()) {
+                    throw new IOException("Patch container index is corrupt!");
+                }
+                byte[] path = new byte[size];
+                index.readFully(path);
+                Entry entry = new Entry(new String(path, charset), index.readByte(), index.readLong(), index.readLong());
+                if ((entry.kind != PATCH && entry.kind != DELETED) || entry.offset < 0 || entry.length < 0 || entry.offset + entry.length > offset) {
+                    throw new IOException("Patch container index is corrupt!");
+                }
+                entries.add(entry);
+            }
+            return entries;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * List every regular file below a directory by its path relative to it,
+     * separated by forward slashes.
+     */
+    private static Map<String, File> list(File directory) throws IOException {
+        if (!directory.isDirectory()) {
+            throw new IOException(directory + " is not a directory!");
+        }
+        final Path root = directory.toPath();
+        final Map<String, File> files = new TreeMap<String, File>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile()) {
+                    files.put(root.relativize(file).toString().replace(File.separatorChar, '/'), file.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Run every task, with at most the configured number running and holding
+     * files open at once.
+     */
+    private void run(List<String> names, List<Callable<Void>> tasks) throws IOException {
+        final Semaphore running = new Semaphore(parallelism);
+        final Semaphore handles = new Semaphore(maxOpenFiles);
+        ExecutorService executor = executor();
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final Callable<Void> task : tasks) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        running.acquire();
+                        try {
+                            handles.acquire(HANDLES_PER_TASK);
+                            try {
+                                return task.call();
+                            } finally {
+                                handles.release(HANDLES_PER_TASK);
+                            }
+                        } finally {
+                            running.release();
+                        }
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) ex.getCause();
+                    }
+                    if (ex.getCause() instanceof Error) {
+                        throw (Error) ex.getCause();
+                    }
+                    throw new IOException("Could not patch " + names.get(i) + "!", ex.getCause());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst patching!", ex);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Create an executor with a virtual thread per task if the runtime has
+     * them, as tasks spend most of their time waiting on the disk or the
+     * semaphores, or a fixed pool of threads otherwise.
+     */
+    private ExecutorService executor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newFixedThreadPool(parallelism);
+        }
+    }
+
+    /**
+     * A single file of a container.
+     */
+    private static final class Entry {
+
+        private final String path;
+        private final byte kind;
+        /**
+         * Offset of the patch within the container.
+         */
+        private final long offset;
+        /**
+         * Length of the patch.
+         */
+        private final long length;
+
+        private Entry(String path, byte kind, long offset, long length) {
+            this.path = path;
+            this.kind = kind;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded, least recently used cache of compiled patch programs, keyed by
+ * the SHA-256 digest of each patch. Looking up a patch digests its contents
+ * rather than trusting the checksum in its footer, so applying a cached patch
+ * costs a single pass over it on top of executing its program, rather than
+ * decoding every command again. This class is safe for use by multiple
+ * threads.
+ */
+public final class PatchCache {
+
+    /**
+     * Programs by patch digest, in order of least recent use.
+     */
+    private final LinkedHashMap<ByteBuffer, PatchProgram> programs;
+
+    /**
+     * Create a new cache.
+     *
+     * @param capacity maximum number of programs to keep
+     */
+    public PatchCache(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.programs = new LinkedHashMap<ByteBuffer, PatchProgram>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, PatchProgram> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the program for a patch file, compiling and caching it if it has not
+     * been seen before.
+     *
+     * @param patch the beat format patch file
+     * @return the compiled program
+     * @throws IOException if the patch cannot be read or compiled
+     */
+    public PatchProgram get(File patch) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(patch, "r");
+        try {
+            return get(LargeBuffer.map(file.getChannel(), FileChannel.MapMode.READ_ONLY, file.length()));
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Get the program for a patch in memory, compiling and caching it if it
+     * has not been seen before. The buffer must not be modified for as long as
+     * a program compiled from it remains in the cache.
+     *
+     * @param patch the remaining bytes of which are a beat patch
+     * @return the compiled program
+     * @throws IOException if the patch cannot be compiled
+     */
+    public PatchProgram get(ByteBuffer patch) throws IOException {
+        return get(LargeBuffer.wrap(patch.asReadOnlyBuffer()));
+    }
+
+    private PatchProgram get(LargeBuffer patch) throws IOException {
+        // a crc32 is easily forged, and the footer could have been copied from
+        // another patch, so the patch is looked up by a digest of its contents
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not supported", ex);
+        }
+        patch.update(digest, 0, patch.length());
+        ByteBuffer key = ByteBuffer.wrap(digest.digest());
+        PatchProgram program = lookup(key);
+        if (program == null) {
+            // compiling verifies the checksum of a patch not yet seen
+            program = store(key, PatchProgram.compile(patch, null));
+        }
+        return program;
+    }
+
+    private synchronized PatchProgram lookup(ByteBuffer key) {
+        return programs.get(key);
+    }
+
+    private synchronized PatchProgram store(ByteBuffer key, PatchProgram program) {
+        programs.put(key, program);
+        return program;
+    }
+
+    public synchronized int size() {
+        return programs.size();
+    }
+
+    public synchronized void clear() {
+        programs.clear();
+    }
+}
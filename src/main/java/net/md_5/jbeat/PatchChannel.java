@@ -0,0 +1,437 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * Read only view of the target of a patch, which is never written out in
+ * full. Opening the channel makes a single pass over the commands of the
+ * patch, skipping all target read payloads, and records a checkpoint of the
+ * decoder state every few commands. A read then only decodes the commands
+ * covering the requested range, starting from the nearest checkpoint, and
+ * target copies are followed back through the commands which wrote the bytes
+ * they copy. Recently read blocks of the target are cached, so nearby reads
+ * and copies of them are cheap. <p> As they cover the whole of each file, the
+ * checksums of the patch, source and target are not verified. This class is
+ * safe for use by multiple threads, though reads are serialized.
+ */
+public final class PatchChannel implements SeekableByteChannel {
+
+    /**
+     * Number of commands between checkpoints.
+     */
+    private static final int CHECKPOINT_INTERVAL = 64;
+    /**
+     * Size of the blocks of the target which are resolved and cached.
+     */
+    private static final int BLOCK_SIZE = 64 * 1024;
+    /**
+     * Number of blocks of the target which are cached.
+     */
+    private static final int CACHE_BLOCKS = 16;
+    /**
+     * Marks a range of the stack to be resolved from the commands.
+     */
+    private static final long RANGE = 0;
+    /**
+     * Marks a range of the stack which repeats bytes resolved before it.
+     */
+    private static final long REPEAT = 1;
+    private final LargeBuffer source;
+    private final PatchReader patch;
+    /**
+     * Number of checkpoints.
+     */
+    private int checkpoints;
+    /**
+     * Offset of the target written by the command at each checkpoint.
+     */
+    private long[] checkpointOutputs = new long[256];
+    /**
+     * Offset of the patch at which the command at each checkpoint starts.
+     */
+    private long[] checkpointCommands = new long[256];
+    /**
+     * Source offset from which the next source copy is relative, at each
+     * checkpoint.
+     */
+    private long[] checkpointSources = new long[256];
+    /**
+     * Target offset from which the next target copy is relative, at each
+     * checkpoint.
+     */
+    private long[] checkpointTargets = new long[256];
+    /**
+     * Resolved blocks of the target by index, in order of least recent use.
+     */
+    private final LinkedHashMap<Long, byte[]> cache = new LinkedHashMap<Long, byte[]>(CACHE_BLOCKS * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return size() > CACHE_BLOCKS;
+        }
+    };
+    /**
+     * Mode, first target offset, length and absolute read offset of the most
+     * recently located command.
+     */
+    private long mode, start, length, offset;
+    private long position;
+    private boolean open = true;
+
+    private PatchChannel(LargeBuffer patch, LargeBuffer source) throws IOException {
+        this.patch = new PatchReader(patch);
+        this.source = source;
+        if (source.length() < this.patch.sourceSize) {
+            throw new IOException("Source is smaller than the patch expects!");
+        }
+        index();
+    }
+
+    /**
+     * Open the target of a patch file.
+     *
+     * @param patch the beat format patch file
+     * @param source original file from which the patch was created
+     * @return a channel positioned at the start of the target
+     * @throws IOException if the files cannot be read, or the patch is invalid
+     */
+    public static PatchChannel open(File patch, File source) throws IOException {
+        RandomAccessFile patchFile = new RandomAccessFile(patch, "r");
+        try {
+            RandomAccessFile sourceFile = new RandomAccessFile(source, "r");
+            try {
+                // the mappings remain valid once the files are closed
+                return new PatchChannel(LargeBuffer.map(patchFile.getChannel(), FileChannel.MapMode.READ_ONLY, patchFile.length()),
+                        LargeBuffer.map(sourceFile.getChannel(), FileChannel.MapMode.READ_ONLY, sourceFile.length()));
+            } finally {
+                sourceFile.close();
+            }
+        } finally {
+            patchFile.close();
+        }
+    }
+
+    /**
+     * Open the target of a patch held in memory. The remaining bytes of each
+     * buffer are used, their positions are not modified, and they must not be
+     * modified for as long as the channel is in use.
+     *
+     * @param patch the remaining bytes of which are a beat patch
+     * @param source the remaining bytes of which are the patch source
+     * @return a channel positioned at the start of the target
+     * @throws IOException if the patch is invalid
+     */
+    public static PatchChannel open(ByteBuffer patch, ByteBuffer source) throws IOException {
+        return new PatchChannel(LargeBuffer.wrap(patch.asReadOnlyBuffer()), LargeBuffer.wrap(source.asReadOnlyBuffer()));
+    }
+
+    /**
+     * Decode every command, validating that each reads and writes within the
+     * bounds of its data, and record the checkpoints.
+     */
+    private void index() throws IOException {
+        long sourceOffset = 0, targetOffset = 0, outputOffset = 0;
+        for (int commands = 0; patch.offset() < patch.commandsEnd(); commands++) {
+            if (commands % CHECKPOINT_INTERVAL == 0) {
+                if (checkpoints == checkpointOutputs.length) {
+                    checkpointOutputs = Arrays.copyOf(checkpointOutputs, checkpoints * 2);
+                    checkpointCommands = Arrays.copyOf(checkpointCommands, checkpoints * 2);
+                    checkpointSources = Arrays.copyOf(checkpointSources, checkpoints * 2);
+                    checkpointTargets = Arrays.copyOf(checkpointTargets, checkpoints * 2);
+                }
+                checkpointOutputs[checkpoints] = outputOffset;
+                checkpointCommands[checkpoints] = patch.offset();
+                checkpointSources[checkpoints] = sourceOffset;
+                checkpointTargets[checkpoints] = targetOffset;
+                checkpoints++;
+            }
+            long data = patch.decode();
+            long mode = data & 3;
+            long length = (data >> 2) + 1;
+            if (outputOffset + length > patch.targetSize) {
+                throw new IOException("Patch writes past the end of the target!");
+            }
+            if (mode == SOURCE_READ) {
+                if (outputOffset + length > patch.sourceSize) {
+                    throw new IOException("Patch reads past the end of the source!");
+                }
+            } else if (mode == TARGET_READ) {
+                patch.skip(length);
+                if (patch.offset() > patch.commandsEnd()) {
+                    throw new IOException("Target read runs past the end of the patch!");
+                }
+            } else {
+                data = patch.decode();
+                long relative = (((data & 1) != 0) ? -1 : 1) * (data >> 1);
+                if (mode == SOURCE_COPY) {
+                    sourceOffset += relative;
+                    if (sourceOffset < 0 || sourceOffset + length > patch.sourceSize) {
+                        throw new IOException("Patch reads past the end of the source!");
+                    }
+                    sourceOffset += length;
+                } else {
+                    targetOffset += relative;
+                    if (targetOffset < 0 || targetOffset >= outputOffset) {
+                        throw new IOException("Target copy does not read from already written target!");
+                    }
+                    targetOffset += length;
+                }
+            }
+            outputOffset += length;
+        }
+        if (outputOffset != patch.targetSize) {
+            throw new IOException("Patch does not write the whole target!");
+        }
+    }
+
+    /**
+     * Find the command which writes the specified offset of the target,
+     * decoding forwards from the checkpoint before it.
+     */
+    private void locate(long targetOffset) throws IOException {
+        int lo = 0, hi = checkpoints - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (checkpointOutputs[mid] <= targetOffset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        patch.seek(checkpointCommands[lo]);
+        long sourceOffset = checkpointSources[lo];
+        long copyOffset = checkpointTargets[lo];
+        long outputOffset = checkpointOutputs[lo];
+        while (true) {
+            long data = patch.decode();
+            mode = data & 3;
+            length = (data >> 2) + 1;
+            if (mode == SOURCE_READ) {
+                offset = outputOffset;
+            } else if (mode == TARGET_READ) {
+                offset = patch.offset();
+                patch.skip(length);
+            } else {
+                data = patch.decode();
+                long relative = (((data & 1) != 0) ? -1 : 1) * (data >> 1);
+                if (mode == SOURCE_COPY) {
+                    sourceOffset += relative;
+                    offset = sourceOffset;
+                    sourceOffset += length;
+                } else {
+                    copyOffset += relative;
+                    offset = copyOffset;
+                    copyOffset += length;
+                }
+            }
+            if (outputOffset + length > targetOffset) {
+                start = outputOffset;
+                return;
+            }
+            outputOffset += length;
+        }
+    }
+
+    /**
+     * Get a block of the target, resolving it if it is not cached.
+     */
+    private byte[] block(long index) throws IOException {
+        byte[] block = cache.get(index);
+        if (block == null) {
+            long first = index * BLOCK_SIZE;
+            block = new byte[(int) Math.min(BLOCK_SIZE, patch.targetSize - first)];
+            resolve(first, block, block.length);
+            cache.put(index, block);
+        }
+        return block;
+    }
+
+    /**
+     * Resolve {@code count} bytes of the target starting at
+     * {@code targetOffset} into the start of an array. Target copies are
+     * followed using a stack rather than recursion, as they may be chained
+     * back through the whole target.
+     */
+    private void resolve(long targetOffset, byte[] dst, int count) throws IOException {
+        // ranges of the target still to be resolved, and where they go, and
+        // markers for runs which repeat bytes resolved before them
+        ArrayDeque<long[]> stack = new ArrayDeque<long[]>();
+        stack.push(new long[]{RANGE, targetOffset, 0, count});
+        while (!stack.isEmpty()) {
+            long[] range = stack.pop();
+            int into = (int) range[2];
+            int n = (int) range[3];
+            if (range[0] == REPEAT) {
+                // each copy doubles the amount of the run which is written
+                for (int done = (int) range[1]; done < n;) {
+                    int chunk = Math.min(done, n - done);
+                    System.arraycopy(dst, into, dst, into + done, chunk);
+                    done += chunk;
+                }
+                continue;
+            }
+            long t = range[1];
+            byte[] cached = cache.get(t / BLOCK_SIZE);
+            if (cached != null) {
+                int from = (int) (t % BLOCK_SIZE);
+                int piece = Math.min(n, cached.length - from);
+                System.arraycopy(cached, from, dst, into, piece);
+                if (piece < n) {
+                    stack.push(new long[]{RANGE, t + piece, into + piece, n - piece});
+                }
+                continue;
+            }
+            locate(t);
+            long delta = t - start;
+            int piece = (int) Math.min(n, length - delta);
+            if (piece < n) {
+                stack.push(new long[]{RANGE, t + piece, into + piece, n - piece});
+            }
+            if (mode == SOURCE_READ || mode == SOURCE_COPY) {
+                source.get(offset + delta, dst, into, piece);
+            } else if (mode == TARGET_READ) {
+                patch.buffer().get(offset + delta, dst, into, piece);
+            } else {
+                // the copy repeats every period bytes once it overlaps itself
+                long period = start - offset;
+                long phase = delta % period;
+                int once = (int) Math.min(piece, period);
+                if (piece > once) {
+                    stack.push(new long[]{REPEAT, once, into, piece});
+                }
+                if (phase + once > period) {
+                    stack.push(new long[]{RANGE, offset, into + period - phase, phase + once - period});
+                    stack.push(new long[]{RANGE, offset + phase, into, period - phase});
+                } else {
+                    stack.push(new long[]{RANGE, offset + phase, into, once});
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= patch.targetSize) {
+            return -1;
+        }
+        int read = 0;
+        while (dst.hasRemaining() && position < patch.targetSize) {
+            byte[] block = block(position / BLOCK_SIZE);
+            int from = (int) (position % BLOCK_SIZE);
+            int count = Math.min(dst.remaining(), block.length - from);
+            dst.put(block, from, count);
+            position += count;
+            read += count;
+        }
+        return read;
+    }
+
+    /**
+     * Not supported, the channel is read only.
+     *
+     * @throws NonWritableChannelException always
+     */
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized PatchChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Position must not be negative");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    /**
+     * Get the size of the target.
+     */
+    @Override
+    public synchronized long size() throws IOException {
+        ensureOpen();
+        return patch.targetSize;
+    }
+
+    /**
+     * Not supported, the channel is read only.
+     *
+     * @throws NonWritableChannelException always
+     */
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * Get the metadata of the patch, or null if it has none.
+     */
+    public String getMetadata() {
+        return patch.metadata;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+        cache.clear();
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * Composes consecutive beat patches into one. Given a patch from A to B and a
+ * patch from B to C, a single patch from A to C is written without ever
+ * building B. Every part of B read by the second patch is rewritten in terms
+ * of the commands of the first which produced it, so the result reads only
+ * from A, from its own target, or from literal data of either patch. <p>
+ * Target copies of the first patch which repeat a short run are rewritten as
+ * one repetition followed by a target copy of that repetition, so runs do not
+ * expand into many commands.
+ */
+public final class PatchComposer {
+
+    /**
+     * Commands of the patch from A to B.
+     */
+    private final CommandIndex first;
+    /**
+     * The patch from A to B, for its literal data.
+     */
+    private final LargeBuffer firstPatch;
+    /**
+     * Size and checksum of A.
+     */
+    private final long sourceSize, sourceChecksum;
+    private final PatchWriter writer;
+    /**
+     * Commands of the patch from A to C.
+     */
+    private final CommandMerger out;
+
+    private PatchComposer(PatchProgram first, WritableByteChannel output) {
+        this.first = first.commands();
+        this.firstPatch = first.patch();
+        this.sourceSize = first.getSourceSize();
+        this.sourceChecksum = first.getSourceChecksum();
+        this.writer = new PatchWriter(output);
+        this.out = new CommandMerger(writer);
+    }
+
+    /**
+     * Compose two patch files into one.
+     *
+     * @param first patch from the original source to the intermediate file
+     * @param second patch from the intermediate file to the final target
+     * @param output location to which the composed patch will be written
+     * @throws IOException if either patch is invalid, or the second patch was
+     * not created from the target of the first
+     */
+    public static void compose(File first, File second, File output) throws IOException {
+        composeAll(Arrays.asList(first, second), output);
+    }
+
+    /**
+     * Compose any number of consecutive patch files into one, from the source
+     * of the first to the target of the last. Intermediate patches are written
+     * alongside the output and deleted once they have been used. As with
+     * {@link #compose(File, File, File)}, the output comes after the patches.
+     *
+     * @param patches the patches in the order they would be applied
+     * @param output location to which the composed patch will be written
+     * @throws IOException if any patch is invalid, or does not apply to the
+     * target of the patch before it
+     */
+    public static void composeAll(List<File> patches, File output) throws IOException {
+        if (patches.size() < 2) {
+            throw new IllegalArgumentException("At least two patches are required to compose");
+        }
+        if (patches.contains(output)) {
+            throw new IllegalArgumentException("Output must not be one of the patches");
+        }
+        PatchProgram current = PatchProgram.compile(patches.get(0));
+        File previous = null;
+        try {
+            for (int i = 1; i < patches.size(); i++) {
+                File next = (i == patches.size() - 1) ? output : tempFile(output);
+                FileChannel channel = new FileOutputStream(next).getChannel();
+                try {
+                    compose(current, PatchProgram.compile(patches.get(i)), channel);
+                } finally {
+                    channel.close();
+                }
+                if (previous != null) {
+                    previous.delete();
+                }
+                previous = (next == output) ? null : next;
+                if (next != output) {
+                    current = PatchProgram.compile(next);
+                }
+            }
+        } finally {
+            if (previous != null) {
+                previous.delete();
+            }
+        }
+    }
+
+    /**
+     * Compose two patches held in memory into one.
+     *
+     * @param first patch from the original source to the intermediate data
+     * @param second patch from the intermediate data to the final target
+     * @return a new buffer holding the composed patch
+     * @throws IOException if either patch is invalid, or the second patch was
+     * not created from the target of the first
+     */
+    public static ByteBuffer compose(ByteBuffer first, ByteBuffer second) throws IOException {
+        ByteBufferOutputStream out = new ByteBufferOutputStream(Math.max(first.remaining(), second.remaining()));
+        compose(PatchProgram.compile(first), PatchProgram.compile(second), Channels.newChannel(out));
+        return out.written();
+    }
+
+    /**
+     * Compose two compiled patches into one, writing it to a channel which is
+     * not closed afterwards.
+     *
+     * @param first program from the original source to the intermediate data
+     * @param second program from the intermediate data to the final target
+     * @param output channel to which the composed patch will be written
+     * @throws IOException if the second patch was not created from the target
+     * of the first
+     */
+    public static void compose(PatchProgram first, PatchProgram second, WritableByteChannel output) throws IOException {
+        if (second.getSourceSize() != first.getTargetSize() || second.getSourceChecksum() != first.getTargetChecksum()) {
+            throw new IOException("Second patch was not created from the target of the first!");
+        }
+        new PatchComposer(first, output).compose(second);
+    }
+
+    private void compose(PatchProgram second) throws IOException {
+        writer.header(sourceSize, second.getTargetSize(), second.getMetadata());
+        CommandIndex commands = second.commands();
+        for (int i = 0; i < commands.count; i++) {
+            int mode = commands.modes[i];
+            long offset = commands.offsets[i];
+            long length = commands.lengths[i];
+            if (mode == SOURCE_READ || mode == SOURCE_COPY) {
+                resolve(offset, length);
+            } else if (mode == TARGET_READ) {
+                out.literal(second.patch(), offset, length);
+            } else {
+                out.copy(TARGET_COPY, offset, length);
+            }
+        }
+        out.flush();
+        writer.footer(sourceChecksum, second.getTargetChecksum());
+    }
+
+    /**
+     * Describe the next {@code length} bytes of C as the bytes of B starting
+     * at {@code offset}, in terms of the commands of the first patch.
+     */
+    private void resolve(long offset, long length) throws IOException {
+        // ranges of B still to be described, in order, and target copies of
+        // C marking where a run repeats
+        ArrayDeque<long[]> stack = new ArrayDeque<long[]>();
+        stack.push(new long[]{SOURCE_READ, offset, length});
+        while (!stack.isEmpty()) {
+            long[] range = stack.pop();
+            if (range[0] == TARGET_COPY) {
+                out.copy(TARGET_COPY, range[1], range[2]);
+                continue;
+            }
+            long b = range[1], n = range[2];
+            int command = first.find(b);
+            long start = first.targetOffsets[command];
+            long delta = b - start;
+            long count = Math.min(n, first.lengths[command] - delta);
+            if (count < n) {
+                stack.push(new long[]{SOURCE_READ, b + count, n - count});
+            }
+            int mode = first.modes[command];
+            long from = first.offsets[command];
+            if (mode == SOURCE_READ || mode == SOURCE_COPY) {
+                out.copy(SOURCE_COPY, from + delta, count);
+            } else if (mode == TARGET_READ) {
+                out.literal(firstPatch, from + delta, count);
+            } else {
+                // the copy repeats every period bytes once it overlaps itself
+                long period = start - from;
+                delta %= period;
+                long once = Math.min(count, period);
+                if (count > once) {
+                    // describe one period, then copy it within C
+                    stack.push(new long[]{TARGET_COPY, out.outputOffset(), count - once});
+                }
+                if (delta + once > period) {
+                    stack.push(new long[]{SOURCE_READ, from, delta + once - period});
+                    stack.push(new long[]{SOURCE_READ, from + delta, period - delta});
+                } else {
+                    stack.push(new long[]{SOURCE_READ, from + delta, once});
+                }
+            }
+        }
+    }
+}
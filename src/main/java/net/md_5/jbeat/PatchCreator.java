@@ -28,7 +28,6 @@
  */
 package net.md_5.jbeat;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -36,8 +35,14 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import static net.md_5.jbeat.Shared.*;
 
 /**
@@ -46,41 +51,118 @@ import static net.md_5.jbeat.Shared.*;
 abstract class PatchCreator {
 
     /**
-     * The clean, unmodified file.
+     * Smallest segment of the target diffed by a single task when creating in
+     * parallel.
+     */
+    private static final long MINIMUM_SEGMENT = 1024 * 1024;
+    /**
+     * Number of calls to {@link #overBudget()} between reads of the clock.
+     */
+    private static final int BUDGET_CHECK_INTERVAL = 1024;
+
+    /**
+     * The clean, unmodified file, or null when creating from memory.
      */
     protected final RandomAccessFile sourceFile;
     /**
      * The source file mapped into memory.
      */
-    protected ByteBuffer source;
+    protected LargeBuffer source;
     /**
      * Length of the source file.
      */
     protected long sourceLength;
     /**
-     * The modified file which we will difference with the source file.
+     * The modified file which we will difference with the source file, or null
+     * when creating from memory.
      */
     protected final RandomAccessFile targetFile;
     /**
      * The target file mapped into memory.
      */
-    protected ByteBuffer target;
+    protected LargeBuffer target;
     /**
      * Length of the target file.
      */
     protected long targetLength;
     /**
-     * The location to which the patch will be generated.
+     * Channel to the patch output.
      */
-    protected final File outFile;
+    private final WritableByteChannel channel;
     /**
-     * Stream to the patch output.
+     * Whether the channel was opened by us, and should be closed once the
+     * patch has been written.
      */
-    protected final OutputStream out;
+    private final boolean ownChannel;
+    /**
+     * Stream supplied by the caller which underlies the channel, or null.
+     */
+    private final OutputStream stream;
+    /**
+     * Encoder of the header, commands and footer.
+     */
+    private final PatchWriter writer;
     /**
      * UTF-8, optional patch header.
      */
     private final String header;
+    /**
+     * Statistics of the patch being created.
+     */
+    private final PatchStatistics statistics = new PatchStatistics();
+    /**
+     * Listener to notify of progress, or null.
+     */
+    private PatchListener listener;
+    /**
+     * Settings trading speed against patch size.
+     */
+    private CreatorOptions options = new CreatorOptions();
+    /**
+     * Time at which the time budget runs out, if there is one.
+     */
+    private long deadline;
+    /**
+     * Calls to {@link #overBudget()} remaining until the clock is next read,
+     * counted separately by each thread diffing a segment.
+     */
+    private final ThreadLocal<int[]> budgetCountdown = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+    /**
+     * Whether the time budget has run out.
+     */
+    private volatile boolean overBudget;
+    /**
+     * Number of target bytes described when progress was last reported.
+     */
+    private long reported;
+    /**
+     * File in which the source index is persisted, or null to always build
+     * it.
+     */
+    private File sourceIndexFile;
+    /**
+     * Checksum of the source, or -1 until it has been computed.
+     */
+    private long sourceChecksum = -1;
+    /**
+     * Number of target bytes which have been described by commands so far,
+     * including any pending target read.
+     */
+    private long outputOffset;
+    /**
+     * Number of bytes waiting to be written as a single target read.
+     */
+    private long targetReadLength;
+    /**
+     * Buffer receiving the commands of the segment being diffed by the current
+     * thread, or none when commands are encoded as they are made.
+     */
+    private final ThreadLocal<CommandBuffer> segment = new ThreadLocal<CommandBuffer>();
 
     /**
      * Creates a new beat patch creator instance. In order to create and output
@@ -94,17 +176,111 @@ abstract class PatchCreator {
      * read or write access
      */
     protected PatchCreator(File original, File modified, File output, String header) throws FileNotFoundException {
+        this(original, modified, output, null, header);
+    }
+
+    /**
+     * Creates a new beat patch creator instance which writes the patch to a
+     * channel, such as a socket or pipe. The channel is not closed once the
+     * patch has been written.
+     *
+     * @param original file, which the patch applicator will have access to
+     * @param modified file which has been changed from the original
+     * @param output channel to which the patch will be written
+     * @param header to be used as beat metadata
+     * @throws FileNotFoundException when one of the files cannot be opened for
+     * read access
+     */
+    protected PatchCreator(File original, File modified, WritableByteChannel output, String header) throws FileNotFoundException {
+        this(original, modified, null, output, header);
+    }
+
+    /**
+     * Open the files, creating the output file if one is specified rather than
+     * a channel.
+     */
+    private PatchCreator(File original, File modified, File outputFile, WritableByteChannel output, String header) throws FileNotFoundException {
+        // open the inputs first, as opening the output truncates it
         this.sourceFile = new RandomAccessFile(original, "r");
-        this.targetFile = new RandomAccessFile(modified, "r");
-        this.out = new BufferedOutputStream(new FileOutputStream(output));
-        this.outFile = output;
+        RandomAccessFile targetFile = null;
+        try {
+            targetFile = new RandomAccessFile(modified, "r");
+            if (outputFile != null) {
+                output = new FileOutputStream(outputFile).getChannel();
+            }
+        } catch (FileNotFoundException ex) {
+            close(sourceFile, ex);
+            if (targetFile != null) {
+                close(targetFile, ex);
+            }
+            throw ex;
+        }
+        this.targetFile = targetFile;
+        this.channel = output;
+        this.ownChannel = outputFile != null;
+        this.stream = null;
+        this.writer = new PatchWriter(output);
         this.header = header;
     }
 
+    /**
+     * Close a file opened by a constructor which is about to fail.
+     */
+    private static void close(RandomAccessFile file, FileNotFoundException failure) {
+        try {
+            file.close();
+        } catch (IOException ex) {
+            failure.addSuppressed(ex);
+        }
+    }
+
     protected PatchCreator(File original, File modified, File output) throws FileNotFoundException {
         this(original, modified, output, null);
     }
 
+    /**
+     * Creates a new beat patch creator instance which works entirely from
+     * memory. The remaining bytes of each buffer are used, and their positions
+     * are not modified. The output stream is flushed but not closed once the
+     * patch has been written.
+     *
+     * @param original data, which the patch applicator will have access to
+     * @param modified data which has been changed from the original
+     * @param output stream to which the patch will be written
+     * @param header to be used as beat metadata
+     */
+    protected PatchCreator(ByteBuffer original, ByteBuffer modified, OutputStream output, String header) {
+        this(original, modified, Channels.newChannel(output), output, header);
+    }
+
+    /**
+     * Creates a new beat patch creator instance which works entirely from
+     * memory and writes the patch to a channel. The channel is not closed once
+     * the patch has been written.
+     *
+     * @param original data, which the patch applicator will have access to
+     * @param modified data which has been changed from the original
+     * @param output channel to which the patch will be written
+     * @param header to be used as beat metadata
+     */
+    protected PatchCreator(ByteBuffer original, ByteBuffer modified, WritableByteChannel output, String header) {
+        this(original, modified, output, null, header);
+    }
+
+    private PatchCreator(ByteBuffer original, ByteBuffer modified, WritableByteChannel output, OutputStream stream, String header) {
+        this.sourceFile = null;
+        this.targetFile = null;
+        this.source = LargeBuffer.wrap(original);
+        this.sourceLength = source.length();
+        this.target = LargeBuffer.wrap(modified);
+        this.targetLength = target.length();
+        this.channel = output;
+        this.ownChannel = false;
+        this.stream = stream;
+        this.writer = new PatchWriter(output);
+        this.header = header;
+    }
+
     /**
      * Creates a beat version 1 format binary patch of the two files specified
      * in the contrstructor. This method will header the file with beat
@@ -113,81 +289,367 @@ abstract class PatchCreator {
      * before writing to disk.
      */
     public void create() throws IOException {
+        create(null);
+    }
+
+    /**
+     * Creates a patch as with {@link #create()}, but splits the target into
+     * segments which are diffed concurrently in the specified pool. Each
+     * segment is described without reference to the commands of the others,
+     * so the patch may be slightly larger than one created sequentially.
+     *
+     * @param pool the pool in which to diff the segments, or null to create
+     * the patch on the calling thread
+     */
+    public void create(ForkJoinPool pool) throws IOException {
         try {
-            // store file lengths
-            sourceLength = sourceFile.length();
-            targetLength = targetFile.length();
-            // map the files
-            source = sourceFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, sourceLength);
-            target = targetFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, targetLength);
-            // write header
-            for (char c : magicHeader) {
-                out.write(c);
+            long time = System.nanoTime();
+            deadline = time + options.getTimeBudget() * 1000000L;
+            if (sourceFile != null) {
+                // store file lengths
+                sourceLength = sourceFile.length();
+                targetLength = targetFile.length();
+                // map the files
+                source = LargeBuffer.map(sourceFile.getChannel(), FileChannel.MapMode.READ_ONLY, sourceLength);
+                target = LargeBuffer.map(targetFile.getChannel(), FileChannel.MapMode.READ_ONLY, targetLength);
             }
-            // write original size
-            encode(out, sourceLength);
-            // write modified size
-            encode(out, targetLength);
-            // write header length
-            int headerLength = (header == null) ? 0 : header.length();
-            encode(out, headerLength);
-            // write the header
-            if (header != null) {
-                ByteBuffer encoded = encoder.encode(CharBuffer.wrap(header));
-                out.write(encoded.array(), encoded.arrayOffset(), encoded.limit());
+            statistics.mapNanos = System.nanoTime() - time;
+            // write header
+            writer.header(sourceLength, targetLength, header);
+            statistics.header(sourceLength, targetLength, header);
+            if (listener != null) {
+                listener.started(sourceLength, targetLength, header);
             }
             // do the actual patch
-            doPatch();
-            // write original checksum
-            writeIntLE(out, (int) checksum(source, sourceLength));
-            // write target checksum
-            writeIntLE(out, (int) checksum(target, targetLength));
-            // map ourselves to ram
-            out.flush();
-            // store patch length
-            long outLength = outFile.length();
-            ByteBuffer self = new RandomAccessFile(outFile, "rw").getChannel().map(FileChannel.MapMode.READ_ONLY, 0, outLength);
-            // write self checksum
-            writeIntLE(out, (int) checksum(self, outLength));
+            time = System.nanoTime();
+            index();
+            // the source checksum may have been needed to find the index
+            statistics.indexNanos = System.nanoTime() - time - statistics.sourceChecksumNanos;
+            time = System.nanoTime();
+            if (pool == null || targetLength <= MINIMUM_SEGMENT) {
+                doPatch(0, targetLength);
+            } else {
+                doSegments(pool);
+            }
+            targetReadFlush();
+            statistics.commandNanos = System.nanoTime() - time;
+            if (listener != null) {
+                listener.progress(outputOffset, targetLength);
+            }
+            // write original and target checksums, then our own
+            long sourceCrc = sourceChecksum();
+            time = System.nanoTime();
+            long targetCrc = checksum(target);
+            statistics.targetChecksumNanos = System.nanoTime() - time;
+            writer.footer(sourceCrc, targetCrc);
+            if (listener != null) {
+                listener.finished(statistics);
+            }
         } finally {
-            // close the streams
-            sourceFile.close();
-            targetFile.close();
-            out.close();
+            // close the streams we opened
+            if (sourceFile != null) {
+                sourceFile.close();
+                targetFile.close();
+            }
+            if (ownChannel) {
+                channel.close();
+            } else if (stream != null) {
+                stream.flush();
+            }
+        }
+    }
+
+    /**
+     * Set the listener to be notified as the patch is created.
+     *
+     * @param listener the listener, or null for none
+     */
+    public void setListener(PatchListener listener) {
+        this.listener = listener;
+    }
+
+    public CreatorOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Set the settings trading the speed of creation against the size of the
+     * patch. They must not be changed whilst the patch is being created.
+     *
+     * @param options the settings to use
+     */
+    public void setOptions(CreatorOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * Check whether creation has run for longer than the time budget, in which
+     * case the cheapest matching should be used from now on. The clock is only
+     * read every so often, so this may be called for every byte.
+     */
+    protected final boolean overBudget() {
+        if (overBudget || options.getTimeBudget() == 0) {
+            return overBudget;
+        }
+        int[] countdown = budgetCountdown.get();
+        if (--countdown[0] <= 0) {
+            countdown[0] = BUDGET_CHECK_INTERVAL;
+            // only ever set, so one segment cannot clear it for another
+            if (System.nanoTime() - deadline > 0) {
+                overBudget = true;
+            }
+        }
+        return overBudget;
+    }
+
+    /**
+     * Get the statistics gathered whilst creating the patch. They are
+     * complete once {@link #create()} has returned.
+     */
+    public PatchStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Persist the index of the source which this creator builds in the
+     * specified file. If the file already holds an index of the same kind for
+     * the same source, identified by its length and checksum, it is mapped
+     * into memory instead of being built again. Otherwise the index is built
+     * and written to the file for later use. Creators which do not index the
+     * source ignore the file.
+     *
+     * @param file location of the persisted source index
+     */
+    public void setSourceIndex(File file) {
+        this.sourceIndexFile = file;
+    }
+
+    /**
+     * Get the checksum of the source, computing it only once.
+     */
+    protected final long sourceChecksum() {
+        if (sourceChecksum == -1) {
+            long time = System.nanoTime();
+            sourceChecksum = checksum(source);
+            statistics.sourceChecksumNanos = System.nanoTime() - time;
+        }
+        return sourceChecksum;
+    }
+
+    /**
+     * Map the persisted index of the source, if one has been set and was
+     * built for this kind of index and source.
+     *
+     * @param kind identifies the type of index
+     * @param parameter any setting which changes the content of the index
+     * @return the mapped file, with entries starting at
+     * {@link IndexFile#DATA}, or null if the index must be built
+     */
+    protected final LargeBuffer mapSourceIndex(int kind, int parameter) throws IOException {
+        if (sourceIndexFile == null) {
+            return null;
         }
+        return IndexFile.map(sourceIndexFile, kind, parameter, sourceLength, sourceChecksum());
     }
 
     /**
-     * Writes and integer to the specified output stream in it's little Endian
-     * form. This method does not & with 0xFF and should not need to.
+     * Persist a newly built index of the source, if a file has been set.
      */
-    private void writeIntLE(OutputStream out, int value) throws IOException {
-        out.write(value);
-        out.write(value >> 8);
-        out.write(value >> 16);
-        out.write(value >> 24);
+    protected final void writeSourceIndex(int kind, int parameter, int[] entries) throws IOException {
+        if (sourceIndexFile != null) {
+            IndexFile.write(sourceIndexFile, kind, parameter, sourceLength, sourceChecksum(), entries);
+        }
     }
 
     /**
-     * Encode a single number as into it's variable length form and write it to
-     * the output stream.
+     * Diff the target in segments, encoding the commands of each in order as
+     * soon as it and those before it are complete.
      */
-    protected final void encode(OutputStream out, long data) throws IOException {
-        while (true) {
-            long x = data & 0x7f;
-            data >>= 7;
-            if (data == 0) {
-                out.write((byte) (0x80 | x));
-                break;
+    private void doSegments(ForkJoinPool pool) throws IOException {
+        long segmentSize = Math.max(MINIMUM_SEGMENT, targetLength / (pool.getParallelism() * 4L) + 1);
+        List<Segment> segments = new ArrayList<Segment>();
+        for (long start = 0; start < targetLength; start += segmentSize) {
+            Segment task = new Segment(start, Math.min(start + segmentSize, targetLength));
+            pool.execute(task);
+            segments.add(task);
+        }
+        try {
+            for (Segment task : segments) {
+                CommandBuffer commands = task.get();
+                if (task.failure != null) {
+                    throw task.failure;
+                }
+                for (int i = 0; i < commands.count; i++) {
+                    long offset = commands.offsets[i];
+                    long length = commands.lengths[i];
+                    int mode = commands.modes[i];
+                    if (mode == SOURCE_READ) {
+                        sourceRead(length);
+                    } else if (mode == TARGET_READ) {
+                        targetRead(length);
+                    } else if (mode == SOURCE_COPY) {
+                        sourceCopy(offset, length);
+                    } else {
+                        targetCopy(offset, length);
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst creating patch!", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            }
+            throw new IOException("Could not create patch segment!", ex.getCause());
+        } finally {
+            for (Segment task : segments) {
+                task.cancel(false);
             }
-            out.write((byte) x);
-            data--;
         }
     }
 
+    /**
+     * Task which records the commands describing one segment of the target.
+     */
+    private class Segment extends RecursiveTask<CommandBuffer> {
+
+        private static final long serialVersionUID = 1L;
+        private final long start;
+        private final long end;
+        /**
+         * Error which prevented the segment from being described.
+         */
+        private IOException failure;
+
+        Segment(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected CommandBuffer compute() {
+            CommandBuffer commands = new CommandBuffer();
+            segment.set(commands);
+            try {
+                doPatch(start, end);
+            } catch (IOException ex) {
+                failure = ex;
+            } finally {
+                segment.remove();
+            }
+            return commands;
+        }
+    }
+
+    /**
+     * Describe the next {@code length} bytes of the target as being read
+     * straight from the patch. Consecutive target reads are merged into a
+     * single command.
+     */
+    protected final void targetRead(long length) {
+        CommandBuffer commands = segment.get();
+        if (commands != null) {
+            commands.add(TARGET_READ, 0, length);
+            return;
+        }
+        targetReadLength += length;
+        advance(length);
+    }
+
+    /**
+     * Describe the next {@code length} bytes of the target as being read from
+     * the same offset in the source.
+     */
+    protected final void sourceRead(long length) throws IOException {
+        CommandBuffer commands = segment.get();
+        if (commands != null) {
+            commands.add(SOURCE_READ, 0, length);
+            return;
+        }
+        targetReadFlush();
+        writer.sourceRead(length);
+        statistics.command(SOURCE_READ, length);
+        advance(length);
+    }
+
+    /**
+     * Describe the next {@code length} bytes of the target as being copied
+     * from the specified offset of the source.
+     */
+    protected final void sourceCopy(long offset, long length) throws IOException {
+        CommandBuffer commands = segment.get();
+        if (commands != null) {
+            commands.add(SOURCE_COPY, offset, length);
+            return;
+        }
+        targetReadFlush();
+        writer.sourceCopy(offset, length);
+        statistics.command(SOURCE_COPY, length);
+        advance(length);
+    }
+
+    /**
+     * Describe the next {@code length} bytes of the target as being copied
+     * from the specified, already output offset of the target. The copy may
+     * overlap itself in order to repeat a run of bytes.
+     */
+    protected final void targetCopy(long offset, long length) throws IOException {
+        CommandBuffer commands = segment.get();
+        if (commands != null) {
+            commands.add(TARGET_COPY, offset, length);
+            return;
+        }
+        targetReadFlush();
+        writer.targetCopy(offset, length);
+        statistics.command(TARGET_COPY, length);
+        advance(length);
+    }
+
+    /**
+     * Move the output past bytes which have been described, reporting
+     * progress if enough have been since it was last reported.
+     */
+    private void advance(long length) {
+        outputOffset += length;
+        if (listener != null && outputOffset - reported >= Patcher.PROGRESS_INTERVAL) {
+            listener.progress(outputOffset, targetLength);
+            reported = outputOffset;
+        }
+    }
+
+    /**
+     * Write a complete target read statement.
+     */
+    private void targetReadFlush() throws IOException {
+        if (targetReadLength != 0) {
+            writer.targetRead(target, outputOffset - targetReadLength, targetReadLength);
+            statistics.command(TARGET_READ, targetReadLength);
+            targetReadLength = 0;
+        }
+    }
+
+    /**
+     * Build any indexes of the source and target required by
+     * {@link #doPatch(long, long)}. Called once the files have been mapped,
+     * before any part of the target is diffed.
+     */
+    protected void index() throws IOException {
+    }
+
     /**
      * Method which the patch implementation must overwrite to generate the
-     * binary differences for the patch.
+     * binary differences for the patch. Implementations describe bytes
+     * {@code [start, end)} of the target, in order, using
+     * {@link #sourceRead(long)}, {@link #targetRead(long)},
+     * {@link #sourceCopy(long, long)} and {@link #targetCopy(long, long)}.
+     * Commands may copy from anywhere in the target before their own output,
+     * but must not write past {@code end}. <p> When creating in parallel this
+     * is called concurrently for different segments of the target, so any
+     * state other than the indexes must be kept local to each call.
      */
-    protected abstract void doPatch() throws IOException;
+    protected abstract void doPatch(long start, long end) throws IOException;
 }
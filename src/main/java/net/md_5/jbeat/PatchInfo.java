@@ -0,0 +1,207 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Description of a beat patch read from only its header and the twelve bytes
+ * of checksums at its end, so that a patch may be inspected, and checked
+ * against a source, before anything is written. Reading the description does
+ * not touch the commands of the patch, nor verify its checksum, which may be
+ * done separately with {@link #verifyPatch()}.
+ */
+public final class PatchInfo {
+
+    /**
+     * The entire patch, mapped lazily when read from a file.
+     */
+    private final LargeBuffer patch;
+    private final long sourceSize;
+    private final long targetSize;
+    private final String metadata;
+    private final long sourceChecksum;
+    private final long targetChecksum;
+    private final long patchChecksum;
+
+    private PatchInfo(LargeBuffer patch) throws IOException {
+        this.patch = patch;
+        PatchReader reader = new PatchReader(patch);
+        this.sourceSize = reader.sourceSize;
+        this.targetSize = reader.targetSize;
+        this.metadata = reader.metadata;
+        reader.seek(reader.commandsEnd());
+        this.sourceChecksum = reader.readInt();
+        this.targetChecksum = reader.readInt();
+        this.patchChecksum = reader.readInt();
+    }
+
+    /**
+     * Read the description of a patch file. Only the pages holding its header
+     * and checksums are read from disk.
+     *
+     * @param patch the beat format patch file
+     * @return the description of the patch
+     * @throws IOException if the file cannot be read, or its header is invalid
+     */
+    public static PatchInfo read(File patch) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(patch, "r");
+        try {
+            return new PatchInfo(LargeBuffer.map(file.getChannel(), FileChannel.MapMode.READ_ONLY, file.length()));
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Read the description of a patch held in memory. The buffer must not be
+     * modified whilst the description is in use.
+     *
+     * @param patch the remaining bytes of which are a beat patch
+     * @return the description of the patch
+     * @throws IOException if the header of the patch is invalid
+     */
+    public static PatchInfo read(ByteBuffer patch) throws IOException {
+        return new PatchInfo(LargeBuffer.wrap(patch.slice()));
+    }
+
+    /**
+     * Check the checksum of the patch against its contents, reading the whole
+     * patch once.
+     *
+     * @return whether the patch is intact
+     */
+    public boolean verifyPatch() {
+        CRC32 crc = new CRC32();
+        patch.update(crc, 0, patch.length() - 4);
+        return crc.getValue() == patchChecksum;
+    }
+
+    /**
+     * Check whether a file is the source from which the patch was created.
+     * Files of the wrong size are rejected without being read.
+     *
+     * @param source the file to check
+     * @return whether the file may be patched
+     * @throws IOException if the file cannot be read
+     */
+    public boolean matchesSource(File source) throws IOException {
+        return matchesSource(source, null);
+    }
+
+    /**
+     * Check whether a file is the source from which the patch was created, as
+     * with {@link #matchesSource(File)}, taking its checksum from a cache.
+     *
+     * @param source the file to check
+     * @param cache cache of file checksums, or null for none
+     * @return whether the file may be patched
+     * @throws IOException if the file cannot be read
+     */
+    public boolean matchesSource(File source, ChecksumCache cache) throws IOException {
+        if (source.length() < sourceSize) {
+            return false;
+        }
+        long checksum = (cache != null) ? cache.checksum(source, sourceSize) : ChecksumCache.checksum(source, sourceSize, new CRC32());
+        return checksum == sourceChecksum;
+    }
+
+    /**
+     * Check whether the remaining bytes of a buffer are the source from which
+     * the patch was created.
+     *
+     * @param source the data to check
+     * @return whether the data may be patched
+     */
+    public boolean matchesSource(ByteBuffer source) {
+        if (source.remaining() < sourceSize) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        LargeBuffer.wrap(source.slice()).update(crc, 0, sourceSize);
+        return crc.getValue() == sourceChecksum;
+    }
+
+    /**
+     * Check that the patch is intact and was created from a file, throwing if
+     * it cannot be applied.
+     *
+     * @param source the file to be patched
+     * @param cache cache of file checksums, or null for none
+     * @throws IOException if the patch is corrupt, or was not created from the
+     * source
+     */
+    public void verify(File source, ChecksumCache cache) throws IOException {
+        if (!verifyPatch()) {
+            throw new IOException("Patch checksum does not match!");
+        }
+        if (source.length() < sourceSize) {
+            throw new IOException("Source is smaller than the patch expects!");
+        }
+        if (!matchesSource(source, cache)) {
+            throw new IOException("Source checksum does not match!");
+        }
+    }
+
+    public long getSourceSize() {
+        return sourceSize;
+    }
+
+    public long getTargetSize() {
+        return targetSize;
+    }
+
+    /**
+     * Get the UTF-8 metadata of the patch, or null if there is none.
+     */
+    public String getMetadata() {
+        return metadata;
+    }
+
+    public long getSourceChecksum() {
+        return sourceChecksum;
+    }
+
+    public long getTargetChecksum() {
+        return targetChecksum;
+    }
+
+    public long getPatchChecksum() {
+        return patchChecksum;
+    }
+
+    public long getPatchSize() {
+        return patch.length();
+    }
+}
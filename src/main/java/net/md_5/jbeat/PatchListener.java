@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+/**
+ * Receives notifications as a patch is created or applied. Every method does
+ * nothing by default, so implementations need only override those they are
+ * interested in. Methods are called on the thread creating or applying the
+ * patch.
+ */
+public interface PatchListener {
+
+    /**
+     * Called once the header of the patch has been read or written.
+     *
+     * @param sourceSize size of the source
+     * @param targetSize size of the target
+     * @param metadata the metadata of the patch, or null if it has none
+     */
+    default void started(long sourceSize, long targetSize, String metadata) {
+    }
+
+    /**
+     * Called periodically as the target is written or described.
+     *
+     * @param done number of target bytes complete
+     * @param total size of the target
+     */
+    default void progress(long done, long total) {
+    }
+
+    /**
+     * Called once the patch has been created or applied and every checksum
+     * verified.
+     *
+     * @param statistics what the patch consisted of and where time was spent
+     */
+    default void finished(PatchStatistics statistics) {
+    }
+}
@@ -0,0 +1,339 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * Rewrites an existing beat patch into an equivalent one which is smaller and
+ * faster to apply. Long copies of the original patch are kept, while each run
+ * of literal data and short commands between them is described again, using
+ * the same rolling hash block matching as {@link BlockCreator} to find reads
+ * and copies from the source or earlier in the target. Copies which cost at
+ * least as much to encode as their bytes are folded into the literal data
+ * around them, and each run is written in whichever form is estimated to be
+ * smallest, so runs of short alternating reads collapse into single target
+ * reads. Contiguous copies and neighbouring literals are merged into single
+ * commands. <p> The target is rebuilt from the patch and source in order to
+ * find copies, and every checksum of the original patch is verified before
+ * anything is written, so the rewritten patch creates exactly the same
+ * target. It may be run from the command line as
+ * {@code PatchOptimizer <patch> <source> <output>}, where the output may be
+ * the patch itself.
+ */
+public final class PatchOptimizer {
+
+    /**
+     * Matches shorter than this are not worth the cost of a command.
+     */
+    private static final int MINIMUM_MATCH = 4;
+    private final PatchProgram program;
+    private final LargeBuffer source;
+    private final LargeBuffer target;
+    private final int blockSize;
+    private final PatchWriter writer;
+    private final CommandMerger out;
+    private BlockMatcher matcher;
+    /**
+     * Relative offsets of the copies written so far, as they will be tracked
+     * by the patch applicator.
+     */
+    private long sourceRelative, targetRelative;
+
+    private PatchOptimizer(PatchProgram program, LargeBuffer source, LargeBuffer target, WritableByteChannel output, int blockSize) {
+        this.program = program;
+        this.source = source;
+        this.target = target;
+        this.blockSize = BlockCreator.checkBlockSize(blockSize);
+        this.writer = new PatchWriter(output);
+        this.out = new CommandMerger(writer);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: PatchOptimizer <patch> <source> <output>");
+            System.exit(1);
+        }
+        File patch = new File(args[0]);
+        long length = patch.length();
+        File output = new File(args[2]);
+        optimize(patch, new File(args[1]), output);
+        System.out.println("Rewrote " + length + " byte patch as " + output.length() + " bytes");
+    }
+
+    /**
+     * Rewrite a patch file.
+     *
+     * @param patch the patch to be rewritten
+     * @param source the file from which the patch was created
+     * @param output location to which the rewritten patch will be written,
+     * which may be the patch itself
+     * @throws IOException if the patch is invalid, or does not apply to the
+     * source
+     */
+    public static void optimize(File patch, File source, File output) throws IOException {
+        optimize(patch, source, output, BlockCreator.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Rewrite a patch file, searching for copies with blocks of the specified
+     * size. The target is rebuilt, and the rewritten patch written, in
+     * temporary files alongside the output, which is only replaced once the
+     * rewrite is complete.
+     *
+     * @param patch the patch to be rewritten
+     * @param source the file from which the patch was created
+     * @param output location to which the rewritten patch will be written,
+     * which may be the patch itself
+     * @param blockSize size of the blocks indexed when searching for copies
+     * @throws IOException if the patch is invalid, or does not apply to the
+     * source
+     */
+    public static void optimize(File patch, File source, File output, int blockSize) throws IOException {
+        PatchProgram program = PatchProgram.compile(patch);
+        File temp = tempFile(output);
+        File rewritten = tempFile(output);
+        try {
+            RandomAccessFile sourceFile = new RandomAccessFile(source, "r");
+            RandomAccessFile targetFile = new RandomAccessFile(temp, "rw");
+            FileChannel channel = null;
+            try {
+                LargeBuffer in = LargeBuffer.map(sourceFile.getChannel(), FileChannel.MapMode.READ_ONLY, Math.min(program.getSourceSize(), sourceFile.length()));
+                targetFile.setLength(program.getTargetSize());
+                LargeBuffer rebuilt = LargeBuffer.map(targetFile.getChannel(), FileChannel.MapMode.READ_WRITE, program.getTargetSize());
+                channel = new FileOutputStream(rewritten).getChannel();
+                new PatchOptimizer(program, in, rebuilt, channel, blockSize).optimize();
+            } finally {
+                sourceFile.close();
+                targetFile.close();
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            // the patch may still be mapped, so it is replaced rather than
+            // truncated
+            replace(rewritten, output);
+        } finally {
+            temp.delete();
+            rewritten.delete();
+        }
+    }
+
+    /**
+     * Rewrite a patch held in memory.
+     *
+     * @param patch the patch to be rewritten
+     * @param source the data from which the patch was created
+     * @return a new buffer holding the rewritten patch
+     * @throws IOException if the patch is invalid, or does not apply to the
+     * source
+     */
+    public static ByteBuffer optimize(ByteBuffer patch, ByteBuffer source) throws IOException {
+        PatchProgram program = PatchProgram.compile(patch);
+        if (program.getTargetSize() > Integer.MAX_VALUE) {
+            throw new IOException("Target is too large to be held in a single buffer!");
+        }
+        LargeBuffer rebuilt = LargeBuffer.wrap(ByteBuffer.allocate((int) program.getTargetSize()));
+        ByteBufferOutputStream out = new ByteBufferOutputStream(patch.remaining());
+        new PatchOptimizer(program, LargeBuffer.wrap(source), rebuilt, Channels.newChannel(out), BlockCreator.DEFAULT_BLOCK_SIZE).optimize();
+        return out.written();
+    }
+
+    private void optimize() throws IOException {
+        // rebuild the target, verifying every checksum
+        program.apply(source, target, null);
+        long sourceLength = program.getSourceSize();
+        if (sourceLength / blockSize > Integer.MAX_VALUE || target.length() / blockSize > Integer.MAX_VALUE) {
+            throw new IOException("Too many blocks to index, increase the block size!");
+        }
+        BlockIndex sourceIndex = BlockMatcher.indexSource(source, sourceLength, blockSize);
+        BlockIndex targetIndex = new BlockIndex((int) (target.length() / blockSize));
+        matcher = new BlockMatcher(source, sourceLength, target, target.length(), sourceIndex, targetIndex, 0, blockSize, MINIMUM_MATCH);
+
+        writer.header(sourceLength, program.getTargetSize(), program.getMetadata());
+        CommandIndex commands = program.commands();
+        int i = 0;
+        while (i < commands.count) {
+            if (commands.modes[i] != TARGET_READ && commands.lengths[i] >= blockSize) {
+                // long copies are kept as they are
+                emit(commands.modes[i] == TARGET_COPY ? TARGET_COPY : SOURCE_COPY, commands.offsets[i], commands.lengths[i]);
+                i++;
+                continue;
+            }
+            CommandBuffer original = new CommandBuffer();
+            long start = commands.targetOffsets[i];
+            for (; i < commands.count && (commands.modes[i] == TARGET_READ || commands.lengths[i] < blockSize); i++) {
+                long mode = commands.modes[i];
+                long offset = (mode == TARGET_READ) ? commands.targetOffsets[i] : commands.offsets[i];
+                original.add(mode == TARGET_READ || mode == TARGET_COPY ? mode : SOURCE_COPY, offset, commands.lengths[i]);
+            }
+            run(original, start, commands.targetOffsets[i - 1] + commands.lengths[i - 1]);
+        }
+        out.flush();
+        writer.footer(program.getSourceChecksum(), program.getTargetChecksum());
+    }
+
+    /**
+     * Describe bytes {@code [start, end)} of the target, which the original
+     * patch held as literal data and short commands, in the smallest of the
+     * original commands, those commands with unprofitable copies folded into
+     * literal data, and the copies found by searching for them.
+     */
+    private void run(CommandBuffer original, long start, long end) throws IOException {
+        final CommandBuffer matched = new CommandBuffer();
+        matcher.match(start, end, new BlockMatcher.Output() {
+            @Override
+            public void targetRead(long from, long to) {
+                matched.add(TARGET_READ, from, to - from);
+            }
+
+            @Override
+            public void sourceRead(long offset, long length) {
+                matched.add(SOURCE_COPY, offset, length);
+            }
+
+            @Override
+            public void sourceCopy(long offset, long length) {
+                matched.add(SOURCE_COPY, offset, length);
+            }
+
+            @Override
+            public void targetCopy(long offset, long length) {
+                matched.add(TARGET_COPY, offset, length);
+            }
+
+            @Override
+            public boolean overBudget() {
+                return false;
+            }
+        });
+
+        CommandBuffer best = original;
+        long bestCost = cost(original, start);
+        CommandBuffer[] candidates = {coalesce(original, start), coalesce(matched, start)};
+        for (CommandBuffer candidate : candidates) {
+            long cost = cost(candidate, start);
+            if (cost < bestCost) {
+                best = candidate;
+                bestCost = cost;
+            }
+        }
+        for (int i = 0; i < best.count; i++) {
+            emit(best.modes[i], best.offsets[i], best.lengths[i]);
+        }
+    }
+
+    /**
+     * Fold every copy which costs at least as much to encode as its bytes
+     * into the literal data around it.
+     */
+    private CommandBuffer coalesce(CommandBuffer commands, long outputOffset) {
+        CommandBuffer coalesced = new CommandBuffer();
+        long sourceRelative = this.sourceRelative, targetRelative = this.targetRelative;
+        for (int i = 0; i < commands.count; i++) {
+            long mode = commands.modes[i];
+            long offset = commands.offsets[i];
+            long length = commands.lengths[i];
+            if (mode == TARGET_READ || length <= commandSize(mode, offset, length, outputOffset, sourceRelative, targetRelative)) {
+                coalesced.add(TARGET_READ, outputOffset, length);
+            } else {
+                coalesced.add(mode, offset, length);
+                if (mode == TARGET_COPY) {
+                    targetRelative = offset + length;
+                } else if (offset != outputOffset) {
+                    sourceRelative = offset + length;
+                }
+            }
+            outputOffset += length;
+        }
+        return coalesced;
+    }
+
+    /**
+     * Estimate the encoded size of commands describing the target from the
+     * specified offset.
+     */
+    private long cost(CommandBuffer commands, long outputOffset) {
+        long sourceRelative = this.sourceRelative, targetRelative = this.targetRelative;
+        long cost = 0;
+        for (int i = 0; i < commands.count; i++) {
+            long mode = commands.modes[i];
+            long offset = commands.offsets[i];
+            long length = commands.lengths[i];
+            cost += commandSize(mode, offset, length, outputOffset, sourceRelative, targetRelative);
+            if (mode == TARGET_READ) {
+                cost += length;
+            } else if (mode == TARGET_COPY) {
+                targetRelative = offset + length;
+            } else if (offset != outputOffset) {
+                sourceRelative = offset + length;
+            }
+            outputOffset += length;
+        }
+        return cost;
+    }
+
+    /**
+     * Get the encoded size of a single command, excluding any literal data.
+     * Source copies from the same offset as their output are source reads.
+     */
+    private static long commandSize(long mode, long offset, long length, long outputOffset, long sourceRelative, long targetRelative) {
+        long size = PatchWriter.encodedSize((length - 1) << 2);
+        if (mode == TARGET_COPY) {
+            size += PatchWriter.offsetSize(offset - targetRelative);
+        } else if (mode == SOURCE_COPY && offset != outputOffset) {
+            size += PatchWriter.offsetSize(offset - sourceRelative);
+        }
+        return size;
+    }
+
+    /**
+     * Write the next command, literal data being read from the rebuilt target.
+     */
+    private void emit(long mode, long offset, long length) throws IOException {
+        if (mode == TARGET_READ) {
+            out.literal(target, out.outputOffset(), length);
+            return;
+        }
+        if (mode == TARGET_COPY) {
+            targetRelative = offset + length;
+        } else if (offset != out.outputOffset()) {
+            sourceRelative = offset + length;
+        }
+        out.copy(mode, offset, length);
+    }
+}
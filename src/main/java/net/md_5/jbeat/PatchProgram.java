@@ -0,0 +1,390 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * A beat patch compiled into an immutable program. The header and every
+ * command are decoded, and the checksum of the patch itself verified, just
+ * once. The program may then be applied any number of times, from any number
+ * of threads at once, to different sources and targets, with only the source
+ * and target checksums verified on each application. <p> A program compiled
+ * from a buffer reads target read payloads straight from that buffer, which
+ * must not be modified for as long as the program is in use.
+ */
+public final class PatchProgram {
+
+    /**
+     * Number of bytes processed between updates of the running checksum.
+     */
+    private static final int CHECKSUM_CHUNK = 64 * 1024;
+    private final LargeBuffer patch;
+    private final CommandIndex commands;
+    private final long sourceSize;
+    private final long targetSize;
+    private final String metadata;
+    private final long sourceChecksum;
+    private final long targetChecksum;
+    private final long patchChecksum;
+
+    private PatchProgram(LargeBuffer patch, ForkJoinPool pool) throws IOException {
+        this.patch = patch;
+        PatchReader reader = new PatchReader(patch);
+        this.commands = new CommandIndex(reader);
+        this.sourceSize = reader.sourceSize;
+        this.targetSize = reader.targetSize;
+        this.metadata = reader.metadata;
+        this.sourceChecksum = reader.readInt();
+        this.targetChecksum = reader.readInt();
+        long end = reader.offset();
+        this.patchChecksum = reader.readInt();
+        if (checksum(patch, end, pool) != patchChecksum) {
+            throw new IOException("Patch checksum does not match!");
+        }
+    }
+
+    /**
+     * Compile a patch file.
+     *
+     * @param patch the beat format patch file
+     * @return the compiled program
+     * @throws IOException if the patch cannot be read, is invalid, or its
+     * checksum does not match
+     */
+    public static PatchProgram compile(File patch) throws IOException {
+        return compile(patch, null);
+    }
+
+    /**
+     * Compile a patch file, verifying its checksum using the specified pool.
+     *
+     * @param patch the beat format patch file
+     * @param pool pool in which to checksum the patch, or null to do so on the
+     * calling thread
+     * @return the compiled program
+     * @throws IOException if the patch cannot be read, is invalid, or its
+     * checksum does not match
+     */
+    public static PatchProgram compile(File patch, ForkJoinPool pool) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(patch, "r");
+        try {
+            // the mapping remains valid once the file is closed
+            return new PatchProgram(LargeBuffer.map(file.getChannel(), FileChannel.MapMode.READ_ONLY, file.length()), pool);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Compile a patch held in memory. The remaining bytes of the buffer are
+     * used, and its position is not modified.
+     *
+     * @param patch the remaining bytes of which are a beat patch
+     * @return the compiled program
+     * @throws IOException if the patch is invalid, or its checksum does not
+     * match
+     */
+    public static PatchProgram compile(ByteBuffer patch) throws IOException {
+        return new PatchProgram(LargeBuffer.wrap(patch.asReadOnlyBuffer()), null);
+    }
+
+    static PatchProgram compile(LargeBuffer patch, ForkJoinPool pool) throws IOException {
+        return new PatchProgram(patch, pool);
+    }
+
+    public long getSourceSize() {
+        return sourceSize;
+    }
+
+    public long getTargetSize() {
+        return targetSize;
+    }
+
+    /**
+     * Get the UTF-8 metadata of the patch, or null if there is none.
+     */
+    public String getMetadata() {
+        return metadata;
+    }
+
+    public long getSourceChecksum() {
+        return sourceChecksum;
+    }
+
+    public long getTargetChecksum() {
+        return targetChecksum;
+    }
+
+    public long getPatchChecksum() {
+        return patchChecksum;
+    }
+
+    /**
+     * Get the size of the patch this program was compiled from.
+     */
+    public long getPatchSize() {
+        return patch.length();
+    }
+
+    public int getCommandCount() {
+        return commands.count;
+    }
+
+    /**
+     * Get the entire patch.
+     */
+    LargeBuffer patch() {
+        return patch;
+    }
+
+    /**
+     * Get the decoded commands of the patch.
+     */
+    CommandIndex commands() {
+        return commands;
+    }
+
+    /**
+     * Apply this program to a source file, writing the patched target file.
+     *
+     * @param source original file from which the patch was created
+     * @param target location to which the new, patched file will be output
+     * @throws IOException if the files cannot be accessed, or a checksum does
+     * not match
+     */
+    public void apply(File source, File target) throws IOException {
+        apply(source, target, null);
+    }
+
+    /**
+     * Apply this program to a source file, writing the patched target file
+     * using the threads of the specified pool.
+     *
+     * @param source original file from which the patch was created
+     * @param target location to which the new, patched file will be output
+     * @param pool pool in which to apply the program, or null to apply it on
+     * the calling thread
+     * @throws IOException if the files cannot be accessed, or a checksum does
+     * not match
+     */
+    public void apply(File source, File target, ForkJoinPool pool) throws IOException {
+        RandomAccessFile sourceFile = new RandomAccessFile(source, "r");
+        try {
+            RandomAccessFile targetFile = new RandomAccessFile(target, "rw");
+            try {
+                LargeBuffer in = LargeBuffer.map(sourceFile.getChannel(), FileChannel.MapMode.READ_ONLY, Math.min(sourceSize, sourceFile.length()));
+                apply(in, targetFile, pool, new PatchStatistics(), null);
+            } finally {
+                targetFile.close();
+            }
+        } finally {
+            sourceFile.close();
+        }
+    }
+
+    /**
+     * Apply this program to a source in memory, returning the target in a
+     * newly allocated buffer. The position of the source is not modified.
+     *
+     * @param source the remaining bytes of which are the patch source
+     * @return the patched target
+     * @throws IOException if a checksum does not match
+     */
+    public ByteBuffer apply(ByteBuffer source) throws IOException {
+        if (targetSize > Integer.MAX_VALUE) {
+            throw new IOException("Target is too large to be held in a single buffer!");
+        }
+        ByteBuffer target = ByteBuffer.allocate((int) targetSize);
+        apply(LargeBuffer.wrap(source), LargeBuffer.wrap(target), null);
+        return target;
+    }
+
+    /**
+     * Apply this program to a source in memory, writing the target into a
+     * buffer supplied by the caller. The target is written starting at the
+     * position of the buffer, which is advanced past it.
+     *
+     * @param source the remaining bytes of which are the patch source
+     * @param target buffer to receive the patched target
+     * @return a view of exactly the bytes of the target
+     * @throws BufferOverflowException if the target does not fit in the space
+     * remaining in the buffer
+     * @throws IOException if a checksum does not match
+     */
+    public ByteBuffer apply(ByteBuffer source, ByteBuffer target) throws IOException {
+        if (targetSize > target.remaining()) {
+            throw new BufferOverflowException();
+        }
+        ByteBuffer out = target.duplicate();
+        out.limit(out.position() + (int) targetSize);
+        out = out.slice();
+        apply(LargeBuffer.wrap(source), LargeBuffer.wrap(out), null);
+        target.position(target.position() + out.limit());
+        return out;
+    }
+
+    /**
+     * Apply this program, writing exactly the target size bytes of the
+     * target. The source is verified before anything is written.
+     */
+    void apply(LargeBuffer source, LargeBuffer target, ForkJoinPool pool) throws IOException {
+        apply(source, target, pool, new PatchStatistics(), null);
+    }
+
+    /**
+     * Apply this program as with
+     * {@link #apply(LargeBuffer, LargeBuffer, ForkJoinPool)}, gathering
+     * statistics and notifying a listener, which may be null, of progress.
+     */
+    void apply(LargeBuffer source, LargeBuffer target, ForkJoinPool pool, PatchStatistics statistics, PatchListener listener) throws IOException {
+        checkSource(source, pool, statistics);
+        applyChecked(source, target, pool, statistics, listener);
+    }
+
+    /**
+     * Apply this program as with
+     * {@link #apply(LargeBuffer, LargeBuffer, ForkJoinPool, PatchStatistics, PatchListener)},
+     * writing the target to a file which is only resized and mapped once the
+     * source has been verified.
+     */
+    void apply(LargeBuffer source, RandomAccessFile target, ForkJoinPool pool, PatchStatistics statistics, PatchListener listener) throws IOException {
+        checkSource(source, pool, statistics);
+        long start = System.nanoTime();
+        target.setLength(targetSize);
+        LargeBuffer out = LargeBuffer.map(target.getChannel(), FileChannel.MapMode.READ_WRITE, targetSize);
+        statistics.mapNanos += System.nanoTime() - start;
+        applyChecked(source, out, pool, statistics, listener);
+    }
+
+    /**
+     * Verify the size and checksum of a source before anything is written.
+     */
+    private void checkSource(LargeBuffer source, ForkJoinPool pool, PatchStatistics statistics) throws IOException {
+        if (source.length() < sourceSize) {
+            throw new IOException("Source is smaller than the patch expects!");
+        }
+        long start = System.nanoTime();
+        if (checksum(source, sourceSize, pool) != sourceChecksum) {
+            throw new IOException("Source checksum does not match!");
+        }
+        statistics.sourceChecksumNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Apply this program to a source which has been verified, then verify the
+     * target.
+     */
+    private void applyChecked(LargeBuffer source, LargeBuffer target, ForkJoinPool pool, PatchStatistics statistics, PatchListener listener) throws IOException {
+        statistics.header(sourceSize, targetSize, metadata);
+        for (int i = 0; i < commands.count; i++) {
+            statistics.command(commands.modes[i], commands.lengths[i]);
+        }
+        if (listener != null) {
+            listener.started(sourceSize, targetSize, metadata);
+        }
+        long time = System.nanoTime();
+        long targetCrc;
+        if (pool != null) {
+            ParallelApplier.execute(commands, patch, source, target, pool);
+            long executed = System.nanoTime();
+            statistics.commandNanos = executed - time;
+            if (listener != null) {
+                listener.progress(targetSize, targetSize);
+            }
+            targetCrc = ParallelApplier.checksum(target, 0, targetSize, pool);
+            statistics.targetChecksumNanos = System.nanoTime() - executed;
+        } else {
+            targetCrc = execute(source, target, statistics, listener);
+            statistics.commandNanos = System.nanoTime() - time - statistics.targetChecksumNanos;
+        }
+        if (targetCrc != targetChecksum) {
+            throw new IOException("Target checksum does not match!");
+        }
+        if (listener != null) {
+            listener.finished(statistics);
+        }
+    }
+
+    /**
+     * Execute every command in order on the calling thread, returning the
+     * checksum of the target which was computed as it was written.
+     */
+    private long execute(LargeBuffer source, LargeBuffer target, PatchStatistics statistics, PatchListener listener) {
+        CRC32 crc = new CRC32();
+        long checked = 0, reported = 0;
+        for (int i = 0; i < commands.count; i++) {
+            int mode = commands.modes[i];
+            long outputOffset = commands.targetOffsets[i];
+            long offset = commands.offsets[i];
+            long length = commands.lengths[i];
+            if (mode == SOURCE_READ || mode == SOURCE_COPY) {
+                source.copy(offset, target, outputOffset, length);
+            } else if (mode == TARGET_READ) {
+                patch.copy(offset, target, outputOffset, length);
+            } else {
+                Patcher.targetCopy(target, offset, outputOffset, length);
+            }
+            if (outputOffset + length - checked >= CHECKSUM_CHUNK) {
+                long time = System.nanoTime();
+                target.update(crc, checked, outputOffset + length);
+                checked = outputOffset + length;
+                statistics.targetChecksumNanos += System.nanoTime() - time;
+                if (listener != null && checked - reported >= Patcher.PROGRESS_INTERVAL) {
+                    listener.progress(checked, targetSize);
+                    reported = checked;
+                }
+            }
+        }
+        long time = System.nanoTime();
+        target.update(crc, checked, targetSize);
+        statistics.targetChecksumNanos += System.nanoTime() - time;
+        if (listener != null) {
+            listener.progress(targetSize, targetSize);
+        }
+        return crc.getValue();
+    }
+
+    private static long checksum(LargeBuffer buffer, long length, ForkJoinPool pool) {
+        if (pool != null) {
+            return ParallelApplier.checksum(buffer, 0, length, pool);
+        }
+        CRC32 crc = new CRC32();
+        buffer.update(crc, 0, length);
+        return crc.getValue();
+    }
+}
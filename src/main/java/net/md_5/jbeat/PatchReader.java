@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.IOException;
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * Cursor over a beat patch held in memory. The header is parsed on creation,
+ * leaving the cursor at the first command.
+ */
+final class PatchReader {
+
+    /**
+     * The entire patch.
+     */
+    private final LargeBuffer patch;
+    /**
+     * Offset of the next byte to be read.
+     */
+    private long offset;
+    /**
+     * Size of the source the patch was created from.
+     */
+    final long sourceSize;
+    /**
+     * Size of the target the patch creates.
+     */
+    final long targetSize;
+    /**
+     * UTF-8 metadata of the patch, or null if there is none.
+     */
+    final String metadata;
+
+    PatchReader(LargeBuffer patch) throws IOException {
+        this.patch = patch;
+        if (patch.length() < magicHeader.length + 3 + 12) {
+            throw new IOException("Patch file is too short to be a BPS patch!");
+        }
+        // check the header
+        for (char c : magicHeader) {
+            if (patch.get(offset++) != c) {
+                throw new IOException("Patch file does not contain correct BPS header!");
+            }
+        }
+        sourceSize = decode();
+        targetSize = decode();
+        metadata = readString();
+        if (offset > commandsEnd()) {
+            throw new IOException("Patch header is corrupt!");
+        }
+    }
+
+    LargeBuffer buffer() {
+        return patch;
+    }
+
+    long offset() {
+        return offset;
+    }
+
+    /**
+     * Offset at which the commands end and the checksums begin.
+     */
+    long commandsEnd() {
+        return patch.length() - 12;
+    }
+
+    void skip(long length) {
+        offset += length;
+    }
+
+    /**
+     * Move the cursor to an offset previously returned by {@link #offset()}.
+     */
+    void seek(long offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * Read a UTF-8 string with variable length number length descriptor. Will
+     * return null if there is no data read, or the string is of 0 length.
+     */
+    private String readString() throws IOException {
+        long size = decode();
+        if (size > patch.length() - offset) {
+            throw new IOException("Patch metadata is corrupt!");
+        }
+        int length = (int) size;
+        String ret = null;
+        if (length != 0) {
+            byte[] bytes = new byte[length];
+            patch.get(offset, bytes, 0, length);
+            offset += length;
+            ret = new String(bytes, charset);
+        }
+        return ret;
+    }
+
+    /**
+     * Read a little endian, unsigned integer.
+     */
+    long readInt() throws IOException {
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            value |= (patch.get(offset++) & 0xFFL) << (i * 8);
+        }
+        return value;
+    }
+
+    /**
+     * Read a single variable length number.
+     */
+    long decode() throws IOException {
+        long data = 0, shift = 1;
+        while (true) {
+            if (offset >= patch.length()) {
+                throw new IOException("Patch ends in the middle of a number!");
+            }
+            byte x = patch.get(offset++);
+            data += (x & 0x7F) * shift;
+            if ((x & 0x80) != 0x00) {
+                break;
+            }
+            shift <<= 7;
+            data += shift;
+            // a ninth byte could overflow, and no valid patch needs one
+            if (shift > 1L << 49) {
+                throw new IOException("Patch contains a number which is too large!");
+            }
+        }
+        return data;
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * Statistics gathered whilst creating or applying a patch: the number of
+ * commands of each mode and the bytes of target they produce, and the time
+ * spent in each phase. Gathering them costs only a few additions per command
+ * and a clock read per phase or checksum chunk, so they are always collected.
+ */
+public final class PatchStatistics {
+
+    private long sourceSize;
+    private long targetSize;
+    private String metadata;
+    /**
+     * Commands and target bytes of each mode, indexed by mode.
+     */
+    private final long[] commands = new long[4];
+    private final long[] bytes = new long[4];
+    long mapNanos;
+    long indexNanos;
+    long commandNanos;
+    long sourceChecksumNanos;
+    long targetChecksumNanos;
+    long patchChecksumNanos;
+
+    void header(long sourceSize, long targetSize, String metadata) {
+        this.sourceSize = sourceSize;
+        this.targetSize = targetSize;
+        this.metadata = metadata;
+    }
+
+    /**
+     * Count a single command.
+     */
+    void command(long mode, long length) {
+        commands[(int) mode]++;
+        bytes[(int) mode] += length;
+    }
+
+    public long getSourceSize() {
+        return sourceSize;
+    }
+
+    public long getTargetSize() {
+        return targetSize;
+    }
+
+    /**
+     * Get the metadata of the patch, or null if it has none.
+     */
+    public String getMetadata() {
+        return metadata;
+    }
+
+    public long getSourceReadCount() {
+        return commands[(int) SOURCE_READ];
+    }
+
+    public long getSourceReadBytes() {
+        return bytes[(int) SOURCE_READ];
+    }
+
+    public long getTargetReadCount() {
+        return commands[(int) TARGET_READ];
+    }
+
+    public long getTargetReadBytes() {
+        return bytes[(int) TARGET_READ];
+    }
+
+    public long getSourceCopyCount() {
+        return commands[(int) SOURCE_COPY];
+    }
+
+    public long getSourceCopyBytes() {
+        return bytes[(int) SOURCE_COPY];
+    }
+
+    public long getTargetCopyCount() {
+        return commands[(int) TARGET_COPY];
+    }
+
+    public long getTargetCopyBytes() {
+        return bytes[(int) TARGET_COPY];
+    }
+
+    /**
+     * Get the total number of commands.
+     */
+    public long getCommandCount() {
+        return commands[0] + commands[1] + commands[2] + commands[3];
+    }
+
+    /**
+     * Get the time spent opening and mapping files.
+     */
+    public long getMapNanos() {
+        return mapNanos;
+    }
+
+    /**
+     * Get the time spent building indexes before creating a patch.
+     */
+    public long getIndexNanos() {
+        return indexNanos;
+    }
+
+    /**
+     * Get the time spent finding and encoding commands when creating a patch,
+     * or decoding and executing them when applying one, excluding checksums.
+     */
+    public long getCommandNanos() {
+        return commandNanos;
+    }
+
+    public long getSourceChecksumNanos() {
+        return sourceChecksumNanos;
+    }
+
+    public long getTargetChecksumNanos() {
+        return targetChecksumNanos;
+    }
+
+    public long getPatchChecksumNanos() {
+        return patchChecksumNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "PatchStatistics{sourceSize=" + sourceSize + ", targetSize=" + targetSize
+                + ", sourceRead=" + commands[0] + "/" + bytes[0]
+                + ", targetRead=" + commands[1] + "/" + bytes[1]
+                + ", sourceCopy=" + commands[2] + "/" + bytes[2]
+                + ", targetCopy=" + commands[3] + "/" + bytes[3]
+                + ", mapMs=" + mapNanos / 1000000 + ", indexMs=" + indexNanos / 1000000
+                + ", commandMs=" + commandNanos / 1000000
+                + ", sourceChecksumMs=" + sourceChecksumNanos / 1000000
+                + ", targetChecksumMs=" + targetChecksumNanos / 1000000
+                + ", patchChecksumMs=" + patchChecksumNanos / 1000000 + "}";
+    }
+}
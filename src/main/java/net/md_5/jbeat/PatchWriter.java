@@ -0,0 +1,231 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * Writes the header, commands and footer of a patch to a channel. Output is
+ * gathered in a direct buffer which is reused for the whole patch, and the
+ * checksum of the patch is kept up to date as each buffer is written, so the
+ * patch never needs to be read back.
+ */
+final class PatchWriter {
+
+    /**
+     * Size of the output buffer.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Longest possible encoding of a single number.
+     */
+    private static final int MAX_ENCODED = 10;
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    /**
+     * Running checksum of everything written to the channel.
+     */
+    private final CRC32 crc = new CRC32();
+    /**
+     * Relative offsets as tracked by the patch applicator for copy commands.
+     */
+    private long sourceRelativeOffset, targetRelativeOffset;
+
+    PatchWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Write the magic, sizes and metadata which begin every patch.
+     */
+    void header(long sourceSize, long targetSize, String metadata) throws IOException {
+        for (char c : magicHeader) {
+            buffer.put((byte) c);
+        }
+        encode(sourceSize);
+        encode(targetSize);
+        // metadata length is in encoded bytes rather than characters
+        byte[] encoded = (metadata == null) ? new byte[0] : metadata.getBytes(charset);
+        encode(encoded.length);
+        for (int offset = 0; offset < encoded.length;) {
+            int count = Math.min(encoded.length - offset, room());
+            buffer.put(encoded, offset, count);
+            offset += count;
+        }
+    }
+
+    /**
+     * Write a command reading {@code length} bytes from the same offset of the
+     * source.
+     */
+    void sourceRead(long length) throws IOException {
+        encode(SOURCE_READ | ((length - 1) << 2));
+    }
+
+    /**
+     * Write a command reading {@code length} bytes from the patch, followed by
+     * those bytes taken from {@code offset} of the specified data.
+     */
+    void targetRead(LargeBuffer data, long offset, long length) throws IOException {
+        targetRead(length);
+        write(data, offset, length);
+    }
+
+    /**
+     * Write a command reading {@code length} bytes from the patch. Exactly
+     * that many bytes must then be written with
+     * {@link #write(LargeBuffer, long, long)}.
+     */
+    void targetRead(long length) throws IOException {
+        encode(TARGET_READ | ((length - 1) << 2));
+    }
+
+    /**
+     * Write bytes taken from {@code offset} of the specified data.
+     */
+    void write(LargeBuffer data, long offset, long length) throws IOException {
+        while (length > 0) {
+            int count = (int) Math.min(length, room());
+            data.get(offset, buffer, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Write a command copying {@code length} bytes from the specified offset
+     * of the source.
+     */
+    void sourceCopy(long offset, long length) throws IOException {
+        encode(SOURCE_COPY | ((length - 1) << 2));
+        encodeOffset(offset - sourceRelativeOffset);
+        sourceRelativeOffset = offset + length;
+    }
+
+    /**
+     * Write a command copying {@code length} bytes from the specified, already
+     * output offset of the target.
+     */
+    void targetCopy(long offset, long length) throws IOException {
+        encode(TARGET_COPY | ((length - 1) << 2));
+        encodeOffset(offset - targetRelativeOffset);
+        targetRelativeOffset = offset + length;
+    }
+
+    /**
+     * Write the checksums which end every patch, the last of which is of the
+     * patch itself, and flush everything to the channel.
+     */
+    void footer(long sourceChecksum, long targetChecksum) throws IOException {
+        writeIntLE((int) sourceChecksum);
+        writeIntLE((int) targetChecksum);
+        // push everything through the running checksum
+        flush();
+        writeIntLE((int) crc.getValue());
+        flush();
+    }
+
+    /**
+     * Write a signed relative offset for a copy command.
+     */
+    private void encodeOffset(long relativeOffset) throws IOException {
+        encode((Math.abs(relativeOffset) << 1) | (relativeOffset < 0 ? 1 : 0));
+    }
+
+    /**
+     * Encode a single number into its variable length form.
+     */
+    void encode(long data) throws IOException {
+        room();
+        while (true) {
+            long x = data & 0x7f;
+            data >>= 7;
+            if (data == 0) {
+                buffer.put((byte) (0x80 | x));
+                break;
+            }
+            buffer.put((byte) x);
+            data--;
+        }
+    }
+
+    /**
+     * Count the bytes of the variable length form of a number.
+     */
+    static int encodedSize(long data) {
+        int size = 1;
+        while ((data >>= 7) != 0) {
+            data--;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Count the bytes of the variable length form of a signed relative offset.
+     */
+    static int offsetSize(long relativeOffset) {
+        return encodedSize((Math.abs(relativeOffset) << 1) | (relativeOffset < 0 ? 1 : 0));
+    }
+
+    private void writeIntLE(int value) throws IOException {
+        room();
+        buffer.put((byte) value);
+        buffer.put((byte) (value >> 8));
+        buffer.put((byte) (value >> 16));
+        buffer.put((byte) (value >> 24));
+    }
+
+    /**
+     * Get the space left in the buffer, first flushing it if it is almost
+     * full.
+     */
+    private int room() throws IOException {
+        if (buffer.remaining() < MAX_ENCODED) {
+            flush();
+        }
+        return buffer.remaining();
+    }
+
+    /**
+     * Checksum and write everything in the buffer to the channel.
+     */
+    void flush() throws IOException {
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -32,9 +32,9 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
 import static net.md_5.jbeat.Shared.*;
 
 /**
@@ -42,6 +42,15 @@ import static net.md_5.jbeat.Shared.*;
  */
 public final class Patcher {
 
+    /**
+     * Number of bytes processed between updates of the running checksums.
+     */
+    private static final int CHECKSUM_CHUNK = 64 * 1024;
+    /**
+     * Number of target bytes written between progress notifications.
+     */
+    static final long PROGRESS_INTERVAL = 1024 * 1024;
+
     /**
      * The patch which we will get our instructions from.
      */
@@ -55,6 +64,14 @@ public final class Patcher {
      * The location to which the new, patched file will be output.
      */
     private final RandomAccessFile targetFile;
+    /**
+     * Statistics of the most recent application.
+     */
+    private final PatchStatistics statistics = new PatchStatistics();
+    /**
+     * Listener to notify of progress, or null.
+     */
+    private PatchListener listener;
 
     /**
      * Create a new beat patcher instance. In order to complete the patch
@@ -72,84 +89,75 @@ public final class Patcher {
         this.targetFile = new RandomAccessFile(targetFile, "rw");
     }
 
+    /**
+     * Set the listener to be notified as the patch is applied.
+     *
+     * @param listener the listener, or null for none
+     */
+    public void setListener(PatchListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Get the statistics gathered whilst applying the patch, including its
+     * metadata. They are complete once a patch method has returned.
+     */
+    public PatchStatistics getStatistics() {
+        return statistics;
+    }
+
     /**
      * The meat of the program, patches everything. All logic goes here.
      */
     public void patch() throws IOException {
         try {
-            // store patch length
-            long patchLength = patchFile.length();
-            // map patch file into memory
-            ByteBuffer patch = patchFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, patchLength);
-            // check the header
-            for (char c : magicHeader) {
-                if (patch.get() != c) {
-                    throw new IOException("Patch file does not contain correct BPS header!");
-                }
-            }
-            // read source size
-            long sourceSize = decode(patch);
+            long start = System.nanoTime();
+            // map patch file into memory and read its header
+            PatchReader patch = new PatchReader(LargeBuffer.map(patchFile.getChannel(), FileChannel.MapMode.READ_ONLY, patchFile.length()));
             // map as much of the source file as we need into memory
-            ByteBuffer source = sourceFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, sourceSize);
-            // read target size
-            long targetSize = decode(patch);
+            LargeBuffer source = LargeBuffer.map(sourceFile.getChannel(), FileChannel.MapMode.READ_ONLY, Math.min(patch.sourceSize, sourceFile.length()));
+            long mapped = System.nanoTime();
+            // reject the wrong source before the target is touched
+            checkSource(patch, source, statistics);
+            long checked = System.nanoTime();
             // expand the target file
-            targetFile.setLength(targetSize);
+            targetFile.setLength(patch.targetSize);
             // map a large enough chunk of the target into memory
-            ByteBuffer target = targetFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, targetSize);
-            // read metadata
-            String metadata = readString(patch);
-            // store last offsets
-            int sourceOffset = 0, targetOffset = 0;
-            // do the actual patching
-            while (patch.position() < patchLength - 12) {
-                long length = decode(patch);
-                long mode = length & 3;
-                length = (length >> 2) + 1;
-                // branch per mode
-                if (mode == SOURCE_READ) {
-                    while (length-- != 0) {
-                        target.put(source.get(target.position()));
-                    }
-                } else if (mode == TARGET_READ) {
-                    while (length-- != 0) {
-                        target.put(patch.get());
-                    }
-                } else {
-                    // start the same
-                    long data = decode(patch);
-                    long offset = (((data & 1) != 0) ? -1 : 1) * (data >> 1);
-                    // descend deeper
-                    if (mode == SOURCE_COPY) {
-                        sourceOffset += offset;
-                        while (length-- != 0) {
-                            target.put(source.get(sourceOffset++));
-                        }
-                    } else {
-                        targetOffset += offset;
-                        while (length-- != 0) {
-                            target.put(target.get(targetOffset++));
-                        }
-                    }
-                }
-            }
-            // flip to little endian mode
-            patch.order(ByteOrder.LITTLE_ENDIAN);
-            // checksum of the source
-            long sourceChecksum = readInt(patch);
-            if (checksum(source, sourceSize) != sourceChecksum) {
-                throw new IOException("Source checksum does not match!");
-            }
-            // checksum of the target
-            long targetChecksum = readInt(patch);
-            if (checksum(target, targetSize) != targetChecksum) {
-                throw new IOException("Target checksum does not match!");
-            }
-            // checksum of the patch itself
-            long patchChecksum = readInt(patch);
-            if (checksum(patch, patchLength - 4) != patchChecksum) {
-                throw new IOException("Patch checksum does not match!");
-            }
+            LargeBuffer target = LargeBuffer.map(targetFile.getChannel(), FileChannel.MapMode.READ_WRITE, patch.targetSize);
+            statistics.mapNanos = (mapped - start) + (System.nanoTime() - checked);
+            execute(patch, source, target, statistics, listener);
+        } finally {
+            // close the streams
+            patchFile.close();
+            sourceFile.close();
+            targetFile.close();
+        }
+    }
+
+    /**
+     * Patches everything as with {@link #patch()}, but executes independent
+     * commands and checksums concurrently. The patch is first compiled into a
+     * {@link PatchProgram}, which is then split across the threads of the
+     * specified pool.
+     *
+     * @param pool the pool in which to run the patch
+     */
+    public void patch(ForkJoinPool pool) throws IOException {
+        try {
+            long start = System.nanoTime();
+            LargeBuffer data = LargeBuffer.map(patchFile.getChannel(), FileChannel.MapMode.READ_ONLY, patchFile.length());
+            long mapped = System.nanoTime();
+            // compile the patch, verifying its checksum up front
+            PatchProgram program = PatchProgram.compile(data, pool);
+            long compiled = System.nanoTime();
+            // map as much of the source file as we need into memory
+            LargeBuffer source = LargeBuffer.map(sourceFile.getChannel(), FileChannel.MapMode.READ_ONLY, Math.min(program.getSourceSize(), sourceFile.length()));
+            statistics.mapNanos = (mapped - start) + (System.nanoTime() - compiled);
+            // compilation is mostly the checksum of the patch
+            statistics.patchChecksumNanos = compiled - mapped;
+            // the target is only expanded and mapped once the source is known
+            // to be right
+            program.apply(source, targetFile, pool, statistics, listener);
         } finally {
             // close the streams
             patchFile.close();
@@ -159,42 +167,196 @@ public final class Patcher {
     }
 
     /**
-     * Read a UTF-8 string with variable length number length descriptor. Will
-     * return null if there is no data read, or the string is of 0 length.
-     */
-    private String readString(ByteBuffer in) throws IOException {
-        int length = (int) decode(in);
-        String ret = null;
-        if (length != 0) {
-            int limit = in.limit();
-            in.limit(in.position() + length);
-            ret = charset.decode(in).toString();
-            in.limit(limit);
+     * Patches everything as with {@link #patch()}, but writes the target
+     * through its channel rather than mapping it. Long runs read from the
+     * source or from the patch itself are transferred straight from file to
+     * file by the kernel, and the CPU only reads them once, whilst verifying
+     * the source and patch checksums. This lowers the CPU cost of patches
+     * which mostly consist of such runs.
+     */
+    public void transfer() throws IOException {
+        try {
+            long start = System.nanoTime();
+            LargeBuffer patch = LargeBuffer.map(patchFile.getChannel(), FileChannel.MapMode.READ_ONLY, patchFile.length());
+            LargeBuffer source = LargeBuffer.map(sourceFile.getChannel(), FileChannel.MapMode.READ_ONLY, sourceFile.length());
+            statistics.mapNanos = System.nanoTime() - start;
+            TransferApplier.apply(patch, patchFile.getChannel(), source, sourceFile.getChannel(), targetFile.getChannel(), statistics, listener);
+        } finally {
+            // close the streams
+            patchFile.close();
+            sourceFile.close();
+            targetFile.close();
         }
-        return ret;
     }
 
     /**
-     * Read a set of bytes from a buffer return them as a unsigned integer.
+     * Apply the commands of a patch whose header has been read, and verify its
+     * checksums. The target must be exactly as large as the patch specifies.
+     */
+    static void apply(PatchReader patch, LargeBuffer source, LargeBuffer target) throws IOException {
+        apply(patch, source, target, new PatchStatistics(), null);
+    }
+
+    /**
+     * Apply the commands of a patch as with
+     * {@link #apply(PatchReader, LargeBuffer, LargeBuffer)}, gathering
+     * statistics and notifying a listener, which may be null, of progress.
+     */
+    static void apply(PatchReader patch, LargeBuffer source, LargeBuffer target, PatchStatistics statistics, PatchListener listener) throws IOException {
+        checkSource(patch, source, statistics);
+        execute(patch, source, target, statistics, listener);
+    }
+
+    /**
+     * Verify the size and checksum of the source against the footer of a
+     * patch whose header has been read, without moving its cursor. This reads
+     * nothing else of the patch, so may be done before any output is written.
      */
-    private long readInt(ByteBuffer in) throws IOException {
-        return in.getInt() & 0xFFFFFFFFL;
+    static void checkSource(PatchReader patch, LargeBuffer source, PatchStatistics statistics) throws IOException {
+        if (source.length() < patch.sourceSize) {
+            throw new IOException("Source is smaller than the patch expects!");
+        }
+        long offset = patch.offset();
+        patch.seek(patch.commandsEnd());
+        long sourceChecksum = patch.readInt();
+        patch.seek(offset);
+        long time = System.nanoTime();
+        CRC32 sourceCrc = new CRC32();
+        source.update(sourceCrc, 0, patch.sourceSize);
+        statistics.sourceChecksumNanos = System.nanoTime() - time;
+        if (sourceCrc.getValue() != sourceChecksum) {
+            throw new IOException("Source checksum does not match!");
+        }
     }
 
     /**
-     * Read a single variable length number from the input stream.
+     * Apply the commands of a patch whose source has already been checked,
+     * and verify the target and patch checksums.
      */
-    private long decode(ByteBuffer in) throws IOException {
-        long data = 0, shift = 1;
-        while (true) {
-            byte x = in.get();
-            data += (x & 0x7F) * shift;
-            if ((x & 0x80) != 0x00) {
-                break;
+    private static void execute(PatchReader patch, LargeBuffer source, LargeBuffer target, PatchStatistics statistics, PatchListener listener) throws IOException {
+        statistics.header(patch.sourceSize, patch.targetSize, patch.metadata);
+        if (listener != null) {
+            listener.started(patch.sourceSize, patch.targetSize, patch.metadata);
+        }
+        LargeBuffer data = patch.buffer();
+        long targetSize = patch.targetSize;
+        // store last offsets
+        long sourceOffset = 0, targetOffset = 0, outputOffset = 0;
+        // the target and patch are checksummed a chunk at a time as they
+        // are processed, whilst the bytes are still in cache
+        CRC32 targetCrc = new CRC32(), patchCrc = new CRC32();
+        long targetChecked = 0, patchChecked = 0, reported = 0;
+        long start = System.nanoTime(), checksumNanos = 0;
+        // do the actual patching
+        while (patch.offset() < patch.commandsEnd()) {
+            long command = patch.decode();
+            long mode = command & 3;
+            long length = (command >> 2) + 1;
+            if (length > targetSize - outputOffset) {
+                throw new IOException("Patch writes past the end of the target!");
             }
-            shift <<= 7;
-            data += shift;
+            statistics.command(mode, length);
+            // branch per mode
+            if (mode == SOURCE_READ) {
+                if (outputOffset + length > patch.sourceSize) {
+                    throw new IOException("Patch reads past the end of the source!");
+                }
+                source.copy(outputOffset, target, outputOffset, length);
+            } else if (mode == TARGET_READ) {
+                if (length > patch.commandsEnd() - patch.offset()) {
+                    throw new IOException("Target read runs past the end of the patch!");
+                }
+                data.copy(patch.offset(), target, outputOffset, length);
+                patch.skip(length);
+            } else {
+                // start the same
+                command = patch.decode();
+                long offset = (((command & 1) != 0) ? -1 : 1) * (command >> 1);
+                // descend deeper
+                if (mode == SOURCE_COPY) {
+                    sourceOffset += offset;
+                    if (sourceOffset < 0 || sourceOffset + length > patch.sourceSize) {
+                        throw new IOException("Patch reads past the end of the source!");
+                    }
+                    source.copy(sourceOffset, target, outputOffset, length);
+                    sourceOffset += length;
+                } else {
+                    targetOffset += offset;
+                    if (targetOffset < 0 || targetOffset >= outputOffset) {
+                        throw new IOException("Target copy does not read from already written target!");
+                    }
+                    targetCopy(target, targetOffset, outputOffset, length);
+                    targetOffset += length;
+                }
+            }
+            outputOffset += length;
+            if (outputOffset - targetChecked >= CHECKSUM_CHUNK) {
+                long time = System.nanoTime();
+                target.update(targetCrc, targetChecked, outputOffset);
+                targetChecked = outputOffset;
+                long elapsed = System.nanoTime() - time;
+                statistics.targetChecksumNanos += elapsed;
+                checksumNanos += elapsed;
+                if (listener != null && outputOffset - reported >= PROGRESS_INTERVAL) {
+                    listener.progress(outputOffset, targetSize);
+                    reported = outputOffset;
+                }
+            }
+            if (patch.offset() - patchChecked >= CHECKSUM_CHUNK) {
+                long time = System.nanoTime();
+                data.update(patchCrc, patchChecked, patch.offset());
+                patchChecked = patch.offset();
+                long elapsed = System.nanoTime() - time;
+                statistics.patchChecksumNanos += elapsed;
+                checksumNanos += elapsed;
+            }
+        }
+        long time = System.nanoTime();
+        statistics.commandNanos = time - start - checksumNanos;
+        target.update(targetCrc, targetChecked, outputOffset);
+        statistics.targetChecksumNanos += System.nanoTime() - time;
+        if (listener != null) {
+            listener.progress(outputOffset, targetSize);
+        }
+        // the source was checked before any command was applied
+        patch.skip(4);
+        // checksum of the target
+        long targetChecksum = patch.readInt();
+        if (targetCrc.getValue() != targetChecksum) {
+            throw new IOException("Target checksum does not match!");
+        }
+        // checksum of the patch itself
+        time = System.nanoTime();
+        data.update(patchCrc, patchChecked, patch.offset());
+        statistics.patchChecksumNanos += System.nanoTime() - time;
+        long patchChecksum = patch.readInt();
+        if (patchCrc.getValue() != patchChecksum) {
+            throw new IOException("Patch checksum does not match!");
+        }
+        if (listener != null) {
+            listener.finished(statistics);
+        }
+    }
+
+    /**
+     * Copy {@code length} bytes starting at {@code offset} of the target to
+     * {@code outputOffset}. When the two ranges overlap the result is the same
+     * as copying a single byte at a time, repeating the overlapped bytes. The
+     * offset must be before the output.
+     */
+    static void targetCopy(LargeBuffer target, long offset, long outputOffset, long length) {
+        // everything between the offset and the output is a repeating unit,
+        // and each copy doubles the amount of it which has been written
+        long chunk = outputOffset - offset;
+        if (chunk <= 0) {
+            throw new IllegalArgumentException("Target copy must read from before the output");
+        }
+        while (length > 0) {
+            long count = Math.min(chunk, length);
+            target.copy(offset, target, outputOffset, count);
+            outputOffset += count;
+            length -= count;
+            chunk += count;
         }
-        return data;
     }
 }
@@ -28,10 +28,12 @@
  */
 package net.md_5.jbeat;
 
-import java.nio.ByteBuffer;
+import java.io.File;
+import java.io.IOException;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CharsetEncoder;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.zip.CRC32;
 
 /**
@@ -65,27 +67,93 @@ final class Shared {
      * beat metadata uses UTF-8 by specification.
      */
     static final Charset charset = Charset.forName("UTF-8");
+
     /**
-     * UTF-8 decoder.
+     * Create an empty temporary file in the same directory as another, so that
+     * it may replace it by renaming. The prefix of a temporary file must be at
+     * least three characters, which the name alone may not be.
      */
-    static final CharsetDecoder decoder = charset.newDecoder();
+    static File tempFile(File file) throws IOException {
+        return File.createTempFile("." + file.getName() + ".", ".tmp", file.getAbsoluteFile().getParentFile());
+    }
+
     /**
-     * UTF-8 encoder.
+     * Replace a file with a temporary file created by {@link #tempFile(File)}.
+     * The file is replaced atomically where the file system allows it, and is
+     * left as it was if the temporary file cannot be moved.
      */
-    static final CharsetEncoder encoder = charset.newEncoder();
+    static void replace(File temp, File file) throws IOException {
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
 
     /**
-     * Creates a crc32 checksum of a ByteBuffer. This method will checksum up to
-     * {@code length} bytes from the buffer, starting at the beginning. <p> This
-     * method is destructive and will call {@link java.nio.Buffer#rewind()},
-     * thus discarding the current mark and position.
+     * Creates a crc32 checksum of the entire contents of a buffer.
      */
-    static long checksum(ByteBuffer in, long length) {
+    static long checksum(LargeBuffer in) {
         CRC32 crc = new CRC32();
-        byte[] back = new byte[(int) length];
-        in.rewind();
-        in.get(back);
-        crc.update(back);
+        in.update(crc, 0, in.length());
         return crc.getValue();
     }
+
+    /**
+     * Combine the crc32 checksums of two consecutive blocks of data into the
+     * checksum of both blocks, given the length of the second block. This is
+     * the method of zlib's crc32_combine, applying the crc polynomial to the
+     * first checksum once for every bit of the second block by repeatedly
+     * squaring a matrix over GF(2).
+     */
+    static long combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        // operator for a single zero bit
+        odd[0] = 0xEDB88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // operators for two and four zero bits
+        square(even, odd);
+        square(odd, even);
+        // apply length2 zero bytes to crc1
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
 }
@@ -0,0 +1,384 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * beat version 1 compliant binary patcher which consumes the patch as a
+ * stream, and produces the target as a stream. Only the source needs to be a
+ * file, as it may be read from anywhere. <p> The patch is read through a small
+ * fixed buffer and never needs to exist on disk. The target is written through
+ * a look-back window, which must be at least as large as the furthest distance
+ * any TARGET_COPY command reaches back. Channels and streams given to this
+ * class are not closed by it.
+ */
+public final class StreamPatcher {
+
+    /**
+     * Default size of the look-back window for target copies.
+     */
+    public static final int DEFAULT_WINDOW = 16 * 1024 * 1024;
+    /**
+     * Size of the buffer through which the patch is read.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Largest metadata accepted. The size of a streamed patch is not known in
+     * advance, so this bounds the buffer allocated for a corrupt length.
+     */
+    private static final int MAX_METADATA = 16 * 1024 * 1024;
+    /**
+     * The patch which we will get our instructions from.
+     */
+    private final ReadableByteChannel patchChannel;
+    /**
+     * The clean, unmodified file. This must be the same file from which the
+     * patch was generated.
+     */
+    private final RandomAccessFile sourceFile;
+    /**
+     * The channel to which the new, patched file will be output.
+     */
+    private final WritableByteChannel targetChannel;
+    /**
+     * Buffer of bytes read from the patch but not yet consumed.
+     */
+    private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+    /**
+     * Running checksum of the consumed patch.
+     */
+    private final CRC32 patchCrc = new CRC32();
+    /**
+     * Position in the buffer up to which the patch has been checksummed.
+     */
+    private int patchChecked;
+    /**
+     * The most recent bytes of the target, indexed by offset modulo its size.
+     */
+    private final byte[] window;
+    /**
+     * Running checksum of the flushed target.
+     */
+    private final CRC32 targetCrc = new CRC32();
+    /**
+     * Number of bytes of the target produced so far, and number of bytes of
+     * those which have been written to the target channel.
+     */
+    private long outputOffset, flushed;
+
+    /**
+     * Create a new streaming beat patcher instance. In order to complete the
+     * patch process {@link #patch()} method must be called.
+     *
+     * @param patch the beat format patch
+     * @param sourceFile original file from which the patch was created
+     * @param target channel to which the new, patched file will be output
+     * @param window size in bytes of the look-back window for target copies
+     * @throws FileNotFoundException when the source cannot be opened for read
+     * access
+     */
+    public StreamPatcher(ReadableByteChannel patch, File sourceFile, WritableByteChannel target, int window) throws FileNotFoundException {
+        this.patchChannel = patch;
+        this.sourceFile = new RandomAccessFile(sourceFile, "r");
+        this.targetChannel = target;
+        this.window = new byte[window];
+        // start empty
+        in.flip();
+    }
+
+    public StreamPatcher(ReadableByteChannel patch, File sourceFile, WritableByteChannel target) throws FileNotFoundException {
+        this(patch, sourceFile, target, DEFAULT_WINDOW);
+    }
+
+    public StreamPatcher(InputStream patch, File sourceFile, OutputStream target) throws FileNotFoundException {
+        this(Channels.newChannel(patch), sourceFile, Channels.newChannel(target));
+    }
+
+    /**
+     * Read the entire patch and write the entire target, verifying all
+     * checksums at the end of the patch.
+     */
+    public void patch() throws IOException {
+        try {
+            // check the header
+            for (char c : magicHeader) {
+                if (get() != c) {
+                    throw new IOException("Patch file does not contain correct BPS header!");
+                }
+            }
+            // read source size
+            long sourceSize = decode();
+            if (sourceFile.length() < sourceSize) {
+                throw new IOException("Source is smaller than the patch expects!");
+            }
+            // map as much of the source file as we need into memory
+            LargeBuffer source = LargeBuffer.map(sourceFile.getChannel(), FileChannel.MapMode.READ_ONLY, sourceSize);
+            // read target size
+            long targetSize = decode();
+            // read metadata
+            String metadata = readString();
+            // store last offsets
+            long sourceOffset = 0, targetOffset = 0;
+            // do the actual patching, the end of the commands is only known
+            // by the target having been filled
+            while (outputOffset < targetSize) {
+                long data = decode();
+                long mode = data & 3;
+                long length = (data >> 2) + 1;
+                if (outputOffset + length > targetSize) {
+                    throw new IOException("Patch writes past the end of the target!");
+                }
+                // branch per mode
+                if (mode == SOURCE_READ) {
+                    if (outputOffset + length > sourceSize) {
+                        throw new IOException("Patch reads past the end of the source!");
+                    }
+                    sourceCopy(source, outputOffset, length);
+                } else if (mode == TARGET_READ) {
+                    targetRead(length);
+                } else {
+                    // start the same
+                    data = decode();
+                    long offset = (((data & 1) != 0) ? -1 : 1) * (data >> 1);
+                    // descend deeper
+                    if (mode == SOURCE_COPY) {
+                        sourceOffset += offset;
+                        if (sourceOffset < 0 || sourceOffset + length > sourceSize) {
+                            throw new IOException("Patch reads past the end of the source!");
+                        }
+                        sourceCopy(source, sourceOffset, length);
+                        sourceOffset += length;
+                    } else {
+                        targetOffset += offset;
+                        targetCopy(targetOffset, length);
+                        targetOffset += length;
+                    }
+                }
+            }
+            flush();
+            // checksum of the source
+            long sourceChecksum = readInt();
+            if (checksum(source) != sourceChecksum) {
+                throw new IOException("Source checksum does not match!");
+            }
+            // checksum of the target
+            long targetChecksum = readInt();
+            if (targetCrc.getValue() != targetChecksum) {
+                throw new IOException("Target checksum does not match!");
+            }
+            // checksum of the patch itself, which covers all but its own bytes
+            while (in.remaining() < 4) {
+                fill();
+            }
+            patchCrc.update(in.array(), patchChecked, in.position() - patchChecked);
+            long patchChecksum = readInt();
+            if (patchCrc.getValue() != patchChecksum) {
+                throw new IOException("Patch checksum does not match!");
+            }
+            if (in.hasRemaining() || patchChannel.read(in.compact()) > 0) {
+                throw new IOException("Patch contains data after its checksums!");
+            }
+        } finally {
+            // close the file we opened
+            sourceFile.close();
+        }
+    }
+
+    /**
+     * Append bytes from the source to the target.
+     */
+    private void sourceCopy(LargeBuffer source, long offset, long length) throws IOException {
+        while (length > 0) {
+            int count = reserve(length);
+            source.get(offset, window, (int) (outputOffset % window.length), count);
+            offset += count;
+            length -= count;
+            outputOffset += count;
+        }
+    }
+
+    /**
+     * Append bytes straight from the patch to the target.
+     */
+    private void targetRead(long length) throws IOException {
+        while (length > 0) {
+            if (!in.hasRemaining()) {
+                fill();
+            }
+            int count = Math.min(reserve(length), in.remaining());
+            in.get(window, (int) (outputOffset % window.length), count);
+            length -= count;
+            outputOffset += count;
+        }
+    }
+
+    /**
+     * Append bytes from earlier in the target. When the copy overlaps itself
+     * the result is the same as copying a single byte at a time.
+     */
+    private void targetCopy(long offset, long length) throws IOException {
+        long distance = outputOffset - offset;
+        if (offset < 0 || distance <= 0 || distance > window.length) {
+            throw new IOException("Target copy reaches outside of the look-back window!");
+        }
+        while (length > 0) {
+            // any multiple of the distance which has already been written
+            // within this copy repeats the same bytes, so copy the largest
+            long span = Math.min(outputOffset - offset, window.length);
+            span -= span % distance;
+            int count = (int) Math.min(reserve(length), span);
+            int from = (int) ((outputOffset - span) % window.length);
+            count = Math.min(count, window.length - from);
+            System.arraycopy(window, from, window, (int) (outputOffset % window.length), count);
+            length -= count;
+            outputOffset += count;
+        }
+    }
+
+    /**
+     * Make room in the window to append up to {@code length} bytes without
+     * wrapping, and return the number of bytes which may be appended.
+     */
+    private int reserve(long length) throws IOException {
+        int offset = (int) (outputOffset % window.length);
+        int count = (int) Math.min(length, window.length - offset);
+        if (outputOffset + count - flushed > window.length) {
+            flush();
+        }
+        return count;
+    }
+
+    /**
+     * Write all bytes appended to the window to the target channel.
+     */
+    private void flush() throws IOException {
+        while (flushed < outputOffset) {
+            int offset = (int) (flushed % window.length);
+            int count = (int) Math.min(outputOffset - flushed, window.length - offset);
+            targetCrc.update(window, offset, count);
+            ByteBuffer buf = ByteBuffer.wrap(window, offset, count);
+            while (buf.hasRemaining()) {
+                targetChannel.write(buf);
+            }
+            flushed += count;
+        }
+    }
+
+    /**
+     * Read more of the patch into the buffer, checksumming everything which has
+     * been consumed before it is discarded.
+     */
+    private void fill() throws IOException {
+        patchCrc.update(in.array(), patchChecked, in.position() - patchChecked);
+        in.compact();
+        int read = patchChannel.read(in);
+        in.flip();
+        patchChecked = 0;
+        if (read < 0) {
+            throw new EOFException("Unexpected end of patch!");
+        }
+    }
+
+    /**
+     * Read a single byte from the patch.
+     */
+    private byte get() throws IOException {
+        while (!in.hasRemaining()) {
+            fill();
+        }
+        return in.get();
+    }
+
+    /**
+     * Read a UTF-8 string with variable length number length descriptor. Will
+     * return null if there is no data read, or the string is of 0 length.
+     */
+    private String readString() throws IOException {
+        long size = decode();
+        if (size < 0 || size > MAX_METADATA) {
+            throw new IOException("Patch metadata is too large!");
+        }
+        int length = (int) size;
+        String ret = null;
+        if (length != 0) {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = get();
+            }
+            ret = new String(bytes, charset);
+        }
+        return ret;
+    }
+
+    /**
+     * Read a little endian, unsigned integer from the patch.
+     */
+    private long readInt() throws IOException {
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            value |= (get() & 0xFFL) << (i * 8);
+        }
+        return value;
+    }
+
+    /**
+     * Read a single variable length number from the patch.
+     */
+    private long decode() throws IOException {
+        long data = 0, shift = 1;
+        while (true) {
+            byte x = get();
+            data += (x & 0x7F) * shift;
+            if ((x & 0x80) != 0x00) {
+                break;
+            }
+            shift <<= 7;
+            data += shift;
+            // a ninth byte could overflow, and no valid patch needs one
+            if (shift > 1L << 49) {
+                throw new IOException("Patch contains a number which is too large!");
+            }
+        }
+        return data;
+    }
+}
@@ -0,0 +1,332 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Suffix array over a region of a buffer, used to locate the longest match of
+ * an arbitrary sequence of bytes within that region.
+ */
+final class SuffixArray {
+
+    /**
+     * The indexed data.
+     */
+    private final LargeBuffer data;
+    /**
+     * Number of bytes which have been indexed.
+     */
+    private final int length;
+    /**
+     * Starting offsets of every suffix of the data, in lexicographical order.
+     */
+    private final int[] suffixes;
+    /**
+     * The suffixes of an array mapped from a file, when there is no array.
+     */
+    private final LargeBuffer mapped;
+
+    /**
+     * Index the first {@code length} bytes of the specified buffer.
+     */
+    SuffixArray(LargeBuffer data, int length) {
+        this.data = data;
+        this.length = length;
+        this.suffixes = sort(data, length);
+        this.mapped = null;
+    }
+
+    /**
+     * Use the suffixes of an array previously written to a file, which must
+     * have been built over the same data.
+     */
+    SuffixArray(LargeBuffer data, int length, LargeBuffer mapped) throws IOException {
+        if (mapped.length() != IndexFile.DATA + 4L * length) {
+            throw new IOException("Suffix array does not match the length of the data!");
+        }
+        this.data = data;
+        this.length = length;
+        this.suffixes = null;
+        this.mapped = mapped;
+    }
+
+    /**
+     * Get the suffixes of an array built in memory, so they may be written to
+     * a file.
+     */
+    int[] suffixes() {
+        return suffixes;
+    }
+
+    private int suffix(int index) {
+        return (suffixes != null) ? suffixes[index] : mapped.getInt(IndexFile.DATA + 4L * index);
+    }
+
+    /**
+     * Find the longest match of {@code pattern[start, end)} within the indexed
+     * data. The result is packed into a single long, with the offset of the
+     * match in the upper 32 bits and its length in the lower 32 bits.
+     */
+    long find(LargeBuffer pattern, int start, int end) {
+        return find(pattern, start, end, 1, 0);
+    }
+
+    /**
+     * Find the longest match of {@code pattern[start, end)} as with
+     * {@link #find(LargeBuffer, int, int)}. When more than one candidate is
+     * allowed, up to that many suffixes either side of the insertion point are
+     * compared, and of those with the longest match the one closest to
+     * {@code near} is returned.
+     */
+    long find(LargeBuffer pattern, int start, int end, int candidates, int near) {
+        int patternLength = end - start;
+        int lo = 0, hi = length, lcpLo = 0, lcpHi = 0;
+        // binary search for the insertion point of the pattern, every suffix
+        // between the bounds shares at least min(lcpLo, lcpHi) bytes with it
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int suffix = suffix(mid);
+            int matched = Math.min(lcpLo, lcpHi);
+            matched += (int) LargeBuffer.common(data, suffix + matched, length, pattern, start + matched, end);
+            if (matched == patternLength) {
+                hi = mid;
+                lcpHi = matched;
+            } else if (suffix + matched == length
+                    || (data.get(suffix + matched) & 0xFF) < (pattern.get(start + matched) & 0xFF)) {
+                lo = mid + 1;
+                lcpLo = matched;
+            } else {
+                hi = mid;
+                lcpHi = matched;
+            }
+        }
+        // the longest match must be one of the neighbours of the insertion point
+        long best = 0;
+        if (lo > 0) {
+            best = pack(suffix(lo - 1), lcpLo);
+        }
+        if (lo < length && lcpHi > (int) best) {
+            best = pack(suffix(lo), lcpHi);
+        }
+        int bestLength = (int) best;
+        if (candidates > 1 && bestLength > 0) {
+            // matches only get shorter moving away from the insertion point
+            long distance = Math.abs((best >>> 32) - near);
+            for (int i = lo - 1; i >= Math.max(0, lo - candidates); i--) {
+                int suffix = suffix(i);
+                if (LargeBuffer.common(data, suffix, length, pattern, start, start + bestLength) < bestLength) {
+                    break;
+                }
+                if (Math.abs(suffix - near) < distance) {
+                    best = pack(suffix, bestLength);
+                    distance = Math.abs(suffix - near);
+                }
+            }
+            for (int i = lo; i < Math.min(length, lo + candidates); i++) {
+                int suffix = suffix(i);
+                if (LargeBuffer.common(data, suffix, length, pattern, start, start + bestLength) < bestLength) {
+                    break;
+                }
+                if (Math.abs(suffix - near) < distance) {
+                    best = pack(suffix, bestLength);
+                    distance = Math.abs(suffix - near);
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Pack a match offset and length into one long.
+     */
+    private static long pack(int offset, int length) {
+        return ((long) offset << 32) | length;
+    }
+
+    /**
+     * Sort all suffixes of the first {@code length} bytes of a buffer.
+     */
+    static int[] sort(LargeBuffer data, int length) {
+        int[] s = new int[length];
+        for (int i = 0; i < length; i++) {
+            s[i] = data.get(i) & 0xFF;
+        }
+        return sais(s, 255);
+    }
+
+    /**
+     * Linear time suffix sorting by induced sorting (SA-IS) of a string whose
+     * characters are all within {@code [0, upper]}.
+     */
+    private static int[] sais(int[] s, int upper) {
+        int n = s.length;
+        if (n == 0) {
+            return new int[0];
+        }
+        if (n == 1) {
+            return new int[]{0};
+        }
+        if (n == 2) {
+            return (s[0] < s[1]) ? new int[]{0, 1} : new int[]{1, 0};
+        }
+        int[] sa = new int[n];
+        // classify each suffix as S (true) or L (false) type
+        boolean[] ls = new boolean[n];
+        for (int i = n - 2; i >= 0; i--) {
+            ls[i] = (s[i] == s[i + 1]) ? ls[i + 1] : (s[i] < s[i + 1]);
+        }
+        // bucket boundaries for the L and S suffixes of each character
+        int[] sumL = new int[upper + 1];
+        int[] sumS = new int[upper + 1];
+        for (int i = 0; i < n; i++) {
+            if (!ls[i]) {
+                sumS[s[i]]++;
+            } else {
+                sumL[s[i] + 1]++;
+            }
+        }
+        for (int i = 0; i <= upper; i++) {
+            sumS[i] += sumL[i];
+            if (i < upper) {
+                sumL[i + 1] += sumS[i];
+            }
+        }
+        // find the leftmost S suffixes
+        int[] lmsMap = new int[n + 1];
+        Arrays.fill(lmsMap, -1);
+        int m = 0;
+        for (int i = 1; i < n; i++) {
+            if (!ls[i - 1] && ls[i]) {
+                lmsMap[i] = m++;
+            }
+        }
+        int[] lms = new int[m];
+        for (int i = 1, j = 0; i < n; i++) {
+            if (!ls[i - 1] && ls[i]) {
+                lms[j++] = i;
+            }
+        }
+        int[] buf = new int[upper + 1];
+        induce(s, upper, sa, ls, sumL, sumS, buf, lms);
+        if (m != 0) {
+            // name the sorted LMS substrings and recursively sort them
+            int[] sortedLms = new int[m];
+            for (int i = 0, j = 0; i < n; i++) {
+                if (lmsMap[sa[i]] != -1) {
+                    sortedLms[j++] = sa[i];
+                }
+            }
+            int[] recS = new int[m];
+            int recUpper = 0;
+            recS[lmsMap[sortedLms[0]]] = 0;
+            for (int i = 1; i < m; i++) {
+                int l = sortedLms[i - 1], r = sortedLms[i];
+                int endL = (lmsMap[l] + 1 < m) ? lms[lmsMap[l] + 1] : n;
+                int endR = (lmsMap[r] + 1 < m) ? lms[lmsMap[r] + 1] : n;
+                boolean same = true;
+                if (endL - l != endR - r) {
+                    same = false;
+                } else {
+                    while (l < endL && s[l] == s[r]) {
+                        l++;
+                        r++;
+                    }
+                    if (l == n || s[l] != s[r]) {
+                        same = false;
+                    }
+                }
+                if (!same) {
+                    recUpper++;
+                }
+                recS[lmsMap[sortedLms[i]]] = recUpper;
+            }
+            lmsMap = null;
+            int[] recSa = sais(recS, recUpper);
+            for (int i = 0; i < m; i++) {
+                sortedLms[i] = lms[recSa[i]];
+            }
+            induce(s, upper, sa, ls, sumL, sumS, buf, sortedLms);
+        }
+        return sa;
+    }
+
+    /**
+     * Induce the order of all suffixes from the order of the LMS suffixes.
+     */
+    private static void induce(int[] s, int upper, int[] sa, boolean[] ls, int[] sumL, int[] sumS, int[] buf, int[] lms) {
+        int n = s.length;
+        Arrays.fill(sa, -1);
+        System.arraycopy(sumS, 0, buf, 0, upper + 1);
+        for (int d : lms) {
+            if (d != n) {
+                sa[buf[s[d]]++] = d;
+            }
+        }
+        System.arraycopy(sumL, 0, buf, 0, upper + 1);
+        sa[buf[s[n - 1]]++] = n - 1;
+        for (int i = 0; i < n; i++) {
+            int v = sa[i];
+            if (v >= 1 && !ls[v - 1]) {
+                sa[buf[s[v - 1]]++] = v - 1;
+            }
+        }
+        System.arraycopy(sumL, 0, buf, 0, upper + 1);
+        for (int i = n - 1; i >= 0; i--) {
+            int v = sa[i];
+            if (v >= 1 && ls[v - 1]) {
+                sa[--buf[s[v - 1] + 1]] = v - 1;
+            }
+        }
+    }
+
+    /**
+     * Compute, for every offset of the sorted data, the offsets of the nearest
+     * lexicographical neighbours which occur earlier in the data. The longest
+     * previous occurrence of any suffix is always shared with one of these two
+     * neighbours. Offsets with no such neighbour are given -1. <p> The suffix
+     * array is used as scratch space and is destroyed by this method.
+     */
+    static void previous(int[] sa, int[] smaller, int[] larger) {
+        int top = -1;
+        for (int i = 0; i < sa.length; i++) {
+            int x = sa[i];
+            while (top >= 0 && sa[top] > x) {
+                larger[sa[top--]] = x;
+            }
+            smaller[x] = (top >= 0) ? sa[top] : -1;
+            // the stack never grows past the element we have just read
+            sa[++top] = x;
+        }
+        while (top >= 0) {
+            larger[sa[top--]] = -1;
+        }
+    }
+}
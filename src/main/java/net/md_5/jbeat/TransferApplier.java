@@ -0,0 +1,271 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import static net.md_5.jbeat.Shared.*;
+
+/**
+ * Applies a patch to a target file through its channel, letting the kernel
+ * copy long runs of the source and of literal patch data straight into the
+ * target with {@link FileChannel#transferTo}. The bytes of those runs are
+ * never copied by the CPU, and are only read once, as part of verifying the
+ * source and patch checksums: the checksum of each run is computed on the way,
+ * and the checksum of the target is combined from them and the checksums of
+ * everything else it contains. <p> Shorter commands and all target copies are
+ * gathered in a staging buffer which is written to the target whenever it
+ * fills, or a long run is transferred.
+ */
+final class TransferApplier {
+
+    /**
+     * Shortest run which is transferred by the kernel.
+     */
+    private static final int TRANSFER_THRESHOLD = 16 * 1024;
+    /**
+     * Size of the staging buffer.
+     */
+    private static final int STAGE_SIZE = 256 * 1024;
+    private final CommandIndex commands;
+    private final LargeBuffer patch;
+    private final FileChannel patchChannel;
+    private final LargeBuffer source;
+    private final FileChannel sourceChannel;
+    private final FileChannel target;
+    private final PatchStatistics statistics;
+    private final PatchListener listener;
+    /**
+     * Checksum of each long source read and target read.
+     */
+    private final long[] checksums;
+    /**
+     * Target bytes not yet written, starting at {@link #stageStart}.
+     */
+    private final ByteBuffer stage = ByteBuffer.allocateDirect(STAGE_SIZE);
+    private final LargeBuffer staged = LargeBuffer.wrap(stage.duplicate());
+    private long stageStart;
+    /**
+     * Checksum of every byte written to the target so far.
+     */
+    private long targetCrc;
+    private long reported;
+
+    private TransferApplier(CommandIndex commands, LargeBuffer patch, FileChannel patchChannel, LargeBuffer source, FileChannel sourceChannel, FileChannel target, PatchStatistics statistics, PatchListener listener) {
+        this.commands = commands;
+        this.patch = patch;
+        this.patchChannel = patchChannel;
+        this.source = source;
+        this.sourceChannel = sourceChannel;
+        this.target = target;
+        this.statistics = statistics;
+        this.listener = listener;
+        this.checksums = new long[commands.count];
+    }
+
+    /**
+     * Apply a patch, verifying its checksums. The patch and source are read
+     * both through their mappings and their channels, which must be of the
+     * same files. Nothing is written until the patch and source are verified.
+     */
+    static void apply(LargeBuffer patch, FileChannel patchChannel, LargeBuffer source, FileChannel sourceChannel, FileChannel target, PatchStatistics statistics, PatchListener listener) throws IOException {
+        PatchReader reader = new PatchReader(patch);
+        CommandIndex commands = new CommandIndex(reader);
+        long sourceChecksum = reader.readInt();
+        long targetChecksum = reader.readInt();
+        long end = reader.offset();
+        long patchChecksum = reader.readInt();
+        if (source.length() < reader.sourceSize) {
+            throw new IOException("Source is smaller than the patch expects!");
+        }
+        statistics.header(reader.sourceSize, reader.targetSize, reader.metadata);
+        for (int i = 0; i < commands.count; i++) {
+            statistics.command(commands.modes[i], commands.lengths[i]);
+        }
+        if (listener != null) {
+            listener.started(reader.sourceSize, reader.targetSize, reader.metadata);
+        }
+        TransferApplier applier = new TransferApplier(commands, patch, patchChannel, source, sourceChannel, target, statistics, listener);
+        long start = System.nanoTime();
+        if (applier.checksumRuns(patch, end, TARGET_READ) != patchChecksum) {
+            throw new IOException("Patch checksum does not match!");
+        }
+        long time = System.nanoTime();
+        statistics.patchChecksumNanos = time - start;
+        if (applier.checksumRuns(source, reader.sourceSize, SOURCE_READ) != sourceChecksum) {
+            throw new IOException("Source checksum does not match!");
+        }
+        start = System.nanoTime();
+        statistics.sourceChecksumNanos = start - time;
+        target.truncate(reader.targetSize);
+        applier.execute();
+        statistics.commandNanos = System.nanoTime() - start - statistics.targetChecksumNanos;
+        if (applier.targetCrc != targetChecksum) {
+            throw new IOException("Target checksum does not match!");
+        }
+        if (listener != null) {
+            listener.progress(reader.targetSize, reader.targetSize);
+            listener.finished(statistics);
+        }
+    }
+
+    /**
+     * Checksum the first {@code length} bytes of the patch or source, keeping
+     * the checksum of each long run which the commands of the specified mode
+     * read from it. Runs of either mode appear in the order of the data.
+     */
+    private long checksumRuns(LargeBuffer data, long length, long mode) {
+        long crc = 0, done = 0;
+        for (int i = 0; i < commands.count; i++) {
+            if (commands.modes[i] == mode && commands.lengths[i] >= TRANSFER_THRESHOLD) {
+                long offset = commands.offsets[i];
+                crc = combine(crc, checksum(data, done, offset), offset - done);
+                checksums[i] = checksum(data, offset, offset + commands.lengths[i]);
+                crc = combine(crc, checksums[i], commands.lengths[i]);
+                done = offset + commands.lengths[i];
+            }
+        }
+        return combine(crc, checksum(data, done, length), length - done);
+    }
+
+    private static long checksum(LargeBuffer data, long start, long end) {
+        CRC32 crc = new CRC32();
+        data.update(crc, start, end);
+        return crc.getValue();
+    }
+
+    private void execute() throws IOException {
+        for (int i = 0; i < commands.count; i++) {
+            int mode = commands.modes[i];
+            long outputOffset = commands.targetOffsets[i];
+            long offset = commands.offsets[i];
+            long length = commands.lengths[i];
+            if (mode == TARGET_COPY) {
+                stageTargetCopy(offset, outputOffset, length);
+            } else if (length < TRANSFER_THRESHOLD) {
+                stage(mode == TARGET_READ ? patch : source, offset, length);
+            } else {
+                flush();
+                FileChannel from = (mode == TARGET_READ) ? patchChannel : sourceChannel;
+                target.position(outputOffset);
+                for (long done = 0; done < length;) {
+                    done += from.transferTo(offset + done, length - done, target);
+                }
+                long time = System.nanoTime();
+                // source copies are not part of the source checksum
+                long crc = (mode == SOURCE_COPY) ? checksum(source, offset, offset + length) : checksums[i];
+                targetCrc = combine(targetCrc, crc, length);
+                statistics.targetChecksumNanos += System.nanoTime() - time;
+                stageStart = outputOffset + length;
+                progress();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Append bytes from the patch or source to the staging buffer.
+     */
+    private void stage(LargeBuffer data, long offset, long length) throws IOException {
+        while (length > 0) {
+            if (!stage.hasRemaining()) {
+                flush();
+            }
+            int count = (int) Math.min(length, stage.remaining());
+            data.get(offset, stage, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Append a target copy to the staging buffer. The bytes copied may have
+     * been written to the target already, or may still be staged. When the
+     * copy overlaps itself everything between its offset and the output is a
+     * repeating unit, so each piece is copied from the earliest point of the
+     * unit it should start at, which allows pieces to double in length.
+     */
+    private void stageTargetCopy(long offset, long outputOffset, long length) throws IOException {
+        long period = outputOffset - offset;
+        for (long done = 0; done < length;) {
+            if (!stage.hasRemaining()) {
+                flush();
+            }
+            long from = offset + done % period;
+            int count = (int) Math.min(Math.min(length - done, outputOffset + done - from), stage.remaining());
+            if (from >= stageStart) {
+                staged.copy(from - stageStart, staged, stage.position(), count);
+                stage.position(stage.position() + count);
+            } else {
+                // read what has been written, the rest is copied next time
+                count = (int) Math.min(count, stageStart - from);
+                ByteBuffer into = stage.duplicate();
+                into.limit(stage.position() + count);
+                while (into.hasRemaining()) {
+                    if (target.read(into, from + into.position() - stage.position()) < 0) {
+                        throw new IOException("Target ended whilst copying from it!");
+                    }
+                }
+                stage.position(into.position());
+            }
+            done += count;
+        }
+    }
+
+    /**
+     * Write the staging buffer to the target, adding it to the checksum.
+     */
+    private void flush() throws IOException {
+        if (stage.position() == 0) {
+            return;
+        }
+        stage.flip();
+        long time = System.nanoTime();
+        CRC32 crc = new CRC32();
+        crc.update(stage.duplicate());
+        targetCrc = combine(targetCrc, crc.getValue(), stage.remaining());
+        statistics.targetChecksumNanos += System.nanoTime() - time;
+        long position = stageStart;
+        while (stage.hasRemaining()) {
+            position += target.write(stage, position);
+        }
+        stage.clear();
+        stageStart = position;
+        progress();
+    }
+
+    private void progress() {
+        if (listener != null && stageStart - reported >= Patcher.PROGRESS_INTERVAL) {
+            listener.progress(stageStart, statistics.getTargetSize());
+            reported = stageStart;
+        }
+    }
+}
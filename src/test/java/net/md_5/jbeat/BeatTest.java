@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class BeatTest {
+
+    @Test
+    public void createsAndAppliesEveryEdit() throws IOException {
+        for (Corpus.Edit edit : Corpus.Edit.values()) {
+            Corpus corpus = Corpus.generate(edit, SIZE);
+            ByteBuffer patch = Beat.create(ByteBuffer.wrap(corpus.source), ByteBuffer.wrap(corpus.target), edit.name());
+            assertRoundTrip(edit.name(), bytes(patch), corpus.source, corpus.target);
+            assertEquals(edit.name(), PatchInfo.read(patch).getMetadata());
+            assertEquals(corpus.target.length, Beat.targetSize(patch));
+        }
+    }
+
+    @Test
+    public void leavesInputsUntouched() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.INSERTIONS, SIZE);
+        ByteBuffer source = ByteBuffer.wrap(corpus.source), target = ByteBuffer.wrap(corpus.target);
+        ByteBuffer patch = Beat.create(source, target);
+        Beat.apply(patch, source);
+        assertEquals(0, source.position());
+        assertEquals(0, target.position());
+        assertEquals(0, patch.position());
+        assertEquals(corpus.source.length, source.limit());
+    }
+
+    @Test
+    public void writesIntoSuppliedBuffers() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.RANDOM_EDITS, SIZE);
+        ByteBuffer patchBuffer = ByteBuffer.allocate(SIZE);
+        patchBuffer.position(10);
+        ByteBuffer patch = Beat.create(ByteBuffer.wrap(corpus.source), ByteBuffer.wrap(corpus.target), null, patchBuffer);
+        assertEquals(10 + patch.remaining(), patchBuffer.position());
+
+        ByteBuffer targetBuffer = ByteBuffer.allocate(SIZE + 20);
+        targetBuffer.position(7);
+        ByteBuffer target = Beat.apply(patch, ByteBuffer.wrap(corpus.source), targetBuffer);
+        assertArrayEquals(corpus.target, bytes(target));
+        assertEquals(7 + corpus.target.length, targetBuffer.position());
+        // nothing outside the target was written
+        assertEquals(0, targetBuffer.get(6));
+        assertEquals(0, targetBuffer.get(targetBuffer.position()));
+    }
+
+    @Test
+    public void overflowsSmallBuffers() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.DIFFERENT, SIZE);
+        try {
+            Beat.create(ByteBuffer.wrap(corpus.source), ByteBuffer.wrap(corpus.target), null, ByteBuffer.allocate(64));
+            fail("Wrote a patch larger than its buffer");
+        } catch (BufferOverflowException expected) {
+        }
+        ByteBuffer patch = Beat.create(ByteBuffer.wrap(corpus.source), ByteBuffer.wrap(corpus.target));
+        try {
+            Beat.apply(patch, ByteBuffer.wrap(corpus.source), ByteBuffer.allocate(corpus.target.length - 1));
+            fail("Wrote a target larger than its buffer");
+        } catch (BufferOverflowException expected) {
+        }
+    }
+
+    @Test
+    public void sharesInputsBetweenThreads() throws Exception {
+        final Corpus corpus = Corpus.generate(Corpus.Edit.BLOCK_MOVES, SIZE);
+        final ByteBuffer source = ByteBuffer.wrap(corpus.source), target = ByteBuffer.wrap(corpus.target);
+        final ByteBuffer patch = Beat.create(source, target);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+            for (int i = 0; i < 16; i++) {
+                final boolean create = (i % 2) == 0;
+                results.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return bytes(create ? Beat.create(source, target) : Beat.apply(patch, source));
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertArrayEquals((i % 2) == 0 ? bytes(patch) : corpus.target, results.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class BlockCreatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] create(byte[] source, byte[] target, int blockSize, boolean targetCopies) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BlockCreator creator = new BlockCreator(ByteBuffer.wrap(source), ByteBuffer.wrap(target), out, null, blockSize);
+        CreatorOptions options = new CreatorOptions();
+        options.setTargetCopies(targetCopies);
+        creator.setOptions(options);
+        creator.create();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void createsEveryEdit() throws IOException {
+        for (Corpus.Edit edit : Corpus.Edit.values()) {
+            Corpus corpus = Corpus.generate(edit, SIZE);
+            for (int blockSize : new int[]{4, BlockCreator.DEFAULT_BLOCK_SIZE, 64}) {
+                for (boolean targetCopies : new boolean[]{true, false}) {
+                    String message = edit + " " + blockSize + " " + targetCopies;
+                    assertRoundTrip(message, create(corpus.source, corpus.target, blockSize, targetCopies), corpus.source, corpus.target);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void findsMovedBlocks() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.BLOCK_MOVES, SIZE);
+        byte[] patch = create(corpus.source, corpus.target, BlockCreator.DEFAULT_BLOCK_SIZE, true);
+        assertTrue(patch.length < SIZE / 100);
+    }
+
+    @Test
+    public void createsEmptyAndFromEmpty() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.RANDOM_EDITS, SIZE / 4);
+        byte[] empty = new byte[0];
+        assertRoundTrip("from empty", create(empty, corpus.target, 16, true), empty, corpus.target);
+        assertRoundTrip("to empty", create(corpus.source, empty, 16, true), corpus.source, empty);
+        // shorter than a single block
+        byte[] tiny = {1, 2, 3};
+        assertRoundTrip("tiny", create(tiny, new byte[]{3, 2, 1, 2, 3}, 16, true), tiny, new byte[]{3, 2, 1, 2, 3});
+    }
+
+    @Test
+    public void createsTheSamePatchFromFiles() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.INSERTIONS, SIZE);
+        File source = write(folder.newFile(), corpus.source);
+        File target = write(folder.newFile(), corpus.target);
+        File patch = folder.newFile();
+        new BlockCreator(source, target, patch).create();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BlockCreator(ByteBuffer.wrap(corpus.source), ByteBuffer.wrap(corpus.target), out).create();
+        assertArrayEquals(out.toByteArray(), read(patch));
+        assertRoundTrip("files", read(patch), corpus.source, corpus.target);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTinyBlocks() {
+        new BlockCreator(ByteBuffer.allocate(0), ByteBuffer.allocate(0), new ByteArrayOutputStream(), null, 3);
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Deterministic generator of source and target pairs for tests and
+ * benchmarks. The same edit, size and seed always produce the same bytes.
+ */
+public final class Corpus {
+
+    /**
+     * The kind of change made to the source to produce the target.
+     */
+    public enum Edit {
+
+        /**
+         * Roughly one byte in every thousand is changed in place.
+         */
+        RANDOM_EDITS,
+        /**
+         * The source is cut into blocks, a quarter of which are moved.
+         */
+        BLOCK_MOVES,
+        /**
+         * Short runs of new data are inserted throughout the source.
+         */
+        INSERTIONS,
+        /**
+         * The source is unchanged, with new data appended to it.
+         */
+        APPENDED,
+        /**
+         * Regions of the source are overwritten by long runs of one byte.
+         */
+        RLE_RUNS,
+        /**
+         * The target has nothing in common with the source.
+         */
+        DIFFERENT
+    }
+
+    public final byte[] source;
+    public final byte[] target;
+
+    private Corpus(byte[] source, byte[] target) {
+        this.source = source;
+        this.target = target;
+    }
+
+    public static Corpus generate(Edit edit, int size) {
+        return generate(edit, size, 0x6A626561L);
+    }
+
+    public static Corpus generate(Edit edit, int size, long seed) {
+        Random random = new Random(seed);
+        byte[] source = data(random, size);
+        byte[] target;
+        switch (edit) {
+            case RANDOM_EDITS:
+                target = source.clone();
+                for (int i = 0; i < size / 1000; i++) {
+                    target[random.nextInt(size)] = (byte) random.nextInt(256);
+                }
+                break;
+            case BLOCK_MOVES: {
+                // cut into blocks and swap a quarter of them around
+                int blocks = Math.max(1, size / 16384);
+                int[] order = new int[blocks];
+                for (int i = 0; i < blocks; i++) {
+                    order[i] = i;
+                }
+                for (int i = 0; i < blocks / 4; i++) {
+                    int a = random.nextInt(blocks), b = random.nextInt(blocks);
+                    int swap = order[a];
+                    order[a] = order[b];
+                    order[b] = swap;
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+                for (int block : order) {
+                    int start = block * (size / blocks);
+                    int end = (block == blocks - 1) ? size : start + size / blocks;
+                    out.write(source, start, end - start);
+                }
+                target = out.toByteArray();
+                break;
+            }
+            case INSERTIONS: {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(size + size / 16);
+                int offset = 0;
+                while (offset < size) {
+                    int keep = Math.min(size - offset, 1 + random.nextInt(65536));
+                    out.write(source, offset, keep);
+                    offset += keep;
+                    byte[] insert = new byte[16 + random.nextInt(4080)];
+                    random.nextBytes(insert);
+                    out.write(insert, 0, insert.length);
+                }
+                target = out.toByteArray();
+                break;
+            }
+            case APPENDED: {
+                target = new byte[size + size / 10];
+                System.arraycopy(source, 0, target, 0, size);
+                byte[] tail = data(random, size / 10);
+                System.arraycopy(tail, 0, target, size, tail.length);
+                break;
+            }
+            case RLE_RUNS: {
+                target = source.clone();
+                int filled = 0;
+                while (filled < size / 10) {
+                    int length = Math.min(1 + random.nextInt(65536), size);
+                    int start = random.nextInt(size - length + 1);
+                    byte value = (byte) random.nextInt(4);
+                    for (int i = start; i < start + length; i++) {
+                        target[i] = value;
+                    }
+                    filled += length;
+                }
+                break;
+            }
+            case DIFFERENT:
+                target = data(random, size);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown edit " + edit);
+        }
+        return new Corpus(source, target);
+    }
+
+    /**
+     * Produce data resembling a binary, a mixture of random bytes, zero
+     * padding and repeats of earlier sections.
+     */
+    private static byte[] data(Random random, int size) {
+        byte[] data = new byte[size];
+        int offset = 0;
+        while (offset < size) {
+            int length = Math.min(size - offset, 1 + random.nextInt(256));
+            int kind = random.nextInt(8);
+            if (kind < 4 || offset < 4096) {
+                for (int i = 0; i < length; i++) {
+                    data[offset + i] = (byte) random.nextInt(256);
+                }
+            } else if (kind < 6) {
+                int from = random.nextInt(offset - length + 1);
+                System.arraycopy(data, from, data, offset, length);
+            }
+            // otherwise leave zero padding
+            offset += length;
+        }
+        return data;
+    }
+}
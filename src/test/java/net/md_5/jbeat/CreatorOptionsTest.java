@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class CreatorOptionsTest {
+
+    @Test
+    public void everyLevelIsAtLeastAsThoroughAsTheOneBelow() {
+        for (int level = CreatorOptions.FASTEST + 1; level <= CreatorOptions.SMALLEST; level++) {
+            CreatorOptions lower = new CreatorOptions(level - 1), higher = new CreatorOptions(level);
+            String message = "level " + level;
+            assertTrue(message, higher.getMinimumMatch() <= lower.getMinimumMatch());
+            assertTrue(message, higher.getSearchDepth() >= lower.getSearchDepth());
+            assertTrue(message, higher.getCandidates() >= lower.getCandidates());
+            assertTrue(message, higher.isTargetCopies() || !lower.isTargetCopies());
+            // and no two levels are the same
+            assertFalse(message, higher.getMinimumMatch() == lower.getMinimumMatch()
+                    && higher.getSearchDepth() == lower.getSearchDepth()
+                    && higher.getCandidates() == lower.getCandidates()
+                    && higher.isTargetCopies() == lower.isTargetCopies());
+        }
+    }
+
+    private static byte[] create(int creator, Corpus corpus, int level) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(corpus.source), target = ByteBuffer.wrap(corpus.target);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PatchCreator patchCreator = (creator == 0) ? new DeltaCreator(source, target, out)
+                : (creator == 1) ? new LinearCreator(source, target, out) : new BlockCreator(source, target, out);
+        patchCreator.setOptions(new CreatorOptions(level));
+        patchCreator.create();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void smallestIsNoLargerThanDefault() throws IOException {
+        for (Corpus.Edit edit : Corpus.Edit.values()) {
+            Corpus corpus = Corpus.generate(edit, SIZE);
+            for (int creator = 0; creator < 3; creator++) {
+                String message = edit + " " + creator;
+                byte[] smallest = create(creator, corpus, CreatorOptions.SMALLEST);
+                byte[] standard = create(creator, corpus, CreatorOptions.DEFAULT_LEVEL);
+                assertRoundTrip(message, smallest, corpus.source, corpus.target);
+                assertTrue(message, smallest.length <= standard.length);
+            }
+        }
+    }
+}
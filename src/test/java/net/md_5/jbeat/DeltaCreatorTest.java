@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class DeltaCreatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] create(byte[] source, byte[] target, String header) throws IOException {
+        return create(source, target, header, new CreatorOptions());
+    }
+
+    private static byte[] create(byte[] source, byte[] target, String header, CreatorOptions options) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeltaCreator creator = new DeltaCreator(ByteBuffer.wrap(source), ByteBuffer.wrap(target), out, header);
+        creator.setOptions(options);
+        creator.create();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void createsEveryEdit() throws IOException {
+        for (Corpus.Edit edit : Corpus.Edit.values()) {
+            Corpus corpus = Corpus.generate(edit, SIZE);
+            assertRoundTrip(edit.name(), create(corpus.source, corpus.target, null), corpus.source, corpus.target);
+        }
+    }
+
+    @Test
+    public void createsEveryEditAtEveryLevel() throws IOException {
+        for (Corpus.Edit edit : Corpus.Edit.values()) {
+            Corpus corpus = Corpus.generate(edit, SIZE / 4);
+            for (int level = CreatorOptions.FASTEST; level <= CreatorOptions.SMALLEST; level++) {
+                assertRoundTrip(edit + " " + level, create(corpus.source, corpus.target, null, new CreatorOptions(level)), corpus.source, corpus.target);
+            }
+        }
+    }
+
+    @Test
+    public void createsEmptyAndFromEmpty() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.RANDOM_EDITS, SIZE / 4);
+        byte[] empty = new byte[0];
+        assertRoundTrip("from empty", create(empty, corpus.target, null), empty, corpus.target);
+        assertRoundTrip("to empty", create(corpus.source, empty, null), corpus.source, empty);
+        assertRoundTrip("empty", create(empty, empty, null), empty, empty);
+    }
+
+    @Test
+    public void findsRepeatsInTheTarget() throws IOException {
+        // a periodic target with nothing in common with the source
+        byte[] target = new byte[SIZE];
+        for (int i = 0; i < target.length; i++) {
+            target[i] = (byte) (i % 251);
+        }
+        byte[] patch = create(new byte[0], target, null);
+        assertRoundTrip("periodic", patch, new byte[0], target);
+        assertTrue(patch.length < 512);
+    }
+
+    @Test
+    public void writesTheHeader() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.APPENDED, SIZE / 4);
+        byte[] patch = create(corpus.source, corpus.target, "metadata é");
+        assertRoundTrip("header", patch, corpus.source, corpus.target);
+        ByteBuffer header = ByteBuffer.wrap(patch);
+        header.position(4);
+        decode(header);
+        decode(header);
+        byte[] metadata = new byte[(int) decode(header)];
+        header.get(metadata);
+        assertEquals("metadata é", new String(metadata, "UTF-8"));
+    }
+
+    @Test
+    public void createsTheSamePatchFromFiles() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.BLOCK_MOVES, SIZE);
+        File source = write(folder.newFile(), corpus.source);
+        File target = write(folder.newFile(), corpus.target);
+        File patch = folder.newFile();
+        new DeltaCreator(source, target, patch, "files").create();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new DeltaCreator(ByteBuffer.wrap(corpus.source), ByteBuffer.wrap(corpus.target), out, "files").create();
+        assertArrayEquals(out.toByteArray(), read(patch));
+        assertRoundTrip("files", read(patch), corpus.source, corpus.target);
+    }
+}
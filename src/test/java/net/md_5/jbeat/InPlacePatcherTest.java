@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class InPlacePatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] create(byte[] source, byte[] target) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new DeltaCreator(ByteBuffer.wrap(source), ByteBuffer.wrap(target), out).create();
+        return out.toByteArray();
+    }
+
+    /**
+     * Apply a patch in place with exactly the scratch budget it needs, and
+     * in copy mode with one byte less, checking the file matches the target
+     * each time.
+     */
+    private void assertPatchesInPlace(String message, byte[] patch, byte[] source, byte[] target) throws IOException {
+        File patchFile = write(folder.newFile(), patch);
+        long required = InPlacePatcher.scratchRequired(PatchProgram.compile(patchFile));
+        File file = write(folder.newFile(), source);
+        assertTrue(message, new InPlacePatcher(patchFile, file, (int) required).patch());
+        assertArrayEquals(message, target, read(file));
+        if (required > 0) {
+            file = write(folder.newFile(), source);
+            assertFalse(message, new InPlacePatcher(patchFile, file, (int) required - 1).patch());
+            assertArrayEquals(message, target, read(file));
+        }
+    }
+
+    @Test
+    public void patchesEveryEdit() throws IOException {
+        for (Corpus.Edit edit : Corpus.Edit.values()) {
+            Corpus corpus = Corpus.generate(edit, SIZE);
+            assertPatchesInPlace(edit.name(), create(corpus.source, corpus.target), corpus.source, corpus.target);
+            // and back again, for a target smaller than the source
+            assertPatchesInPlace(edit + " reversed", create(corpus.target, corpus.source), corpus.target, corpus.source);
+        }
+    }
+
+    /**
+     * Hand written commands, tracking the target they produce.
+     */
+    private static final class Plan {
+
+        private final byte[] source;
+        private final byte[] target;
+        private final Builder patch;
+        private int outputOffset;
+
+        private Plan(byte[] source, int targetSize) {
+            this.source = source;
+            this.target = new byte[targetSize];
+            this.patch = build(source.length, targetSize);
+        }
+
+        private Plan sourceCopy(int offset, int length) {
+            patch.sourceCopy(offset, length);
+            System.arraycopy(source, offset, target, outputOffset, length);
+            outputOffset += length;
+            return this;
+        }
+
+        private Plan targetRead(byte... data) {
+            patch.targetRead(data);
+            System.arraycopy(data, 0, target, outputOffset, data.length);
+            outputOffset += data.length;
+            return this;
+        }
+
+        private Plan targetCopy(int offset, int length) {
+            patch.targetCopy(offset, length);
+            for (int i = 0; i < length; i++) {
+                target[outputOffset++] = target[offset + i];
+            }
+            return this;
+        }
+
+        private byte[] finish() {
+            assertEquals(target.length, outputOffset);
+            return patch.finish(source, target);
+        }
+    }
+
+    @Test
+    public void readsOverwrittenSourceInOrder() throws IOException {
+        byte[] source = new byte[64 * 1024];
+        new Random(0).nextBytes(source);
+        int n = source.length, half = n / 2;
+
+        Plan swap = new Plan(source, n).sourceCopy(half, half).sourceCopy(0, half);
+        assertPatchesInPlace("swap", swap.finish(), source, swap.target);
+
+        Plan forward = new Plan(source, n + 1).targetRead((byte) 1).sourceCopy(0, n);
+        assertPatchesInPlace("forward", forward.finish(), source, forward.target);
+
+        Plan backward = new Plan(source, n).sourceCopy(1, n - 1).targetRead((byte) 1);
+        assertPatchesInPlace("backward", backward.finish(), source, backward.target);
+
+        Plan reversed = new Plan(source, n);
+        for (int block = n - 4096; block >= 0; block -= 4096) {
+            reversed.sourceCopy(block, 4096);
+        }
+        assertPatchesInPlace("reversed", reversed.finish(), source, reversed.target);
+
+        // the same overwritten range read again and again
+        Plan repeated = new Plan(source, n * 3).sourceCopy(0, n).sourceCopy(0, n).sourceCopy(half, half).sourceCopy(0, half);
+        assertPatchesInPlace("repeated", repeated.finish(), source, repeated.target);
+
+        // overlapping ranges, which share one saved copy
+        Plan overlapping = new Plan(source, n).targetRead(new byte[half]).sourceCopy(100, 1000).sourceCopy(500, 2000)
+                .targetCopy(half, 1000).sourceCopy(half - 10, half - 4000);
+        assertPatchesInPlace("overlapping", overlapping.finish(), source, overlapping.target);
+
+        Plan shrink = new Plan(source, half).sourceCopy(half, half);
+        assertPatchesInPlace("shrink", shrink.finish(), source, shrink.target);
+    }
+
+    @Test
+    public void leavesTheFileUntouchedForTheWrongSource() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.BLOCK_MOVES, SIZE);
+        File patch = write(folder.newFile(), create(corpus.source, corpus.target));
+        byte[] wrong = corpus.source.clone();
+        wrong[wrong.length / 2] ^= 1;
+        File file = write(folder.newFile(), wrong);
+        try {
+            new InPlacePatcher(patch, file).patch();
+            fail("Patched the wrong source");
+        } catch (IOException expected) {
+        }
+        assertArrayEquals(wrong, read(file));
+    }
+
+    @Test
+    public void keepsTheSourceWhenTheFinalMoveFails() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.BLOCK_MOVES, SIZE);
+        File patch = write(folder.newFile(), create(corpus.source, corpus.target));
+        final File file = write(folder.newFile(), corpus.source);
+        InPlacePatcher patcher = new InPlacePatcher(patch, file, 0);
+        patcher.setListener(new PatchListener() {
+            @Override
+            public void started(long sourceSize, long targetSize, String metadata) {
+                // remove the copy being written, so it cannot be moved
+                for (File temp : file.getParentFile().listFiles()) {
+                    if (temp.getName().startsWith("." + file.getName())) {
+                        assertTrue(temp.delete());
+                    }
+                }
+            }
+        });
+        try {
+            patcher.patch();
+            fail("Moved a file which no longer exists");
+        } catch (IOException expected) {
+        }
+        assertArrayEquals(corpus.source, read(file));
+    }
+}
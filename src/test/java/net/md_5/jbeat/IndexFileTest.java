@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class IndexFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] create(int creator, Corpus corpus, File index, int blockSize) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(corpus.source), target = ByteBuffer.wrap(corpus.target);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PatchCreator patchCreator = (creator == 0) ? new DeltaCreator(source, target, out) : new BlockCreator(source, target, out, null, blockSize);
+        patchCreator.setSourceIndex(index);
+        patchCreator.create();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void reusesTheIndexOfTheSameSource() throws IOException {
+        for (int creator = 0; creator < 2; creator++) {
+            // a name too short to be the prefix of a temporary file
+            File index = new File(folder.getRoot(), "i" + creator);
+            for (Corpus.Edit edit : Corpus.Edit.values()) {
+                // every edit of the corpus starts from the same source
+                Corpus corpus = Corpus.generate(edit, SIZE);
+                byte[] patch = create(creator, corpus, index, 16);
+                assertRoundTrip(edit + " " + creator, patch, corpus.source, corpus.target);
+                assertArrayEquals(edit + " " + creator, create(creator, corpus, null, 16), patch);
+            }
+            assertTrue(index.isFile());
+        }
+    }
+
+    @Test
+    public void mapsRatherThanRebuilds() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.INSERTIONS, SIZE);
+        File index = folder.newFile();
+        create(1, corpus, index, 16);
+        // an index with the right header is trusted, so changing its entries
+        // shows whether it was read or built again
+        long length = index.length();
+        RandomAccessFile file = new RandomAccessFile(index, "rw");
+        try {
+            file.setLength(IndexFile.DATA);
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+        byte[] patch = create(1, corpus, index, 16);
+        assertRoundTrip("mapped", patch, corpus.source, corpus.target);
+        assertTrue(patch.length > create(1, corpus, null, 16).length);
+    }
+
+    @Test
+    public void rebuildsForAnotherSourceOrKind() throws IOException {
+        Corpus first = Corpus.generate(Corpus.Edit.BLOCK_MOVES, SIZE, 1);
+        Corpus second = Corpus.generate(Corpus.Edit.BLOCK_MOVES, SIZE, 2);
+        File index = folder.newFile();
+        create(1, first, index, 16);
+        assertArrayEquals("source", create(1, second, null, 16), create(1, second, index, 16));
+        assertArrayEquals("block size", create(1, second, null, 32), create(1, second, index, 32));
+        assertArrayEquals("kind", create(0, second, null, 16), create(0, second, index, 16));
+        // and a truncated index is ignored
+        RandomAccessFile file = new RandomAccessFile(index, "rw");
+        try {
+            file.setLength(file.length() - 4);
+        } finally {
+            file.close();
+        }
+        assertArrayEquals("truncated", create(0, second, null, 16), create(0, second, index, 16));
+        // no temporary files are left behind
+        assertEquals(1, folder.getRoot().list().length);
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LargeBufferTest {
+
+    /**
+     * log2 of the window size used, small enough for every operation to cross
+     * windows and large enough for whole words to be compared within one.
+     */
+    private static final int SHIFT = 5;
+    private static final int LENGTH = 200;
+
+    private static byte[] data(long seed) {
+        byte[] data = new byte[LENGTH];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void getsAcrossWindows() {
+        byte[] data = data(0);
+        LargeBuffer buffer = LargeBuffer.wrap(ByteBuffer.wrap(data), SHIFT);
+        assertEquals(LENGTH, buffer.length());
+        for (int i = 0; i < LENGTH; i++) {
+            assertEquals(data[i], buffer.get(i));
+        }
+        for (int offset = 0; offset < LENGTH; offset += 3) {
+            for (int length = 0; offset + length <= LENGTH; length += 7) {
+                byte[] array = new byte[length + 1];
+                buffer.get(offset, array, 1, length);
+                assertArrayEquals(Arrays.copyOfRange(data, offset, offset + length), Arrays.copyOfRange(array, 1, length + 1));
+                ByteBuffer dst = ByteBuffer.allocate(length);
+                buffer.get(offset, dst, length);
+                assertArrayEquals(Arrays.copyOfRange(data, offset, offset + length), dst.array());
+            }
+        }
+    }
+
+    @Test
+    public void wrapsFromThePosition() {
+        byte[] data = data(1);
+        ByteBuffer wrapped = ByteBuffer.wrap(data);
+        wrapped.position(5);
+        LargeBuffer buffer = LargeBuffer.wrap(wrapped, SHIFT);
+        assertEquals(LENGTH - 5, buffer.length());
+        for (int i = 0; i < buffer.length(); i++) {
+            assertEquals(data[i + 5], buffer.get(i));
+        }
+    }
+
+    @Test
+    public void copiesAcrossWindows() {
+        byte[] data = data(2);
+        LargeBuffer source = LargeBuffer.wrap(ByteBuffer.wrap(data), SHIFT);
+        // the target in smaller, equal and larger windows
+        for (int shift = SHIFT - 1; shift <= SHIFT + 1; shift++) {
+            for (int offset = 0; offset < LENGTH; offset += 5) {
+                for (int targetOffset = 0; targetOffset < LENGTH; targetOffset += 11) {
+                    int length = Math.min(LENGTH - offset, LENGTH - targetOffset);
+                    byte[] copied = new byte[LENGTH];
+                    source.copy(offset, LargeBuffer.wrap(ByteBuffer.wrap(copied), shift), targetOffset, length);
+                    byte[] expected = new byte[LENGTH];
+                    System.arraycopy(data, offset, expected, targetOffset, length);
+                    assertArrayEquals(shift + " " + offset + " " + targetOffset, expected, copied);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void checksumsAcrossWindows() {
+        byte[] data = data(3);
+        LargeBuffer buffer = LargeBuffer.wrap(ByteBuffer.wrap(data), SHIFT);
+        for (int start = 0; start < LENGTH; start += 3) {
+            for (int end = start; end <= LENGTH; end += 13) {
+                CRC32 expected = new CRC32();
+                expected.update(data, start, end - start);
+                CRC32 actual = new CRC32();
+                buffer.update(actual, start, end);
+                assertEquals(start + " " + end, expected.getValue(), actual.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void comparesAcrossWindows() {
+        byte[] data = data(4);
+        LargeBuffer a = LargeBuffer.wrap(ByteBuffer.wrap(data), SHIFT);
+        // the other range in windows of the same size, another size and one
+        // window, starting at every alignment to the first
+        for (int shift : new int[]{SHIFT, SHIFT + 2, 30}) {
+            for (int aStart = 0; aStart < 1 << SHIFT; aStart++) {
+                for (int bStart = 0; bStart < 1 << SHIFT; bStart += 3) {
+                    int max = LENGTH - Math.max(aStart, bStart);
+                    // a difference at every point of every word and window
+                    for (int difference = 0; difference <= max; difference++) {
+                        byte[] copy = new byte[LENGTH];
+                        System.arraycopy(data, aStart, copy, bStart, max);
+                        if (difference < max) {
+                            copy[bStart + difference] ^= 1;
+                        }
+                        LargeBuffer b = LargeBuffer.wrap(ByteBuffer.wrap(copy), shift);
+                        assertEquals(shift + " " + aStart + " " + bStart, difference, LargeBuffer.common(a, aStart, aStart + max, b, bStart, bStart + max));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class LinearCreatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] create(byte[] source, byte[] target, boolean runs) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LinearCreator creator = new LinearCreator(ByteBuffer.wrap(source), ByteBuffer.wrap(target), out);
+        CreatorOptions options = new CreatorOptions();
+        options.setTargetCopies(runs);
+        creator.setOptions(options);
+        creator.create();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void createsEveryEdit() throws IOException {
+        for (Corpus.Edit edit : Corpus.Edit.values()) {
+            Corpus corpus = Corpus.generate(edit, SIZE);
+            assertRoundTrip(edit + " runs", create(corpus.source, corpus.target, true), corpus.source, corpus.target);
+            assertRoundTrip(edit.name(), create(corpus.source, corpus.target, false), corpus.source, corpus.target);
+        }
+    }
+
+    @Test
+    public void comparesEveryAlignment() throws IOException {
+        // differences at every offset within and across the words compared
+        Random random = new Random(0);
+        for (int length = 0; length < 40; length++) {
+            byte[] source = new byte[length];
+            random.nextBytes(source);
+            for (int difference = 0; difference < length; difference++) {
+                byte[] target = source.clone();
+                target[difference] ^= 1;
+                String message = length + " " + difference;
+                assertRoundTrip(message, create(source, target, true), source, target);
+                assertRoundTrip(message, create(source, target, false), source, target);
+            }
+            byte[] longer = new byte[length + 5];
+            System.arraycopy(source, 0, longer, 0, length);
+            assertRoundTrip(length + " longer", create(source, longer, true), source, longer);
+        }
+    }
+
+    @Test
+    public void readsUnchangedDataFromTheSource() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.RANDOM_EDITS, SIZE);
+        byte[] same = create(corpus.source, corpus.source, false);
+        assertRoundTrip("same", same, corpus.source, corpus.source);
+        // a single source read and the header and footer
+        assertTrue(same.length < 32);
+    }
+
+    @Test
+    public void leavesTheOutputAloneWithoutAnInput() throws IOException {
+        byte[] existing = {1, 2, 3};
+        File output = write(folder.newFile(), existing);
+        File source = write(folder.newFile(), existing);
+        File missing = new File(folder.getRoot(), "missing");
+        try {
+            new LinearCreator(missing, source, output);
+            fail("Opened a missing source");
+        } catch (FileNotFoundException expected) {
+        }
+        try {
+            new LinearCreator(source, missing, output);
+            fail("Opened a missing target");
+        } catch (FileNotFoundException expected) {
+        }
+        assertArrayEquals(existing, read(output));
+    }
+}
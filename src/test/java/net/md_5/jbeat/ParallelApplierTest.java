@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class ParallelApplierTest {
+
+    /**
+     * Large enough to be split into several tasks.
+     */
+    private static final int LARGE = 12 * 1024 * 1024;
+    private static ForkJoinPool pool;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void startPool() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterClass
+    public static void stopPool() {
+        pool.shutdown();
+    }
+
+    private static byte[] create(byte[] source, byte[] target) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BlockCreator(ByteBuffer.wrap(source), ByteBuffer.wrap(target), out).create();
+        return out.toByteArray();
+    }
+
+    private static byte[] apply(byte[] patch, byte[] source) throws IOException {
+        PatchProgram program = PatchProgram.compile(LargeBuffer.wrap(ByteBuffer.wrap(patch)), pool);
+        byte[] target = new byte[(int) program.getTargetSize()];
+        program.apply(LargeBuffer.wrap(ByteBuffer.wrap(source)), LargeBuffer.wrap(ByteBuffer.wrap(target)), pool);
+        return target;
+    }
+
+    @Test
+    public void appliesEveryEdit() throws IOException {
+        for (Corpus.Edit edit : Corpus.Edit.values()) {
+            Corpus corpus = Corpus.generate(edit, SIZE);
+            byte[] patch = create(corpus.source, corpus.target);
+            assertArrayEquals(edit.name(), corpus.target, apply(patch, corpus.source));
+            File target = folder.newFile();
+            new Patcher(write(folder.newFile(), patch), write(folder.newFile(), corpus.source), target).patch(pool);
+            assertArrayEquals(edit.name(), corpus.target, read(target));
+        }
+    }
+
+    @Test
+    public void splitsLargeTargets() throws IOException {
+        for (Corpus.Edit edit : new Corpus.Edit[]{Corpus.Edit.BLOCK_MOVES, Corpus.Edit.RLE_RUNS}) {
+            Corpus corpus = Corpus.generate(edit, LARGE);
+            assertArrayEquals(edit.name(), corpus.target, apply(create(corpus.source, corpus.target), corpus.source));
+        }
+    }
+
+    @Test
+    public void ordersChainsOfTargetCopies() throws IOException {
+        // each copy reads what the one before it wrote, across task boundaries
+        byte[] target = new byte[LARGE];
+        Random random = new Random(0);
+        byte[] seed = new byte[1000];
+        random.nextBytes(seed);
+        System.arraycopy(seed, 0, target, 0, seed.length);
+        Builder patch = build(0, target.length).targetRead(seed);
+        long offset = seed.length;
+        long from = 0;
+        while (offset < target.length) {
+            long length = Math.min(target.length - offset, 1024 * 1024 + random.nextInt(1000));
+            // overlapping copies repeat the bytes before them
+            for (long i = 0; i < length; i++) {
+                target[(int) (offset + i)] = target[(int) (from + i)];
+            }
+            patch.targetCopy(from, length);
+            from = offset - random.nextInt(100);
+            offset += length;
+        }
+        assertArrayEquals(target, apply(patch.finish(new byte[0], target), new byte[0]));
+    }
+
+    @Test
+    public void checksumsEveryRange() {
+        byte[] data = new byte[LARGE];
+        new Random(1).nextBytes(data);
+        LargeBuffer buffer = LargeBuffer.wrap(ByteBuffer.wrap(data));
+        int[] points = {0, 1, 4095, 4 * 1024 * 1024, 5 * 1024 * 1024 + 3, LARGE - 1, LARGE};
+        for (int from : points) {
+            for (int to : points) {
+                if (from <= to) {
+                    CRC32 crc = new CRC32();
+                    crc.update(data, from, to - from);
+                    assertEquals(from + " " + to, crc.getValue(), ParallelApplier.checksum(buffer, from, to, pool));
+                }
+            }
+        }
+    }
+}
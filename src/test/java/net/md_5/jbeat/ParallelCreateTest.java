@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class ParallelCreateTest {
+
+    /**
+     * Large enough to be split into several segments.
+     */
+    private static final int LARGE = 3 * 1024 * 1024;
+    private static ForkJoinPool pool;
+
+    @BeforeClass
+    public static void startPool() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterClass
+    public static void stopPool() {
+        pool.shutdown();
+    }
+
+    private static byte[] create(int creator, Corpus corpus, ForkJoinPool pool) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(corpus.source), target = ByteBuffer.wrap(corpus.target);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PatchCreator patchCreator = (creator == 0) ? new DeltaCreator(source, target, out)
+                : (creator == 1) ? new LinearCreator(source, target, out) : new BlockCreator(source, target, out);
+        patchCreator.create(pool);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void createsEveryEditInSegments() throws IOException {
+        for (Corpus.Edit edit : Corpus.Edit.values()) {
+            Corpus corpus = Corpus.generate(edit, LARGE);
+            // the delta creator is slow on inputs this large, so it only runs
+            // the edits quickest for it
+            boolean delta = edit == Corpus.Edit.RANDOM_EDITS || edit == Corpus.Edit.BLOCK_MOVES || edit == Corpus.Edit.RLE_RUNS;
+            for (int creator = delta ? 0 : 1; creator < 3; creator++) {
+                String message = edit + " " + creator;
+                byte[] parallel = create(creator, corpus, pool);
+                assertRoundTrip(message, parallel, corpus.source, corpus.target);
+                // segments only lose matches which cross their boundaries, and
+                // for the block creator target copies into earlier segments
+                byte[] sequential = create(creator, corpus, null);
+                assertTrue(message, parallel.length <= sequential.length + sequential.length / 4 + 1024);
+            }
+        }
+    }
+
+    @Test
+    public void createsSmallTargetsSequentially() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.INSERTIONS, SIZE);
+        for (int creator = 0; creator < 3; creator++) {
+            assertArrayEquals(create(creator, corpus, null), create(creator, corpus, pool));
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class PatchBatchTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static File put(File directory, String path, byte[] data) throws IOException {
+        File file = new File(directory, path);
+        file.getParentFile().mkdirs();
+        return write(file, data);
+    }
+
+    /**
+     * Fill a source and target tree with one file for each corpus edit, plus
+     * an unchanged, an added and a deleted file.
+     */
+    private void trees(File source, File target) throws IOException {
+        for (Corpus.Edit edit : Corpus.Edit.values()) {
+            Corpus corpus = Corpus.generate(edit, SIZE / 4);
+            put(source, "edits/" + edit.name(), corpus.source);
+            put(target, "edits/" + edit.name(), corpus.target);
+        }
+        byte[] same = Corpus.generate(Corpus.Edit.DIFFERENT, 1000).source;
+        put(source, "same", same);
+        put(target, "same", same);
+        put(target, "added/file", Corpus.generate(Corpus.Edit.DIFFERENT, 1000).target);
+        put(source, "deleted", same);
+    }
+
+    private static void assertSameTree(File expected, File actual) throws IOException {
+        String[] names = expected.list();
+        Arrays.sort(names);
+        String[] actualNames = actual.list();
+        Arrays.sort(actualNames);
+        assertArrayEquals(actual.toString(), names, actualNames);
+        for (String name : names) {
+            File file = new File(expected, name);
+            if (file.isDirectory()) {
+                assertSameTree(file, new File(actual, name));
+            } else {
+                assertArrayEquals(name, read(file), read(new File(actual, name)));
+            }
+        }
+    }
+
+    @Test
+    public void appliesToNewTree() throws IOException {
+        File source = folder.newFolder(), target = folder.newFolder(), output = folder.newFolder();
+        trees(source, target);
+        File container = new File(folder.getRoot(), "c.jbpk");
+        new PatchBatch().create(source, target, container);
+        new PatchBatch().apply(container, source, output);
+        assertSameTree(target, output);
+    }
+
+    @Test
+    public void appliesInPlace() throws IOException {
+        File source = folder.newFolder(), target = folder.newFolder();
+        trees(source, target);
+        File container = new File(folder.getRoot(), "c.jbpk");
+        PatchBatch batch = new PatchBatch();
+        batch.setParallelism(2);
+        batch.setMaxOpenFiles(3);
+        batch.create(source, target, container);
+        batch.apply(container, source, source);
+        assertSameTree(target, source);
+    }
+
+    /**
+     * Create a container from a tree holding a single file, then rename that
+     * file within the index of the container to another path of the same
+     * length.
+     */
+    private File forge(String name, String path, boolean deleted) throws IOException {
+        assertEquals(name.length(), path.getBytes("UTF-8").length);
+        File source = folder.newFolder(), target = folder.newFolder();
+        put(source, name, new byte[]{1, 2, 3});
+        if (!deleted) {
+            put(target, name, new byte[]{1, 2, 4});
+        }
+        File container = new File(folder.getRoot(), "forged.jbpk");
+        new PatchBatch().create(source, target, container);
+        byte[] bytes = read(container);
+        String text = new String(bytes, "ISO-8859-1");
+        int at = text.lastIndexOf(name);
+        assertTrue(at > 0);
+        System.arraycopy(path.getBytes("UTF-8"), 0, bytes, at, name.length());
+        return write(container, bytes);
+    }
+
+    @Test
+    public void rejectsPathsOutsideTheTree() throws IOException {
+        File tree = folder.newFolder("tree");
+        // the patched source, so the patch would apply to it
+        File victim = write(new File(folder.getRoot(), "vict"), new byte[]{1, 2, 3});
+        File container = forge("abcdefg", "../vict", false);
+        try {
+            new PatchBatch().apply(container, tree, tree);
+            fail("Wrote outside of the tree");
+        } catch (IOException expected) {
+        }
+        assertArrayEquals(new byte[]{1, 2, 3}, read(victim));
+    }
+
+    @Test
+    public void rejectsDeletionsOutsideTheTree() throws IOException {
+        File tree = folder.newFolder("tree");
+        File victim = write(new File(folder.getRoot(), "victim"), new byte[]{9});
+        String path = victim.getAbsolutePath();
+        char[] name = new char[path.length()];
+        Arrays.fill(name, 'd');
+        File container = forge(new String(name), path, true);
+        try {
+            new PatchBatch().apply(container, tree, tree);
+            fail("Deleted outside of the tree");
+        } catch (IOException expected) {
+        }
+        assertTrue(victim.exists());
+    }
+
+    @Test
+    public void writesTheSameContainerAtAnyParallelism() throws IOException {
+        File source = folder.newFolder(), target = folder.newFolder();
+        // later paths are smaller, so their patches are finished first
+        for (int i = 0; i < 8; i++) {
+            Corpus corpus = Corpus.generate(Corpus.Edit.RANDOM_EDITS, SIZE / (i + 1), i);
+            put(source, "file" + i, corpus.source);
+            put(target, "file" + i, corpus.target);
+        }
+        File sequential = new File(folder.getRoot(), "sequential.jbpk");
+        PatchBatch batch = new PatchBatch();
+        batch.setParallelism(1);
+        batch.create(source, target, sequential);
+        File parallel = new File(folder.getRoot(), "parallel.jbpk");
+        batch.setParallelism(8);
+        batch.create(source, target, parallel);
+        assertArrayEquals(read(sequential), read(parallel));
+    }
+
+    @Test
+    public void rejectsUnknownEntryKinds() throws IOException {
+        File tree = folder.newFolder("tree");
+        // the patched source, so the patch would apply to it
+        File file = put(tree, "file", new byte[]{1, 2, 3});
+        File container = forge("file", "file", false);
+        byte[] bytes = read(container);
+        // the kind follows the path in the index
+        int kind = new String(bytes, "ISO-8859-1").lastIndexOf("file") + 4;
+        assertEquals(0, bytes[kind]);
+        bytes[kind] = 2;
+        write(container, bytes);
+        try {
+            new PatchBatch().apply(container, tree, tree);
+            fail("Applied an entry of an unknown kind");
+        } catch (IOException expected) {
+        }
+        assertArrayEquals(new byte[]{1, 2, 3}, read(file));
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class PatchCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] create(Corpus corpus) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new DeltaCreator(ByteBuffer.wrap(corpus.source), ByteBuffer.wrap(corpus.target), out).create();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void reusesCompiledPrograms() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.RANDOM_EDITS, SIZE);
+        byte[] patch = create(corpus);
+        File file = write(folder.newFile(), patch);
+        PatchCache cache = new PatchCache(4);
+        PatchProgram program = cache.get(ByteBuffer.wrap(patch));
+        assertSame(program, cache.get(ByteBuffer.wrap(patch.clone())));
+        assertSame(program, cache.get(file));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsed() throws IOException {
+        PatchCache cache = new PatchCache(2);
+        byte[][] patches = new byte[3][];
+        PatchProgram[] programs = new PatchProgram[patches.length];
+        for (int i = 0; i < patches.length; i++) {
+            patches[i] = create(Corpus.generate(Corpus.Edit.RANDOM_EDITS, SIZE / 4, i));
+            programs[i] = cache.get(ByteBuffer.wrap(patches[i]));
+        }
+        assertEquals(2, cache.size());
+        assertSame(programs[2], cache.get(ByteBuffer.wrap(patches[2])));
+        assertSame(programs[1], cache.get(ByteBuffer.wrap(patches[1])));
+        assertNotSame(programs[0], cache.get(ByteBuffer.wrap(patches[0])));
+    }
+
+    @Test
+    public void tamperedPatchDoesNotHitTheCache() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.RANDOM_EDITS, SIZE);
+        byte[] patch = create(corpus);
+        PatchCache cache = new PatchCache(4);
+        cache.get(ByteBuffer.wrap(patch));
+        // same size and footer, different commands
+        byte[] tampered = patch.clone();
+        tampered[tampered.length / 2] ^= 1;
+        try {
+            cache.get(ByteBuffer.wrap(tampered));
+            fail("Returned a program for a patch which does not match its checksum");
+        } catch (IOException expected) {
+        }
+        try {
+            cache.get(write(folder.newFile(), tampered));
+            fail("Returned a program for a patch file which does not match its checksum");
+        } catch (IOException expected) {
+        }
+        assertEquals(1, cache.size());
+    }
+
+    private static long crcBeforeFooter(byte[] patch) {
+        CRC32 crc = new CRC32();
+        crc.update(patch, 0, patch.length - 4);
+        return crc.getValue();
+    }
+
+    /**
+     * Flip bits among five bytes of a patch so that its crc32, and so its
+     * footer, stays the same. Flipping a bit changes the crc32 by a fixed
+     * amount, and forty of those amounts cannot all be independent.
+     */
+    private static byte[] collide(byte[] patch, int offset) {
+        long original = crcBeforeFooter(patch);
+        long[] pivots = new long[32];
+        long[] flips = new long[32];
+        for (int bit = 0; bit < 40; bit++) {
+            byte[] flipped = patch.clone();
+            flipped[offset + bit / 8] ^= 1 << (bit % 8);
+            long change = crcBeforeFooter(flipped) ^ original;
+            long flip = 1L << bit;
+            // eliminate against the changes of the earlier bits
+            for (int i = 31; i >= 0 && change != 0; i--) {
+                if ((change >>> i & 1) == 0) {
+                    continue;
+                }
+                if (pivots[i] == 0) {
+                    pivots[i] = change;
+                    flips[i] = flip;
+                    change = 0;
+                    flip = 0;
+                } else {
+                    change ^= pivots[i];
+                    flip ^= flips[i];
+                }
+            }
+            if (flip != 0) {
+                byte[] collision = patch.clone();
+                for (int i = 0; i < 40; i++) {
+                    if ((flip >>> i & 1) != 0) {
+                        collision[offset + i / 8] ^= 1 << (i % 8);
+                    }
+                }
+                return collision;
+            }
+        }
+        throw new AssertionError("No collision found");
+    }
+
+    @Test
+    public void patchesSharingAChecksumDoNotShareAProgram() throws IOException {
+        byte[] target = new byte[64];
+        byte[] patch = build(0, target.length).targetRead(target).finish(new byte[0], target);
+        // change the literal target bytes, just before the footer
+        byte[] collision = collide(patch, patch.length - 12 - 8);
+        assertEquals(patch.length, collision.length);
+        assertEquals(crcBeforeFooter(patch), crcBeforeFooter(collision));
+        assertFalse(Arrays.equals(patch, collision));
+        PatchCache cache = new PatchCache(4);
+        PatchProgram program = cache.get(ByteBuffer.wrap(patch));
+        assertNotSame(program, cache.get(ByteBuffer.wrap(collision)));
+        assertEquals(2, cache.size());
+    }
+}
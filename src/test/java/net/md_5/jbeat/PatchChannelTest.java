@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class PatchChannelTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] create(boolean linear, byte[] source, byte[] target) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PatchCreator creator = linear ? new LinearCreator(ByteBuffer.wrap(source), ByteBuffer.wrap(target), out, "channel")
+                : new DeltaCreator(ByteBuffer.wrap(source), ByteBuffer.wrap(target), out, "channel");
+        creator.create();
+        return out.toByteArray();
+    }
+
+    /**
+     * Read a range of the channel, which must be entirely within the target.
+     */
+    private static byte[] read(PatchChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        channel.position(position);
+        while (buffer.hasRemaining()) {
+            assertTrue(channel.read(buffer) > 0);
+        }
+        assertEquals(position + length, channel.position());
+        return buffer.array();
+    }
+
+    private static void assertReads(String message, PatchChannel channel, byte[] target) throws IOException {
+        assertEquals(message, target.length, channel.size());
+        assertArrayEquals(message, target, read(channel, 0, target.length));
+        // seek about in both directions, across the cached blocks
+        Random random = new Random(target.length);
+        for (int i = 0; i < 200 && target.length > 0; i++) {
+            int position = random.nextInt(target.length);
+            int length = Math.min(target.length - position, random.nextInt(200 * 1024));
+            byte[] expected = new byte[length];
+            System.arraycopy(target, position, expected, 0, length);
+            assertArrayEquals(message + " " + position, expected, read(channel, position, length));
+        }
+        channel.position(target.length);
+        assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+    }
+
+    @Test
+    public void readsEveryEdit() throws IOException {
+        for (Corpus.Edit edit : Corpus.Edit.values()) {
+            Corpus corpus = Corpus.generate(edit, SIZE);
+            for (boolean linear : new boolean[]{false, true}) {
+                String message = edit + (linear ? " linear" : " delta");
+                PatchChannel channel = PatchChannel.open(ByteBuffer.wrap(create(linear, corpus.source, corpus.target)), ByteBuffer.wrap(corpus.source));
+                try {
+                    assertEquals("channel", channel.getMetadata());
+                    assertReads(message, channel, corpus.target);
+                } finally {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void readsFiles() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.INSERTIONS, SIZE);
+        PatchChannel channel = PatchChannel.open(write(folder.newFile(), create(false, corpus.source, corpus.target)), write(folder.newFile(), corpus.source));
+        try {
+            assertReads("files", channel, corpus.target);
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void followsLongChainsOfTargetCopies() throws IOException {
+        // every copy reads what the one before it wrote
+        byte[] target = new byte[SIZE * 4];
+        Random random = new Random(0);
+        byte[] seed = new byte[100];
+        random.nextBytes(seed);
+        System.arraycopy(seed, 0, target, 0, seed.length);
+        Builder patch = build(0, target.length).targetRead(seed);
+        int offset = seed.length;
+        int from = 0;
+        while (offset < target.length) {
+            int length = Math.min(target.length - offset, 1 + random.nextInt(5000));
+            for (int i = 0; i < length; i++) {
+                target[offset + i] = target[from + i];
+            }
+            patch.targetCopy(from, length);
+            from = offset - random.nextInt(Math.min(offset, 300));
+            offset += length;
+        }
+        PatchChannel channel = PatchChannel.open(ByteBuffer.wrap(patch.finish(new byte[0], target)), ByteBuffer.allocate(0));
+        try {
+            assertReads("chain", channel, target);
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void isReadOnlyAndCloses() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.RANDOM_EDITS, SIZE / 4);
+        PatchChannel channel = PatchChannel.open(ByteBuffer.wrap(create(false, corpus.source, corpus.target)), ByteBuffer.wrap(corpus.source));
+        try {
+            channel.write(ByteBuffer.allocate(1));
+            fail("Wrote to a read only channel");
+        } catch (NonWritableChannelException expected) {
+        }
+        channel.close();
+        assertFalse(channel.isOpen());
+        try {
+            channel.read(ByteBuffer.allocate(1));
+            fail("Read from a closed channel");
+        } catch (ClosedChannelException expected) {
+        }
+    }
+}
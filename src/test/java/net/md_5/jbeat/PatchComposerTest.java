@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class PatchComposerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] create(byte[] source, byte[] target) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new DeltaCreator(ByteBuffer.wrap(source), ByteBuffer.wrap(target), out).create();
+        return out.toByteArray();
+    }
+
+    /**
+     * Make a further version of some data by overwriting and inserting runs.
+     */
+    private static byte[] revise(byte[] data, long seed) {
+        Random random = new Random(seed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int offset = 0;
+        while (offset < data.length) {
+            int keep = Math.min(data.length - offset, random.nextInt(8192));
+            out.write(data, offset, keep);
+            offset += keep;
+            byte[] insert = new byte[random.nextInt(64)];
+            random.nextBytes(insert);
+            out.write(insert, 0, insert.length);
+            offset += random.nextInt(32);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void composedPatchCreatesTheFinalTarget() throws IOException {
+        for (Corpus.Edit edit : Corpus.Edit.values()) {
+            Corpus corpus = Corpus.generate(edit, SIZE);
+            byte[] a = corpus.source, b = corpus.target, c = revise(b, edit.ordinal());
+            byte[] composed = bytes(PatchComposer.compose(ByteBuffer.wrap(create(a, b)), ByteBuffer.wrap(create(b, c))));
+            assertRoundTrip(edit.name(), composed, a, c);
+        }
+    }
+
+    @Test
+    public void composesChainsOfFiles() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.BLOCK_MOVES, SIZE);
+        byte[][] versions = {corpus.source, corpus.target, revise(corpus.target, 1), revise(revise(corpus.target, 1), 2)};
+        File[] patches = new File[versions.length - 1];
+        for (int i = 0; i < patches.length; i++) {
+            patches[i] = write(folder.newFile(), create(versions[i], versions[i + 1]));
+        }
+        File output = new File(folder.getRoot(), "p");
+        PatchComposer.composeAll(Arrays.asList(patches), output);
+        assertRoundTrip("chain", read(output), versions[0], versions[versions.length - 1]);
+        PatchComposer.compose(patches[0], patches[1], output);
+        assertRoundTrip("pair", read(output), versions[0], versions[2]);
+        // only the output and the patches remain
+        assertEquals(patches.length + 1, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void rejectsUnrelatedPatches() throws IOException {
+        Corpus first = Corpus.generate(Corpus.Edit.RANDOM_EDITS, SIZE, 1);
+        Corpus second = Corpus.generate(Corpus.Edit.RANDOM_EDITS, SIZE, 2);
+        try {
+            PatchComposer.compose(ByteBuffer.wrap(create(first.source, first.target)), ByteBuffer.wrap(create(second.source, second.target)));
+            fail("Composed patches which do not follow each other");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAPatchAsTheOutput() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.RANDOM_EDITS, SIZE);
+        File first = write(folder.newFile(), create(corpus.source, corpus.target));
+        File second = write(folder.newFile(), create(corpus.target, corpus.source));
+        PatchComposer.compose(first, second, second);
+    }
+}
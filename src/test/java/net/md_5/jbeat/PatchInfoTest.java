@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class PatchInfoTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final Corpus corpus = Corpus.generate(Corpus.Edit.INSERTIONS, SIZE);
+
+    private byte[] create() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new DeltaCreator(ByteBuffer.wrap(corpus.source), ByteBuffer.wrap(corpus.target), out, "metadata").create();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void readsHeaderAndFooter() throws IOException {
+        byte[] patch = create();
+        PatchInfo info = PatchInfo.read(write(folder.newFile(), patch));
+        assertEquals(corpus.source.length, info.getSourceSize());
+        assertEquals(corpus.target.length, info.getTargetSize());
+        assertEquals("metadata", info.getMetadata());
+        assertEquals(crc(corpus.source), info.getSourceChecksum());
+        assertEquals(crc(corpus.target), info.getTargetChecksum());
+        assertEquals(PatchProgram.compile(ByteBuffer.wrap(patch)).getPatchChecksum(), info.getPatchChecksum());
+        assertEquals(patch.length, info.getPatchSize());
+        assertTrue(info.verifyPatch());
+    }
+
+    @Test
+    public void detectsCorruptPatches() throws IOException {
+        byte[] patch = create();
+        patch[patch.length / 2] ^= 1;
+        assertFalse(PatchInfo.read(ByteBuffer.wrap(patch)).verifyPatch());
+    }
+
+    @Test
+    public void rejectsTruncatedHeaders() {
+        byte[] header = {'B', 'P', 'S', '1', 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        for (int length = 0; length <= header.length; length++) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(header, 0, truncated, 0, length);
+            try {
+                PatchInfo.read(ByteBuffer.wrap(truncated));
+                fail("Accepted a header of " + length + " bytes");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void matchesSource() throws IOException {
+        PatchInfo info = PatchInfo.read(ByteBuffer.wrap(create()));
+        assertTrue(info.matchesSource(write(folder.newFile(), corpus.source)));
+        assertTrue(info.matchesSource(ByteBuffer.wrap(corpus.source)));
+        assertFalse(info.matchesSource(write(folder.newFile(), corpus.target)));
+        assertFalse(info.matchesSource(ByteBuffer.wrap(corpus.target)));
+        // too short to be read at all
+        assertFalse(info.matchesSource(write(folder.newFile(), new byte[1])));
+    }
+
+    @Test
+    public void cachesSourceChecksums() throws IOException {
+        PatchInfo info = PatchInfo.read(ByteBuffer.wrap(create()));
+        File source = write(folder.newFile(), corpus.source);
+        ChecksumCache cache = new ChecksumCache(1);
+        assertTrue(info.matchesSource(source, cache));
+        assertEquals(1, cache.size());
+        assertTrue(info.matchesSource(source, cache));
+        info.verify(source, cache);
+        // a changed file is checksummed again
+        byte[] changed = corpus.source.clone();
+        changed[0] ^= 1;
+        write(source, changed);
+        assertTrue(source.setLastModified(source.lastModified() + 2000));
+        assertFalse(info.matchesSource(source, cache));
+        try {
+            info.verify(source, cache);
+            fail("Verified the wrong source");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Every way of applying a patch to files checks the source before the
+     * target is resized.
+     */
+    @Test
+    public void leavesTargetUntouchedForWrongSource() throws IOException {
+        File patch = write(folder.newFile(), create());
+        File wrong = write(folder.newFile(), corpus.target);
+        byte[] existing = {1, 2, 3};
+        File target = write(folder.newFile(), existing);
+        try {
+            new Patcher(patch, wrong, target).patch();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertArrayEquals(existing, read(target));
+        try {
+            new Patcher(patch, wrong, target).patch(ForkJoinPool.commonPool());
+            fail();
+        } catch (IOException expected) {
+        }
+        assertArrayEquals(existing, read(target));
+        try {
+            new Patcher(patch, wrong, target).transfer();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertArrayEquals(existing, read(target));
+        try {
+            PatchProgram.compile(patch).apply(wrong, target);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertArrayEquals(existing, read(target));
+    }
+}
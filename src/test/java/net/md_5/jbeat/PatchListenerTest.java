@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class PatchListenerTest {
+
+    /**
+     * Large enough for several progress updates.
+     */
+    private static final int LARGE = 3 * 1024 * 1024;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Records every notification and checks they arrive in a sensible order.
+     */
+    private static final class Recorder implements PatchListener {
+
+        private final List<Long> progress = new ArrayList<Long>();
+        private int started, finished;
+        private long targetSize;
+        private String metadata;
+        private PatchStatistics statistics;
+
+        @Override
+        public void started(long sourceSize, long targetSize, String metadata) {
+            assertEquals(0, started++);
+            assertTrue(progress.isEmpty());
+            this.targetSize = targetSize;
+            this.metadata = metadata;
+        }
+
+        @Override
+        public void progress(long done, long total) {
+            assertEquals(1, started);
+            assertEquals(0, finished);
+            assertEquals(targetSize, total);
+            assertTrue(done <= total);
+            assertTrue(progress.isEmpty() || progress.get(progress.size() - 1) <= done);
+            progress.add(done);
+        }
+
+        @Override
+        public void finished(PatchStatistics statistics) {
+            assertEquals(0, finished++);
+            this.statistics = statistics;
+        }
+
+        private void assertComplete(String message, long targetSize, String metadata) {
+            assertEquals(message, 1, started);
+            assertEquals(message, 1, finished);
+            assertEquals(message, targetSize, this.targetSize);
+            assertEquals(message, metadata, this.metadata);
+            assertFalse(message, progress.isEmpty());
+            assertEquals(message, targetSize, (long) progress.get(progress.size() - 1));
+            assertEquals(message, targetSize, statistics.getSourceReadBytes() + statistics.getTargetReadBytes()
+                    + statistics.getSourceCopyBytes() + statistics.getTargetCopyBytes());
+        }
+    }
+
+    @Test
+    public void notifiesCreationAndEveryApplication() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.INSERTIONS, LARGE);
+        File source = write(folder.newFile(), corpus.source);
+        File target = write(folder.newFile(), corpus.target);
+        File patch = folder.newFile();
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            for (ForkJoinPool creatorPool : new ForkJoinPool[]{null, pool}) {
+                BlockCreator creator = new BlockCreator(source, target, patch, "listened");
+                Recorder created = new Recorder();
+                creator.setListener(created);
+                creator.create(creatorPool);
+                created.assertComplete("create " + creatorPool, corpus.target.length, "listened");
+                assertTrue(created.progress.size() > 1);
+                assertSame(creator.getStatistics(), created.statistics);
+            }
+            long commands = PatchProgram.compile(patch).getCommandCount();
+
+            for (int mode = 0; mode < 3; mode++) {
+                File output = folder.newFile();
+                Patcher patcher = new Patcher(patch, source, output);
+                Recorder applied = new Recorder();
+                patcher.setListener(applied);
+                if (mode == 0) {
+                    patcher.patch();
+                } else if (mode == 1) {
+                    patcher.patch(pool);
+                } else {
+                    patcher.transfer();
+                }
+                applied.assertComplete("apply " + mode, corpus.target.length, "listened");
+                // parallel application only reports once every task is done
+                assertTrue(mode == 1 || applied.progress.size() > 1);
+                assertEquals(commands, applied.statistics.getCommandCount());
+                assertArrayEquals(corpus.target, read(output));
+            }
+
+            File file = write(folder.newFile(), corpus.source);
+            InPlacePatcher inPlace = new InPlacePatcher(patch, file);
+            Recorder applied = new Recorder();
+            inPlace.setListener(applied);
+            inPlace.patch();
+            applied.assertComplete("in place", corpus.target.length, "listened");
+            assertArrayEquals(corpus.target, read(file));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
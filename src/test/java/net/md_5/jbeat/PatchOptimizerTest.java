@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class PatchOptimizerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] optimize(byte[] patch, byte[] source) throws IOException {
+        return bytes(PatchOptimizer.optimize(ByteBuffer.wrap(patch), ByteBuffer.wrap(source)));
+    }
+
+    @Test
+    public void optimizedPatchesCreateTheSameTarget() throws IOException {
+        for (Corpus.Edit edit : Corpus.Edit.values()) {
+            Corpus corpus = Corpus.generate(edit, SIZE);
+            ByteBuffer source = ByteBuffer.wrap(corpus.source), target = ByteBuffer.wrap(corpus.target);
+            PatchCreator[] creators = new PatchCreator[3];
+            ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[creators.length];
+            for (int i = 0; i < outputs.length; i++) {
+                outputs[i] = new ByteArrayOutputStream();
+            }
+            creators[0] = new DeltaCreator(source, target, outputs[0], "delta");
+            creators[1] = new LinearCreator(source, target, outputs[1], "linear");
+            creators[2] = new BlockCreator(source, target, outputs[2], "block");
+            for (int i = 0; i < creators.length; i++) {
+                creators[i].create();
+                byte[] patch = outputs[i].toByteArray();
+                byte[] optimized = optimize(patch, corpus.source);
+                String message = edit + " " + creators[i].getClass().getSimpleName();
+                assertRoundTrip(message, optimized, corpus.source, corpus.target);
+                assertEquals(message, PatchInfo.read(ByteBuffer.wrap(patch)).getMetadata(), PatchInfo.read(ByteBuffer.wrap(optimized)).getMetadata());
+                assertTrue(message, optimized.length <= patch.length);
+            }
+        }
+    }
+
+    @Test
+    public void shrinksLinearPatches() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.INSERTIONS, SIZE);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new LinearCreator(ByteBuffer.wrap(corpus.source), ByteBuffer.wrap(corpus.target), out).create();
+        assertTrue(optimize(out.toByteArray(), corpus.source).length < out.size() / 2);
+    }
+
+    @Test
+    public void collapsesShortAlternatingReads() throws IOException {
+        byte[] source = new byte[4096];
+        byte[] target = new byte[source.length];
+        Builder builder = build(source.length, target.length);
+        for (int i = 0; i < target.length; i += 2) {
+            target[i + 1] = (byte) (i / 2 + 1);
+            builder.sourceRead(1);
+            builder.targetRead(target[i + 1]);
+        }
+        byte[] patch = builder.finish(source, target);
+        byte[] optimized = optimize(patch, source);
+        assertRoundTrip("alternating", optimized, source, target);
+        // every byte becomes literal data in a single target read
+        assertTrue(optimized.length < target.length + 32);
+        assertTrue(patch.length > target.length * 3 / 2);
+    }
+
+    @Test
+    public void rewritesAPatchFileInPlace() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.BLOCK_MOVES, SIZE);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new LinearCreator(ByteBuffer.wrap(corpus.source), ByteBuffer.wrap(corpus.target), out).create();
+        File source = write(folder.newFile(), corpus.source);
+        File patch = write(folder.newFile(), out.toByteArray());
+        PatchOptimizer.optimize(patch, source, patch);
+        byte[] optimized = read(patch);
+        assertRoundTrip("in place", optimized, corpus.source, corpus.target);
+        assertTrue(optimized.length < out.size());
+        // no temporary files are left behind
+        assertEquals(2, folder.getRoot().list().length);
+    }
+}
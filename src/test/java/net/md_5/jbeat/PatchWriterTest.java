@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.Random;
+import java.util.zip.CRC32;
+import org.junit.Test;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class PatchWriterTest {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final PatchWriter writer = new PatchWriter(Channels.newChannel(out));
+
+    private ByteBuffer written() throws IOException {
+        writer.flush();
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    @Test
+    public void encodesEveryLengthBoundary() throws IOException {
+        // the smallest number taking each length, and those either side of it
+        // and of each power of 128
+        long smallest = 0;
+        for (int length = 1; length <= 9; length++) {
+            for (long data : new long[]{smallest - 1, smallest, smallest + 1, (1L << (7 * length)) - 1, 1L << (7 * length), (1L << (7 * length)) + 1}) {
+                if (data < 0) {
+                    continue;
+                }
+                out.reset();
+                writer.encode(data);
+                ByteBuffer encoded = written();
+                assertEquals(data, decode(encoded));
+                assertFalse(encoded.hasRemaining());
+                assertEquals(Long.toString(data), encoded.limit(), PatchWriter.encodedSize(data));
+            }
+            assertEquals(length, PatchWriter.encodedSize(smallest));
+            if (length > 1) {
+                assertEquals(length - 1, PatchWriter.encodedSize(smallest - 1));
+            }
+            smallest += 1L << (7 * length);
+        }
+    }
+
+    @Test
+    public void sizesEveryOffset() throws IOException {
+        long[] offsets = {0, 1, -1, 63, 64, -64, -65, 8255, 8256, -8256, -8257, Integer.MAX_VALUE, Integer.MIN_VALUE, 1L << 40, -(1L << 40)};
+        for (long offset : offsets) {
+            out.reset();
+            // a copy starting at the offset is the first relative to zero
+            PatchWriter copy = new PatchWriter(Channels.newChannel(out));
+            copy.sourceCopy(offset, 1);
+            copy.flush();
+            ByteBuffer encoded = ByteBuffer.wrap(out.toByteArray());
+            assertEquals(Shared.SOURCE_COPY, decode(encoded));
+            long relative = decode(encoded);
+            assertEquals(offset, ((relative & 1) != 0 ? -1 : 1) * (relative >> 1));
+            assertEquals(Long.toString(offset), encoded.limit() - 1, PatchWriter.offsetSize(offset));
+        }
+    }
+
+    @Test
+    public void writesMetadataLongerThanTheBuffer() throws IOException {
+        StringBuilder metadata = new StringBuilder();
+        while (metadata.length() < 100 * 1024) {
+            // a character taking two bytes, so the length is in bytes
+            metadata.append("abc\u00e9");
+        }
+        writer.header(1, 2, metadata.toString());
+        ByteBuffer header = written();
+        byte[] magic = new byte[4];
+        header.get(magic);
+        assertArrayEquals("BPS1".getBytes("UTF-8"), magic);
+        assertEquals(1, decode(header));
+        assertEquals(2, decode(header));
+        byte[] encoded = metadata.toString().getBytes("UTF-8");
+        assertEquals(encoded.length, decode(header));
+        assertEquals(encoded.length, header.remaining());
+        byte[] read = new byte[encoded.length];
+        header.get(read);
+        assertArrayEquals(encoded, read);
+    }
+
+    @Test
+    public void footerHoldsTheChecksumOfEverythingBeforeIt() throws IOException {
+        // enough literal data to flush the buffer several times
+        byte[] data = new byte[300 * 1024];
+        new Random(0).nextBytes(data);
+        writer.header(0, data.length + 4, "metadata");
+        writer.targetRead(LargeBuffer.wrap(ByteBuffer.wrap(data)), 0, data.length);
+        writer.targetCopy(data.length - 1, 4);
+        writer.footer(0x12345678L, 0x9ABCDEF0L);
+        byte[] patch = out.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(patch, 0, patch.length - 4);
+        ByteBuffer footer = ByteBuffer.wrap(patch, patch.length - 12, 12).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x12345678L, footer.getInt() & 0xFFFFFFFFL);
+        assertEquals(0x9ABCDEF0L, footer.getInt() & 0xFFFFFFFFL);
+        assertEquals(crc.getValue(), footer.getInt() & 0xFFFFFFFFL);
+        // and the commands before it are intact
+        ByteBuffer commands = ByteBuffer.wrap(patch);
+        commands.position(4);
+        assertEquals(0, decode(commands));
+        assertEquals(data.length + 4, decode(commands));
+        int metadata = (int) decode(commands);
+        commands.position(commands.position() + metadata);
+        assertEquals(Shared.TARGET_READ | ((data.length - 1) << 2), decode(commands));
+        byte[] read = new byte[data.length];
+        commands.get(read);
+        assertArrayEquals(data, read);
+        assertEquals(Shared.TARGET_COPY | (3 << 2), decode(commands));
+        assertEquals((data.length - 1) << 1, decode(commands));
+        assertEquals(patch.length - 12, commands.position());
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class PatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] create(byte[] source, byte[] target) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BlockCreator(ByteBuffer.wrap(source), ByteBuffer.wrap(target), out).create();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void appliesEveryEdit() throws IOException {
+        for (Corpus.Edit edit : Corpus.Edit.values()) {
+            Corpus corpus = Corpus.generate(edit, SIZE);
+            File patch = write(folder.newFile(), create(corpus.source, corpus.target));
+            File source = write(folder.newFile(), corpus.source);
+            File target = folder.newFile();
+            new Patcher(patch, source, target).patch();
+            assertArrayEquals(edit.name(), corpus.target, read(target));
+        }
+    }
+
+    @Test
+    public void appliesOverlappingTargetCopies() throws IOException {
+        byte[] target = "abcabcabcabcabcab".getBytes("UTF-8");
+        byte[] patch = build(0, target.length).targetRead((byte) 'a', (byte) 'b', (byte) 'c').targetCopy(0, 14).finish(new byte[0], target);
+        assertRoundTrip("overlapping", patch, new byte[0], target);
+    }
+
+    @Test
+    public void rejectsWrongChecksums() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.RANDOM_EDITS, SIZE);
+        byte[] patch = create(corpus.source, corpus.target);
+        // the source, target and patch checksums in turn
+        for (int offset = 12; offset > 0; offset -= 4) {
+            byte[] corrupt = patch.clone();
+            corrupt[corrupt.length - offset] ^= 1;
+            assertRejected(corrupt, corpus.source);
+        }
+    }
+
+    /**
+     * Applies a patch whose commands are invalid through every path which
+     * decodes commands, each of which must fail with an IOException.
+     */
+    private void assertRejected(byte[] patch, byte[] source) throws IOException {
+        try {
+            Beat.apply(ByteBuffer.wrap(patch), ByteBuffer.wrap(source));
+            fail("Beat.apply accepted an invalid patch");
+        } catch (IOException expected) {
+        }
+        File patchFile = write(folder.newFile(), patch);
+        File sourceFile = write(folder.newFile(), source);
+        try {
+            new Patcher(patchFile, sourceFile, folder.newFile()).patch();
+            fail("Patcher accepted an invalid patch");
+        } catch (IOException expected) {
+        }
+        try {
+            new Patcher(patchFile, sourceFile, folder.newFile()).patch(ForkJoinPool.commonPool());
+            fail("Patcher accepted an invalid patch in parallel");
+        } catch (IOException expected) {
+        }
+        try {
+            new Patcher(patchFile, sourceFile, folder.newFile()).transfer();
+            fail("Patcher accepted an invalid patch by transfer");
+        } catch (IOException expected) {
+        }
+        try {
+            PatchProgram.compile(ByteBuffer.wrap(patch));
+            fail("PatchProgram accepted an invalid patch");
+        } catch (IOException expected) {
+        }
+        try {
+            new InPlacePatcher(patchFile, sourceFile, 0).patch();
+            fail("InPlacePatcher accepted an invalid patch");
+        } catch (IOException expected) {
+        }
+        assertArrayEquals(source, read(sourceFile));
+    }
+
+    @Test(timeout = 10000)
+    public void rejectsTargetCopyOfTheOutput() throws IOException {
+        byte[] target = "aaaaaaaaaa".getBytes("UTF-8");
+        // reads the byte being written, which previously never finished
+        byte[] patch = build(0, target.length).targetRead((byte) 'a').targetCopy(1, 9).finish(new byte[0], target);
+        assertRejected(patch, new byte[0]);
+    }
+
+    @Test(timeout = 10000)
+    public void rejectsTargetCopyAfterTheOutput() throws IOException {
+        byte[] target = "aaaaaaaaaa".getBytes("UTF-8");
+        byte[] patch = build(0, target.length).targetRead((byte) 'a').targetCopy(5, 9).finish(new byte[0], target);
+        assertRejected(patch, new byte[0]);
+    }
+
+    @Test(timeout = 10000)
+    public void rejectsSourceCopyPastTheSource() throws IOException {
+        byte[] source = "abcd".getBytes("UTF-8");
+        assertRejected(build(source.length, 4).sourceCopy(2, 4).finish(source, source), source);
+    }
+
+    @Test(timeout = 10000)
+    public void rejectsSourceReadPastTheSource() throws IOException {
+        byte[] source = "abcd".getBytes("UTF-8");
+        assertRejected(build(source.length, 8).sourceRead(8).finish(source, new byte[8]), source);
+    }
+
+    @Test(timeout = 10000)
+    public void rejectsWritesPastTheTarget() throws IOException {
+        byte[] source = "abcd".getBytes("UTF-8");
+        assertRejected(build(source.length, 2).sourceRead(4).finish(source, new byte[2]), source);
+    }
+
+    @Test(timeout = 60000)
+    public void rejectsTruncatedPatches() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.INSERTIONS, 4096);
+        byte[] patch = create(corpus.source, corpus.target);
+        for (int length = 0; length < patch.length; length++) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(patch, 0, truncated, 0, length);
+            assertRejected(truncated, corpus.source);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void rejectsCorruptCommands() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.BLOCK_MOVES, SIZE);
+        byte[] patch = create(corpus.source, corpus.target);
+        // corrupt only the commands, a corrupt header may ask for any size
+        ByteBuffer header = ByteBuffer.wrap(patch);
+        header.position(4);
+        decode(header);
+        decode(header);
+        int metadata = (int) decode(header);
+        int start = header.position() + metadata;
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            byte[] corrupt = patch.clone();
+            corrupt[start + random.nextInt(corrupt.length - 12 - start)] ^= 1 << random.nextInt(8);
+            assertRejected(corrupt, corpus.source);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+import static org.junit.Assert.*;
+
+/**
+ * Helpers shared by the tests for building, writing and checking patches.
+ */
+final class Patches {
+
+    /**
+     * Size of the generated sources, large enough for every edit of the
+     * corpus to produce a mixture of commands.
+     */
+    static final int SIZE = 256 * 1024;
+
+    private Patches() {
+    }
+
+    static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    /**
+     * Copy the remaining bytes of a buffer, leaving its position unchanged.
+     */
+    static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    static File write(File file, byte[] data) throws IOException {
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    static byte[] read(File file) throws IOException {
+        return Files.readAllBytes(file.toPath());
+    }
+
+    /**
+     * Decode a number as described by the beat specification, independently
+     * of the code under test.
+     */
+    static long decode(ByteBuffer in) {
+        long data = 0, shift = 1;
+        while (true) {
+            int x = in.get() & 0xFF;
+            data += (x & 0x7f) * shift;
+            if ((x & 0x80) != 0) {
+                return data;
+            }
+            shift <<= 7;
+            data += shift;
+        }
+    }
+
+    /**
+     * Check the sizes and checksums a patch declares against its source and
+     * target, then apply it both in memory and from files and compare the
+     * results.
+     */
+    static void assertRoundTrip(String message, byte[] patch, byte[] source, byte[] target) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(patch);
+        byte[] magic = new byte[4];
+        header.get(magic);
+        assertArrayEquals(message, "BPS1".getBytes("UTF-8"), magic);
+        assertEquals(message, source.length, decode(header));
+        assertEquals(message, target.length, decode(header));
+        ByteBuffer footer = ByteBuffer.wrap(patch, patch.length - 12, 12).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(message, crc(source), footer.getInt() & 0xFFFFFFFFL);
+        assertEquals(message, crc(target), footer.getInt() & 0xFFFFFFFFL);
+        CRC32 crc = new CRC32();
+        crc.update(patch, 0, patch.length - 4);
+        assertEquals(message, crc.getValue(), footer.getInt() & 0xFFFFFFFFL);
+        assertArrayEquals(message, target, bytes(Beat.apply(ByteBuffer.wrap(patch), ByteBuffer.wrap(source))));
+        assertArrayEquals(message, target, apply(patch, source));
+    }
+
+    /**
+     * Apply a patch with {@link Patcher}, through temporary files.
+     */
+    static byte[] apply(byte[] patch, byte[] source) throws IOException {
+        File patchFile = write(File.createTempFile("patch", null), patch);
+        File sourceFile = write(File.createTempFile("source", null), source);
+        File targetFile = File.createTempFile("target", null);
+        try {
+            new Patcher(patchFile, sourceFile, targetFile).patch();
+            return read(targetFile);
+        } finally {
+            patchFile.delete();
+            sourceFile.delete();
+            targetFile.delete();
+        }
+    }
+
+    /**
+     * Start writing a patch by hand, for commands no creator would emit.
+     */
+    static Builder build(long sourceSize, long targetSize) {
+        return new Builder(sourceSize, targetSize);
+    }
+
+    /**
+     * Writes patch commands with its own encoder, so invalid patches do not
+     * depend on the code under test.
+     */
+    static final class Builder {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private long sourceOffset, targetOffset;
+
+        private Builder(long sourceSize, long targetSize) {
+            out.write('B');
+            out.write('P');
+            out.write('S');
+            out.write('1');
+            encode(sourceSize);
+            encode(targetSize);
+            encode(0);
+        }
+
+        private void encode(long data) {
+            while (true) {
+                long x = data & 0x7f;
+                data >>= 7;
+                if (data == 0) {
+                    out.write((int) (0x80 | x));
+                    return;
+                }
+                out.write((int) x);
+                data--;
+            }
+        }
+
+        private void command(int mode, long length) {
+            encode(((length - 1) << 2) | mode);
+        }
+
+        private void offset(long relative) {
+            encode((Math.abs(relative) << 1) | (relative < 0 ? 1 : 0));
+        }
+
+        Builder sourceRead(long length) {
+            command(0, length);
+            return this;
+        }
+
+        Builder targetRead(byte... data) {
+            command(1, data.length);
+            out.write(data, 0, data.length);
+            return this;
+        }
+
+        Builder sourceCopy(long offset, long length) {
+            command(2, length);
+            offset(offset - sourceOffset);
+            sourceOffset = offset + length;
+            return this;
+        }
+
+        Builder targetCopy(long offset, long length) {
+            command(3, length);
+            offset(offset - targetOffset);
+            targetOffset = offset + length;
+            return this;
+        }
+
+        /**
+         * Finish the patch with the checksums of the data it is meant to
+         * apply to and produce, so only its commands are wrong.
+         */
+        byte[] finish(byte[] source, byte[] target) {
+            ByteBuffer footer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            footer.putInt((int) crc(source)).putInt((int) crc(target));
+            out.write(footer.array(), 0, 8);
+            byte[] patch = out.toByteArray();
+            byte[] finished = new byte[patch.length + 4];
+            System.arraycopy(patch, 0, finished, 0, patch.length);
+            ByteBuffer.wrap(finished, patch.length, 4).order(ByteOrder.LITTLE_ENDIAN).putInt((int) crc(patch));
+            return finished;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class StreamPatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] create(byte[] source, byte[] target) throws IOException {
+        File patch = folder.newFile();
+        new DeltaCreator(write(folder.newFile(), source), write(folder.newFile(), target), patch).create();
+        return read(patch);
+    }
+
+    private byte[] stream(byte[] patch, byte[] source, int window) throws IOException {
+        File sourceFile = write(folder.newFile(), source);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        new StreamPatcher(Channels.newChannel(new ByteArrayInputStream(patch)), sourceFile, Channels.newChannel(target), window).patch();
+        return target.toByteArray();
+    }
+
+    @Test
+    public void streamsEveryEdit() throws IOException {
+        for (Corpus.Edit edit : Corpus.Edit.values()) {
+            Corpus corpus = Corpus.generate(edit, SIZE);
+            byte[] patch = create(corpus.source, corpus.target);
+            assertArrayEquals(edit.name(), corpus.target, stream(patch, corpus.source, StreamPatcher.DEFAULT_WINDOW));
+        }
+    }
+
+    @Test
+    public void wrapsTheWindow() throws IOException {
+        // run length target copies only reach back a single byte
+        Corpus corpus = Corpus.generate(Corpus.Edit.RLE_RUNS, SIZE);
+        File patch = folder.newFile();
+        new LinearCreator(write(folder.newFile(), corpus.source), write(folder.newFile(), corpus.target), patch).create();
+        assertArrayEquals(corpus.target, stream(read(patch), corpus.source, 1000));
+    }
+
+    @Test
+    public void rejectsCopiesOutsideTheWindow() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.BLOCK_MOVES, SIZE);
+        byte[] target = new byte[SIZE * 2];
+        System.arraycopy(corpus.target, 0, target, 0, SIZE);
+        System.arraycopy(corpus.target, 0, target, SIZE, SIZE);
+        byte[] patch = create(new byte[0], target);
+        try {
+            stream(patch, new byte[0], SIZE / 2);
+            fail("Copied from outside of the window");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsEveryTruncation() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.RANDOM_EDITS, 4096);
+        byte[] patch = create(corpus.source, corpus.target);
+        for (int length = 0; length < patch.length; length++) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(patch, 0, truncated, 0, length);
+            try {
+                stream(truncated, corpus.source, StreamPatcher.DEFAULT_WINDOW);
+                fail("Accepted a patch truncated to " + length + " bytes");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void rejectsReadsPastTheSource() throws IOException {
+        byte[] source = "abcd".getBytes("UTF-8");
+        Builder copy = build(source.length, 4).sourceCopy(2, 4);
+        try {
+            stream(copy.finish(source, source), source, 16);
+            fail("Copied past the end of the source");
+        } catch (IOException expected) {
+        }
+        Builder read = build(source.length, 8).sourceRead(8);
+        try {
+            stream(read.finish(source, new byte[8]), source, 16);
+            fail("Read past the end of the source");
+        } catch (IOException expected) {
+        }
+        // the source file is shorter than the patch says
+        Builder shorter = build(source.length + 1, 4).sourceRead(4);
+        try {
+            stream(shorter.finish(source, source), source, 16);
+            fail("Mapped past the end of the source");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsCopiesBeforeTheTarget() throws IOException {
+        byte[] target = "abcd".getBytes("UTF-8");
+        // within the window, but before the first byte of the target
+        Builder patch = build(0, 4).targetRead((byte) 'a', (byte) 'b').targetCopy(-1, 2);
+        try {
+            stream(patch.finish(new byte[0], target), new byte[0], 16);
+            fail("Copied from before the start of the target");
+        } catch (IOException expected) {
+        }
+    }
+}
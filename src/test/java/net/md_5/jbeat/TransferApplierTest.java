@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.jbeat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static net.md_5.jbeat.Patches.*;
+import static org.junit.Assert.*;
+
+public class TransferApplierTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] create(boolean linear, byte[] source, byte[] target) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PatchCreator creator = linear ? new LinearCreator(ByteBuffer.wrap(source), ByteBuffer.wrap(target), out)
+                : new DeltaCreator(ByteBuffer.wrap(source), ByteBuffer.wrap(target), out);
+        creator.create();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void transfersEveryEdit() throws IOException {
+        for (Corpus.Edit edit : Corpus.Edit.values()) {
+            Corpus corpus = Corpus.generate(edit, SIZE);
+            for (boolean linear : new boolean[]{false, true}) {
+                String message = edit + (linear ? " linear" : " delta");
+                File patch = write(folder.newFile(), create(linear, corpus.source, corpus.target));
+                File source = write(folder.newFile(), corpus.source);
+                File target = folder.newFile();
+                Patcher transfer = new Patcher(patch, source, target);
+                transfer.transfer();
+                assertArrayEquals(message, corpus.target, read(target));
+                Patcher mapped = new Patcher(patch, source, folder.newFile());
+                mapped.patch();
+                assertEquals(message, mapped.getStatistics().getCommandCount(), transfer.getStatistics().getCommandCount());
+                assertEquals(message, mapped.getStatistics().getSourceReadBytes(), transfer.getStatistics().getSourceReadBytes());
+            }
+        }
+    }
+
+    @Test
+    public void transfersLongRunsAndShrinksTheTarget() throws IOException {
+        Random random = new Random(0);
+        byte[] source = new byte[SIZE * 4];
+        random.nextBytes(source);
+        byte[] literal = new byte[SIZE];
+        random.nextBytes(literal);
+        // long runs from both the source and the patch, between short ones
+        Builder patch = build(source.length, source.length + literal.length + 3);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        patch.sourceRead(SIZE);
+        target.write(source, 0, SIZE);
+        patch.targetRead(literal);
+        target.write(literal, 0, literal.length);
+        patch.targetRead((byte) 1, (byte) 2, (byte) 3);
+        target.write(new byte[]{1, 2, 3}, 0, 3);
+        patch.sourceCopy(SIZE, SIZE * 3);
+        target.write(source, SIZE, SIZE * 3);
+        File patchFile = write(folder.newFile(), patch.finish(source, target.toByteArray()));
+        File targetFile = write(folder.newFile(), new byte[SIZE * 8]);
+        new Patcher(patchFile, write(folder.newFile(), source), targetFile).transfer();
+        assertArrayEquals(target.toByteArray(), read(targetFile));
+    }
+
+    @Test
+    public void writesNothingForTheWrongSource() throws IOException {
+        Corpus corpus = Corpus.generate(Corpus.Edit.RANDOM_EDITS, SIZE);
+        File patch = write(folder.newFile(), create(true, corpus.source, corpus.target));
+        byte[] wrong = corpus.source.clone();
+        wrong[wrong.length - 1] ^= 1;
+        byte[] existing = {1, 2, 3};
+        File target = write(folder.newFile(), existing);
+        try {
+            new Patcher(patch, write(folder.newFile(), wrong), target).transfer();
+            fail("Transferred from the wrong source");
+        } catch (IOException expected) {
+        }
+        assertArrayEquals(existing, read(target));
+    }
+}